@@ -1,6 +1,8 @@
 package drawings;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 
 /*
  * This is a working version of the author's code.  You will need to
@@ -10,16 +12,26 @@ import java.io.Serializable;
 // Class ArrayList<E> can be used to store a list of values of type E.
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class ArrayList<E> implements Iterable<E>, Serializable {
+    // the version of the original serialized form, which is unchanged; shape
+    // files saved by earlier versions hold their points in one of these lists
+    private static final long serialVersionUID = -6794634637297529684L;
 
-public class ArrayList<E> implements Serializable {
     private E[] elementData; // list of values
     private int size;        // current number of elements in the list
 
-    public static final int DEFAULT_CAPACITY = 50;
+    // smallest capacity the list grows to once it needs storage
+    public static final int DEFAULT_CAPACITY = 4;
 
-    // post: constructs an empty list of default capacity
+    // post: constructs an empty list; storage is allocated on the first add
+    //       and then grows as needed, so small lists stay small
     public ArrayList() {
-        this(DEFAULT_CAPACITY);
+        this(0);
     }
 
     // pre : capacity >= 0 (throws IllegalArgumentException if not)
@@ -47,16 +59,26 @@ public class ArrayList<E> implements Serializable {
 
     // post: creates a comma-separated, bracketed version of the list
     public String toString() {
-        if (size == 0) {
-            return "[]";
-        } else {
-            String result = "[" + elementData[0];
-            for (int i = 1; i < size; i++) {
-                result += ", " + elementData[i];
+        StringBuilder result = new StringBuilder();
+        try {
+            writeTo(result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   // StringBuilder never throws
+        }
+        return result.toString();
+    }
+
+    // post: writes the comma-separated, bracketed version of the list to the
+    //       given output, one value at a time, without building it in memory
+    public void writeTo(Appendable out) throws IOException {
+        out.append('[');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                out.append(", ");
             }
-            result += "]";
-            return result;
+            out.append(String.valueOf(elementData[i]));
         }
+        out.append(']');
     }
 
     // post : returns the position of the first occurrence of the given
@@ -96,9 +118,7 @@ public class ArrayList<E> implements Serializable {
             throw new IndexOutOfBoundsException("index: " + index);
         }
         ensureCapacity(size + 1);
-        for (int i = size; i >= index + 1; i--) {
-            elementData[i] = elementData[i - 1];
-        }
+        System.arraycopy(elementData, index, elementData, index + 1, size - index);
         elementData[index] = value;
         size++;
     }
@@ -107,13 +127,25 @@ public class ArrayList<E> implements Serializable {
     // post: removes value at the given index, shifting subsequent values left
     public void remove(int index) {
         checkIndex(index);
-        for (int i = index; i < size - 1; i++) {
-            elementData[i] = elementData[i + 1];
-        }
+        System.arraycopy(elementData, index + 1, elementData, index, size - index - 1);
         elementData[size - 1] = null;
         size--;
     }
 
+    // pre : 0 <= fromIndex <= toIndex <= size() (throws
+    //       IndexOutOfBoundsException if not)
+    // post: removes the values from fromIndex (inclusive) to toIndex
+    //       (exclusive), shifting subsequent values left in one move
+    public void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("range: " + fromIndex + " to " + toIndex);
+        }
+        System.arraycopy(elementData, toIndex, elementData, fromIndex, size - toIndex);
+        int newSize = size - (toIndex - fromIndex);
+        Arrays.fill(elementData, newSize, size, null);
+        size = newSize;
+    }
+
     // pre : 0 <= index < size() (throws IndexOutOfBoundsException if not)
     // post: replaces the value at the given index with the given value
     public void set(int index, E value) {
@@ -123,27 +155,65 @@ public class ArrayList<E> implements Serializable {
 
     // post: list is empty
     public void clear() {
-        for (int i = 0; i < size; i++) {
-            elementData[i] = null;
-        }
+        Arrays.fill(elementData, 0, size, null);
         size = 0;
     }
 
     // post: appends all values in the given list to the end of this list
     public void addAll(ArrayList<E> other) {
-        ensureCapacity(size + other.size);
-        for (int i = 0; i < other.size; i++) {
-            add(other.elementData[i]);
+        int otherSize = other.size;   // read once, in case other == this
+        ensureCapacity(size + otherSize);
+        System.arraycopy(other.elementData, 0, elementData, size, otherSize);
+        size += otherSize;
+    }
+
+    // pre : 0 <= index <= size() (throws IndexOutOfBoundsException if not)
+    // post: inserts all values in the given list at the given index,
+    //       shifting subsequent values right in one move
+    public void addAll(int index, ArrayList<E> other) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        Object[] values = Arrays.copyOf(other.elementData, other.size);
+        ensureCapacity(size + values.length);
+        System.arraycopy(elementData, index, elementData, index + values.length, size - index);
+        System.arraycopy(values, 0, elementData, index, values.length);
+        size += values.length;
+    }
+
+    // post: removes every value for which the given test is true, keeping
+    //       the remaining values in order; returns true if any were removed.
+    //       Runs in linear time. The test is applied to every value before
+    //       anything moves, so if it throws, the list is left unchanged.
+    public boolean removeIf(Predicate<? super E> filter) {
+        BitSet doomed = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (filter.test(elementData[i])) {
+                doomed.set(i);
+            }
+        }
+        if (doomed.isEmpty()) {
+            return false;
         }
+        int kept = doomed.nextSetBit(0);
+        for (int i = doomed.nextClearBit(kept); i < size; i = doomed.nextClearBit(i + 1)) {
+            elementData[kept] = elementData[i];
+            kept++;
+        }
+        Arrays.fill(elementData, kept, size, null);
+        size = kept;
+        return true;
     }
     
     // post: moving all non-null values to the front of the ArrayList
     public void compressNulls() {
-        Iterator<E> iter = iterator();
-        while(iter.hasNext()){
-            if (iter.next()==null) {
-                iter.remove();
-            }            
+        removeIf(value -> value == null);
+    }
+
+    // post: shrinks the underlying array to exactly the current size
+    public void trimToSize() {
+        if (elementData.length > size) {
+            elementData = Arrays.copyOf(elementData, size);
         }
     }
     
@@ -151,12 +221,35 @@ public class ArrayList<E> implements Serializable {
     public Iterator<E> iterator() {
         return new ArrayListIterator();
     }
+
+    // post: performs the given action on each value in order
+    public void forEach(Consumer<? super E> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(elementData[i]);
+        }
+    }
+
+    // post: returns a sized, splittable spliterator over the list's values
+    public Spliterator<E> spliterator() {
+        return new ArrayListSpliterator(0, -1);
+    }
+
+    // post: returns a sequential stream of the list's values
+    public Stream<E> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    // post: returns a possibly parallel stream of the list's values
+    public Stream<E> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
     
     // post: ensures that the underlying array has the given capacity; if not,
-    //       the size is doubled (or more if given capacity is even larger)
+    //       the size is doubled (or more if given capacity is even larger),
+    //       but never grown to less than DEFAULT_CAPACITY
     public void ensureCapacity(int capacity) {
         if (capacity > elementData.length) {
-            int newCapacity = elementData.length * 2 + 1;
+            int newCapacity = Math.max(elementData.length * 2 + 1, DEFAULT_CAPACITY);
             if (capacity > newCapacity) {
                 newCapacity = capacity;
             }
@@ -172,6 +265,70 @@ public class ArrayList<E> implements Serializable {
         }
     }
 
+    private class ArrayListSpliterator implements Spliterator<E> {
+        private int index;              // next position to traverse
+        private int fence;              // one past the last position; -1 until first use
+
+        // post: constructs a spliterator over positions index to fence
+        //       (fence of -1 means "up to the list's size when first used")
+        public ArrayListSpliterator(int index, int fence) {
+            this.index = index;
+            this.fence = fence;
+        }
+
+        // post: binds the fence to the current size on first use
+        private int getFence() {
+            if (fence < 0) {
+                fence = size;
+            }
+            return fence;
+        }
+
+        // post: hands the first half of the remaining values to a new
+        //       spliterator, or returns null if there are too few to split
+        public Spliterator<E> trySplit() {
+            int hi = getFence();
+            int mid = (index + hi) >>> 1;
+            if (index >= mid) {
+                return null;
+            }
+            Spliterator<E> prefix = new ArrayListSpliterator(index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        // post: performs the action on the next value, if any; returns
+        //       whether there was one
+        public boolean tryAdvance(Consumer<? super E> action) {
+            if (index < getFence()) {
+                action.accept(elementData[index]);
+                index++;
+                return true;
+            }
+            return false;
+        }
+
+        // post: performs the action on every remaining value
+        public void forEachRemaining(Consumer<? super E> action) {
+            int hi = getFence();
+            E[] values = elementData;
+            for (int i = index; i < hi; i++) {
+                action.accept(values[i]);
+            }
+            index = hi;
+        }
+
+        // post: returns the exact number of values left to traverse
+        public long estimateSize() {
+            return getFence() - index;
+        }
+
+        // post: reports that values come in order and sizes are exact
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+        }
+    }
+
     private class ArrayListIterator implements Iterator<E> {
         private int position;           // current position within the list
         private boolean removeOK;       // whether it's okay to remove now
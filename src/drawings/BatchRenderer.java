@@ -0,0 +1,407 @@
+package drawings;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders a batch of drawings to PNG files, keeping the disk and the cores busy at the same time. Each drawing is a
+ * job that reads its instruction file, has the drawing rendered and encoded, and writes the PNG. The jobs run on a
+ * pool of I/O threads, several per core, which spend most of their time blocked on files; the rendering and
+ * encoding are handed to a separate pool with one thread per core, so however many jobs are reading or writing,
+ * no more images are rasterized at once than there are cores to do it. An I/O thread waits for its drawing's render
+ * without holding a core, and the encoded PNG it gets back is written out while other drawings render.
+ * <p>
+ * Every image is rendered whole, so a render thread holds one image at a time; for drawings too large for that,
+ * use Drawing.export, which renders in bands. Run it from the directory holding the shapes folder:
+ * <pre>
+ *     java drawings.BatchRenderer [--scale S] [--render-threads N] [--io-threads N] [--seed N] OUTPUT_DIR [INSTRUCTIONS...]
+ * </pre>
+ * With no instruction files given, every Instruct-*.txt file in the current directory is rendered. Random
+ * placements are seeded with 0 unless another seed is given, so that running it again reproduces them.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class BatchRenderer implements AutoCloseable {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the number of I/O threads per render thread when no count is given */
+    public static final int DEFAULT_IO_THREADS_PER_CORE = 4;
+    /** the file name prefix of drawing instruction files */
+    private static final String PREFIX = "Instruct-";
+    /** the file name suffix of drawing instruction files */
+    private static final String SUFFIX = ".txt";
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** the shapes the drawings are made of */
+    private final ShapeLibrary shapeLibrary;
+    /** rasterizes and encodes, one thread per core */
+    private final ExecutorService renderPool;
+    /** reads instruction files and writes PNG files */
+    private final ExecutorService ioPool;
+    /** the number of render threads */
+    private final int renderThreads;
+    /** the number of I/O threads */
+    private final int ioThreads;
+    /** the seed for random placements */
+    private long seed;
+    /** encodes the PNGs, each on the render thread that rendered it */
+    private final PngWriter pngWriter = new PngWriter();
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Constructor for a renderer with one render thread per core and DEFAULT_IO_THREADS_PER_CORE I/O threads per
+     * render thread
+     *
+     * @param       shapeLib        the shape library from which to draw shapes
+     */
+    public BatchRenderer(ShapeLibrary shapeLib) {
+        this(shapeLib, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors() * DEFAULT_IO_THREADS_PER_CORE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param       shapeLib        the shape library from which to draw shapes
+     * @param       renderThreads   the number of drawings rendered at once, normally the number of cores
+     * @param       ioThreads       the number of drawings in progress at once, reading, waiting or writing
+     * @throws                      IllegalArgumentException if either thread count is less than 1
+     */
+    public BatchRenderer(ShapeLibrary shapeLib, int renderThreads, int ioThreads) {
+        if (renderThreads < 1 || ioThreads < 1) {
+            throw new IllegalArgumentException("thread counts must be at least 1: " + renderThreads + ", " + ioThreads);
+        }
+        this.shapeLibrary = shapeLib;
+        this.renderThreads = renderThreads;
+        this.ioThreads = ioThreads;
+        this.renderPool = Executors.newFixedThreadPool(renderThreads, threadFactory("BatchRenderer-render"));
+        this.ioPool = Executors.newFixedThreadPool(ioThreads, threadFactory("BatchRenderer-io"));
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Renders a batch of drawings and reports the throughput
+     *
+     * @param       args        the options, output directory and instruction files described in the class comment
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+        double scale = 1;
+        int renderThreads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = 0;
+        long seed = 0;
+        File output = null;
+        ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--scale") && i + 1 < args.length) {
+                scale = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--render-threads") && i + 1 < args.length) {
+                renderThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--io-threads") && i + 1 < args.length) {
+                ioThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].startsWith("--")) {
+                output = null;
+                break;
+            } else if (output == null) {
+                output = new File(args[i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (output == null) {
+            System.err.println("Usage: java drawings.BatchRenderer [--scale S] [--render-threads N] [--io-threads N] "
+                    + "[--seed N] OUTPUT_DIR [INSTRUCTIONS...]");
+            System.exit(2);
+        }
+        File[] instructions = new File[files.size()];
+        for (int i = 0; i < instructions.length; i++) {
+            instructions[i] = files.get(i);
+        }
+        if (instructions.length == 0) {
+            instructions = new File(".").listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+            if (instructions == null) {
+                throw new FileNotFoundException(".");
+            }
+            Arrays.sort(instructions);
+        }
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Unable to create " + output);
+        }
+        if (ioThreads == 0) {
+            ioThreads = renderThreads * DEFAULT_IO_THREADS_PER_CORE;
+        }
+        Result result;
+        try (BatchRenderer renderer = new BatchRenderer(new ShapeLibrary(), renderThreads, ioThreads)) {
+            renderer.setSeed(seed);
+            result = renderer.renderAll(instructions, output, scale);
+        }
+        for (String failure : result.getFailures()) {
+            System.err.println("FAIL " + failure);
+        }
+        System.out.println(result);
+        System.exit(result.getFailed() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Makes a thread factory for one of the pools; its threads are daemons, so an unclosed renderer does not keep
+     * the program running
+     *
+     * @param       name        the name of the threads
+     * @return                  the thread factory
+     */
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Sets the seed random placements are made with, so that every drawing renders the same from run to run
+     *
+     * @param       seed        the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Renders drawings to PNG files, waiting for all of them. A drawing that cannot be read, rendered or written
+     * is recorded as failed and the rest go on. Only the waiting thread records outcomes, in file order.
+     *
+     * @param       files       the instruction files
+     * @param       directory   the directory to write the PNG files to, each named after its instruction file
+     * @param       scale       the output size relative to each drawing's canvas size
+     * @return                  what was rendered and where the time went
+     * @throws                  IllegalArgumentException if the scale is not positive
+     * @throws                  InterruptedException if interrupted while waiting; the jobs not yet done are
+     *                          cancelled
+     */
+    public Result renderAll(File[] files, final File directory, final double scale) throws InterruptedException {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be positive: " + scale);
+        }
+        final Result result = new Result();
+        long start = System.nanoTime();
+        ArrayList<Future<?>> jobs = new ArrayList<Future<?>>();
+        for (final File file : files) {
+            jobs.add(ioPool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    job(file, directory, scale, result);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    jobs.get(i).get();
+                    result.done.incrementAndGet();
+                } catch (ExecutionException e) {
+                    result.failures.add(files[i].getName() + ": " + e.getCause());
+                }
+            }
+        } finally {
+            for (Future<?> job : jobs) {
+                job.cancel(true);
+            }
+        }
+        result.elapsed = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Stops the pools; jobs already running finish, but nothing more can be rendered
+     */
+    public void close() {
+        ioPool.shutdown();
+        renderPool.shutdown();
+    }
+
+    /**
+     * Renders one drawing to a PNG file, on an I/O thread: reads the instructions, waits for the render pool to
+     * render and encode the drawing, and writes the bytes it gets back
+     *
+     * @param       instructions    the drawing's instruction file
+     * @param       directory       the directory to write the PNG file to
+     * @param       scale           the output size relative to the canvas size
+     * @param       result          where to add the time taken and bytes written
+     * @throws                      Exception if the drawing cannot be read, rendered or written
+     */
+    private void job(File instructions, File directory, final double scale, final Result result) throws Exception {
+        long start = System.nanoTime();
+        final Drawing drawing = new Drawing(shapeLibrary, instructions);
+        drawing.setSeed(seed);
+        result.readNanos.addAndGet(System.nanoTime() - start);
+
+        Future<byte[]> encoded = renderPool.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                long start = System.nanoTime();
+                BufferedImage image = drawing.render(scale);
+                long rendered = System.nanoTime();
+                result.renderNanos.addAndGet(rendered - start);
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                pngWriter.write(image, Channels.newChannel(png));
+                result.encodeNanos.addAndGet(System.nanoTime() - rendered);
+                return png.toByteArray();
+            }
+        });
+        byte[] png;
+        try {
+            png = encoded.get();
+        } catch (InterruptedException e) {
+            encoded.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        start = System.nanoTime();
+        String name = instructions.getName();
+        if (name.endsWith(SUFFIX)) {
+            name = name.substring(0, name.length() - SUFFIX.length());
+        }
+        Files.write(new File(directory, name + ".png").toPath(), png);
+        result.writeNanos.addAndGet(System.nanoTime() - start);
+        result.bytes.addAndGet(png.length);
+    }
+
+    /**
+     * Retrieves state of this object
+     *
+     * @return                  the thread counts
+     */
+    public String toString() {
+        return "BatchRenderer[" + renderThreads + " render threads, " + ioThreads + " I/O threads]";
+    }
+
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * What rendering a batch did and where its time went. The stage times add up the time spent in each stage
+     * across all threads, so with the stages overlapping they add up to more than the elapsed time.
+     */
+    public static final class Result {
+        /** drawings written */
+        private final AtomicInteger done = new AtomicInteger();
+        /** the drawings that failed, each with the reason */
+        private final ArrayList<String> failures = new ArrayList<String>();
+        /** time spent reading and parsing instruction files */
+        private final AtomicLong readNanos = new AtomicLong();
+        /** time spent rasterizing */
+        private final AtomicLong renderNanos = new AtomicLong();
+        /** time spent encoding PNGs */
+        private final AtomicLong encodeNanos = new AtomicLong();
+        /** time spent writing PNG files */
+        private final AtomicLong writeNanos = new AtomicLong();
+        /** PNG bytes written */
+        private final AtomicLong bytes = new AtomicLong();
+        /** time from the first job submitted to the last one finished */
+        private long elapsed;
+
+        /**
+         * Retrieves the number of drawings written
+         *
+         * @return                  the count
+         */
+        public int getDone() {
+            return done.get();
+        }
+
+        /**
+         * Retrieves the number of drawings that failed
+         *
+         * @return                  the count
+         */
+        public int getFailed() {
+            return failures.size();
+        }
+
+        /**
+         * Retrieves the drawings that failed
+         *
+         * @return                  each failed drawing's instruction file name and the reason, in file order
+         */
+        public String[] getFailures() {
+            String[] result = new String[failures.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = failures.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * Retrieves the PNG bytes written
+         *
+         * @return                  the byte count
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Retrieves the time from the first job submitted to the last one finished
+         *
+         * @return                  the elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsed;
+        }
+
+        /**
+         * Retrieves the throughput
+         *
+         * @return                  drawings written per second
+         */
+        public double getDrawingsPerSecond() {
+            return elapsed == 0 ? 0 : getDone() / (elapsed / 1e9);
+        }
+
+        /**
+         * Retrieves state of this object
+         *
+         * @return                  the counts, throughput and time spent in each stage
+         */
+        public String toString() {
+            return String.format("%d drawings, %d failed, %.2f s, %.1f drawings/s, %.1f MB/s; "
+                    + "read %.2f s, render %.2f s, encode %.2f s, write %.2f s",
+                    getDone(), getFailed(), elapsed / 1e9, getDrawingsPerSecond(),
+                    elapsed == 0 ? 0 : getBytes() / 1e6 / (elapsed / 1e9), readNanos.get() / 1e9,
+                    renderNanos.get() / 1e9, encodeNanos.get() / 1e9, writeNanos.get() / 1e9);
+        }
+    }
+}
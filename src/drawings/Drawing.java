@@ -1,10 +1,24 @@
 package drawings;
 
 import java.io.File;
+import java.util.Random;
 import java.util.Scanner;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.awt.AlphaComposite;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Color;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 
 /**
  * Represents a drawing rendered from a drawing file
@@ -18,6 +32,10 @@ public class Drawing {
     //**********************************************************************************************
     /** Minimum value for x or y which means a random number should be generated */
     public static final int MIN_VALUE = -2147483648;  
+    /** The resolution a canvas is taken to have at its nominal size, for exports by DPI */
+    public static final int SCREEN_DPI = 96;
+    /** About how many pixels a band of an exported image holds; bands are the full image width */
+    public static final int BAND_PIXELS = 1 << 22;
     
     //**********************************************************************************************
     //          INSTANCE DATA
@@ -28,6 +46,12 @@ public class Drawing {
     private CanvasInstruction canvasInstruction;
     /** collection of draw instructions */
     private ArrayList<DrawInstruction> drawInstructions;
+    /** the name the drawing is known by, taken from its instruction file */
+    private String name;
+    /** seed for random placements, so that every render of the drawing places shapes alike */
+    private long seed = new Random().nextLong();
+    /** the state rotate, repeat and drawFigure run with when called from outside a render */
+    private final Render outside = new Render(new Random());
     
     //**********************************************************************************************
     //          CONSTRUCTORS
@@ -41,35 +65,438 @@ public class Drawing {
      */
     public Drawing(ShapeLibrary shapeLib, File fileToDraw) throws FileNotFoundException{
         this.shapeLibrary = shapeLib;
+        this.name = fileToDraw.getName();
+        RenderMetrics.Recorder parseMetrics = RenderMetrics.recorder(name);
+        long start = parseMetrics == null ? 0 : System.nanoTime();
         Scanner sc = new Scanner(fileToDraw);
         this.canvasInstruction = CanvasInstruction.readFromFile(sc);
         drawInstructions = new ArrayList<DrawInstruction> ();
         while(sc.hasNext()){
             drawInstructions.add(DrawInstruction.readFromFile(sc));
         }
+        if (parseMetrics != null) {
+            parseMetrics.time(RenderMetrics.PARSE, start);
+        }
+    }
+
+    /**
+     * Retrieves the name of the drawing
+     *
+     * @return                  the name of the instruction file the drawing was read from
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Retrieves the width of the drawing's canvas
+     *
+     * @return                  the canvas width at its nominal size
+     */
+    public int getCanvasWidth() {
+        return canvasInstruction.getWidth();
+    }
+
+    /**
+     * Retrieves the height of the drawing's canvas
+     *
+     * @return                  the canvas height at its nominal size
+     */
+    public int getCanvasHeight() {
+        return canvasInstruction.getHeight();
+    }
+
+    /**
+     * Fixes the seed for random placements, so that renders repeat exactly from one run of the program to the next
+     *
+     * @param       seed        the seed for random placements
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
     }
 
     /**
-     * Renders the current drawing
+     * Renders the current drawing in a new window
+     *
+     * @return                  the panel the drawing was rendered on
      */
-    public void draw() {
+    public DrawingPanel draw() {
         DrawingPanel dp = new DrawingPanel(canvasInstruction.getWidth(), canvasInstruction.getHeight());
+        redraw(dp);
+        return dp;
+    }
+
+    /**
+     * Renders the current drawing again on a panel it was rendered on before, replacing what the panel shows and
+     * resizing it if the canvas size has changed
+     *
+     * @param       dp          the panel to render on
+     */
+    public void redraw(DrawingPanel dp) {
+        final long seed = this.seed;
+        // set before clearing, which is what paints the background into an opaque panel's pixels
+        dp.setBackground(canvasInstruction.getColorSolid());
+        if (dp.getWidth() != canvasInstruction.getWidth() || dp.getHeight() != canvasInstruction.getHeight()) {
+            dp.setSize(canvasInstruction.getWidth(), canvasInstruction.getHeight());
+        }
+        dp.clear();
+        ShapeLibrary.Snapshot shapes = shapeLibrary.snapshot();
         Graphics g = dp.getGraphics();
         if (canvasInstruction.getIsGradient()){
-            gradient ( g, dp );
-        } else {
-            dp.setBackground(canvasInstruction.getColorSolid());
+            paintGradient(g);
+        }
+        drawShapes(g, shapes, new Render(seed, true));
+        // the vector copy draws the same version of the shapes, with the same placements, as the raster one,
+        // whatever has changed since; it may be drawn on another thread while this drawing renders again
+        dp.setVectorSource(g2 -> {
+            if (canvasInstruction.getIsGradient()) {
+                paintGradient(g2);
+            }
+            drawShapes(g2, shapes, new Render(seed, true));
+        });
+    }
+
+    /**
+     * Determines whether any instruction of the drawing draws a given shape
+     *
+     * @param       shapeName   the name of the shape
+     * @return                  true if the drawing draws the shape
+     */
+    public boolean usesShape(String shapeName) {
+        for (int i = 0; i < drawInstructions.size(); i++) {
+            if (drawInstructions.get(i).getShapeName().equals(shapeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renders the drawing straight into an image of any size. Shapes are rasterized at the output scale from
+     * the instructions, so a scaled-up export is as sharp as the canvas is at its nominal size.
+     *
+     * @param       scale       the output size relative to the canvas size, e.g. 4 for a 4x export
+     * @return                  the rendered image
+     * @throws                  IllegalArgumentException if the scale is not positive
+     */
+    public BufferedImage render(double scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be positive: " + scale);
+        }
+        int width = (int) Math.ceil(canvasInstruction.getWidth() * scale);
+        int height = (int) Math.ceil(canvasInstruction.getHeight() * scale);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            if (DrawingPanel.isAntiAliasDefault()) {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            }
+            g.setColor(canvasInstruction.getColorSolid());
+            g.fillRect(0, 0, width, height);
+            g.scale(scale, scale);
+            if (canvasInstruction.getIsGradient()) {
+                paintGradient(g);
+            }
+            drawShapes(g, shapeLibrary.snapshot(), new Render(seed, true));
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Renders the drawing at the given scale and saves it as a PNG file. The image is rendered and written a band
+     * of rows at a time, so exports far larger than would fit in memory as a whole are possible.
+     *
+     * @param       file        the file to write
+     * @param       scale       the output size relative to the canvas size
+     * @throws                  IllegalArgumentException if the scale is not positive
+     * @throws                  IOException if the file cannot be written
+     */
+    public void export(File file, double scale) throws IOException {
+        exportBanded(file, scale, 0, 0);
+    }
+
+    /**
+     * Renders the drawing for the given output resolution, taking the canvas to be at SCREEN_DPI, and saves it
+     * as a PNG file that records the resolution. Like export, it renders and writes a band of rows at a time.
+     *
+     * @param       file        the file to write
+     * @param       dpi         the output resolution in dots per inch
+     * @throws                  IllegalArgumentException if the resolution is not positive
+     * @throws                  IOException if the file cannot be written
+     */
+    public void exportAtDpi(File file, int dpi) throws IOException {
+        exportBanded(file, dpi / (double) SCREEN_DPI, dpi, 0);
+    }
+
+    /**
+     * Renders the drawing at the given scale and saves it as a PNG file, a band of rows at a time. Only one band
+     * is ever held in memory, so peak memory follows the band height rather than the image area: a 50000x50000
+     * export in bands of 80 rows needs about 16 MB of pixels. The pixels are the same as those of render at the
+     * same scale.
+     *
+     * @param       file        the file to write
+     * @param       scale       the output size relative to the canvas size
+     * @param       dpi         the resolution to record in the file, or 0 to record none
+     * @param       bandHeight  the number of rows per band, or 0 for bands of about BAND_PIXELS pixels
+     * @throws                  IllegalArgumentException if the scale is not positive or the band height negative
+     * @throws                  IOException if the file cannot be written
+     */
+    public void exportBanded(File file, double scale, int dpi, int bandHeight) throws IOException {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be positive: " + scale);
+        }
+        if (bandHeight < 0) {
+            throw new IllegalArgumentException("band height must not be negative: " + bandHeight);
+        }
+        int width = (int) Math.ceil(canvasInstruction.getWidth() * scale);
+        int height = (int) Math.ceil(canvasInstruction.getHeight() * scale);
+        if (bandHeight == 0) {
+            bandHeight = Math.max(1, BAND_PIXELS / width);
+        }
+        bandHeight = Math.min(bandHeight, height);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            PngWriter.BandWriter out = new PngWriter().open(channel, width, height, dpi);
+            renderBands(scale, bandHeight, (band, top) -> out.write(band));
+            out.finish();
         }
+    }
+
+    /**
+     * Renders the drawing at the given scale into a new canvas held off the Java heap; see renderTo
+     *
+     * @param       scale       the output size relative to the canvas size
+     * @return                  the rendered canvas, which the caller must close
+     * @throws                  IllegalArgumentException if the scale is not positive
+     * @throws                  OutOfMemoryError if there is not enough direct memory for the canvas
+     */
+    public OffHeapCanvas renderOffHeap(double scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be positive: " + scale);
+        }
+        OffHeapCanvas canvas = new OffHeapCanvas((int) Math.ceil(canvasInstruction.getWidth() * scale),
+                (int) Math.ceil(canvasInstruction.getHeight() * scale));
+        boolean rendered = false;
+        try {
+            renderTo(canvas, scale);
+            rendered = true;
+        } finally {
+            if (!rendered) {
+                canvas.close();
+            }
+        }
+        return canvas;
+    }
+
+    /**
+     * Renders the drawing at the given scale into a canvas held off the Java heap, replacing all of its pixels.
+     * The drawing is rendered into a heap image of about BAND_PIXELS pixels, one band of rows at a time, and each
+     * band is copied into the canvas, so the heap holds no more than one band however large the canvas. A canvas
+     * may be reused from one render to the next, which saves allocating and clearing its memory each time. The
+     * pixels are the same as those of render at the same scale.
+     *
+     * @param       canvas      the canvas, which must be the size of the image at this scale
+     * @param       scale       the output size relative to the canvas size
+     * @throws                  IllegalArgumentException if the scale is not positive or the canvas the wrong size
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    public void renderTo(OffHeapCanvas canvas, double scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be positive: " + scale);
+        }
+        int width = (int) Math.ceil(canvasInstruction.getWidth() * scale);
+        int height = (int) Math.ceil(canvasInstruction.getHeight() * scale);
+        if (canvas.getWidth() != width || canvas.getHeight() != height) {
+            throw new IllegalArgumentException("canvas is " + canvas.getWidth() + "x" + canvas.getHeight()
+                    + " but the drawing at this scale is " + width + "x" + height);
+        }
+        if (canvas.isClosed()) {
+            throw new IllegalStateException("canvas has been closed");
+        }
+        try {
+            renderBands(scale, Math.min(height, Math.max(1, BAND_PIXELS / width)), (band, top) -> canvas.setRows(top, band));
+        } catch (IOException e) {
+            // copying bands into the canvas does no I/O
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Renders the drawing at the given scale a band of rows at a time, handing each finished band on
+     *
+     * @param       scale       the output size relative to the canvas size
+     * @param       bandHeight  the number of rows per band, at most the image height
+     * @param       sink        what to do with each band
+     * @throws                  IOException if the sink fails
+     */
+    private void renderBands(double scale, int bandHeight, BandSink sink) throws IOException {
+        int width = (int) Math.ceil(canvasInstruction.getWidth() * scale);
+        int height = (int) Math.ceil(canvasInstruction.getHeight() * scale);
+        Layout layout = new Layout(placeFigures(), scale, width, height, width, bandHeight);
+        BufferedImage band = new BufferedImage(width, bandHeight, BufferedImage.TYPE_INT_ARGB);
+        for (int b = 0; b < layout.getRows(); b++) {
+            int rows = layout.getCellHeight(b);
+            BufferedImage image = rows == bandHeight ? band : band.getSubimage(0, 0, width, rows);
+            layout.paint(image, 0, b);
+            sink.band(image, b * bandHeight);
+        }
+    }
+
+    /**
+     * Places every shape the instructions call for, without drawing any; random placements are the same as in
+     * every render of this drawing
+     *
+     * @return                  the placed figures, in drawing order
+     */
+    ArrayList<Figure> placeFigures() {
+        ArrayList<Figure> placed = new ArrayList<Figure>();
+        // placing is where a render by regions starts, so it is what counts the render
+        drawShapes(null, shapeLibrary.snapshot(), new Render(seed, true, placed));
+        return placed;
+    }
+
+    /**
+     * Writes the drawing as an SVG document. Each shape instruction becomes a polygon, or, if it is repeated or
+     * rotated, one outline definition per shape and scale plus a reference to it for every copy, placed by a
+     * transform. A canvas gradient becomes a linear gradient running in the same direction. Random placements are
+     * the same as in every render of this drawing; rotated copies are placed exactly rather than with the rounding
+     * the raster renderer applies at each step, so they may sit up to a pixel or so apart from the rendered ones.
+     *
+     * @param       out         where to write; a Writer or a StringBuilder, for example
+     * @throws                  IOException if the output cannot be written
+     */
+    public void writeSvg(Appendable out) throws IOException {
+        int width = canvasInstruction.getWidth();
+        int height = canvasInstruction.getHeight();
+        SvgWriter svg = new SvgWriter(out, width, height);
+        svg.background(canvasInstruction.getColorSolid());
+        if (canvasInstruction.getIsGradient()) {
+            writeSvgGradient(svg, width, height);
+        }
+        ShapeLibrary.Snapshot shapes = shapeLibrary.snapshot();
+        Random placements = new Random(seed);
+        for (int i = 0; i < drawInstructions.size(); i++) {
+            DrawInstruction instruction = drawInstructions.get(i);
+            Shape shape = shapes.getShapeByName(instruction.getShapeName());
+            int [] xs = new int [shape.getPointCount()];
+            int [] ys = new int [shape.getPointCount()];
+            shape.scaleInto(instruction.getScalePercent() / 100.0, xs, ys);
+            int startX = instruction.getStartingX();
+            int startY = instruction.getStartingY();
+            boolean randomX = startX == MIN_VALUE;
+            boolean randomY = startY == MIN_VALUE;
+            AffineTransform placed = new AffineTransform();
+            if (!randomX || !randomY) {
+                placed.translate(startX, startY);
+            }
+            Color color = instruction.getColor();
+            boolean filled = instruction.getFilled();
+            if (instruction.getRepeats() <= 1 && instruction.getRotate() <= 1) {
+                for (int k = 0; k < xs.length; k++) {
+                    xs[k] += (int) placed.getTranslateX();
+                    ys[k] += (int) placed.getTranslateY();
+                }
+                svg.polygon(xs, ys, color, filled);
+                continue;
+            }
+            String key = instruction.getShapeName() + "@" + instruction.getScalePercent();
+            if (!svg.isDefined(key)) {
+                svg.define(key, xs, ys);
+            }
+            svg.use(key, placed, color, filled);
+            // the same rotation as rotate() applies, about the same center
+            double angle = instruction.getRotate() > 1 ? instruction.getRotate() : instruction.getRepeatRotate();
+            AffineTransform rotation = AffineTransform.getRotateInstance(angle * (Math.PI / 180),
+                    startX + instruction.getScalePercent() / 2, startY + instruction.getScalePercent() / 2);
+            for (int d = 0; d < instruction.getRepeats() - 1; d++) {
+                if (instruction.getRepeatRotate() > 0) {
+                    placed.preConcatenate(rotation);
+                    svg.use(key, placed, color, filled);
+                }
+                // the same offsets as repeat() takes, drawn from the same sequence of random numbers
+                int offsetX = randomX ? (int) (placements.nextDouble() * width) : instruction.getRepeatOffsetX();
+                int offsetY = randomY ? (int) (placements.nextDouble() * height) : instruction.getRepeatOffsetY();
+                AffineTransform shifted = AffineTransform.getTranslateInstance(offsetX, offsetY);
+                shifted.concatenate(placed);
+                svg.use(key, shifted, color, filled);
+                if (!randomX && !randomY) {
+                    placed = shifted;
+                }
+            }
+            if (instruction.getRotate() > 1) {
+                placed.preConcatenate(rotation);
+                svg.use(key, placed, color, filled);
+            }
+        }
+        svg.finish();
+    }
+
+    /**
+     * Writes the drawing as an SVG file
+     *
+     * @param       file        the file to write
+     * @throws                  IOException if the file cannot be written
+     */
+    public void exportSvg(File file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writeSvg(out);
+        }
+    }
+
+    /**
+     * Writes the canvas gradient as an SVG linear gradient. paintGradient paints bands that advance across the
+     * canvas, each covering everything past its leading edge, so the color changes along the normal to the bands;
+     * the gradient runs along that normal from the canvas corner where it starts to the one where it ends.
+     *
+     * @param       svg         the SVG being written
+     * @param       width       the canvas width
+     * @param       height      the canvas height
+     * @throws                  IOException if the output cannot be written
+     */
+    private void writeSvgGradient(SvgWriter svg, int width, int height) throws IOException {
+        double bandAngle;
+        switch (canvasInstruction.getGradientDirection()) {
+            case 0  : bandAngle = 0; break;
+            case 1  : bandAngle = -90; break;
+            case 2  : bandAngle = -15; break;
+            // paintGradient turns these bands by 110 degrees, which leaves them advancing along their ends
+            default : bandAngle = 20; break;
+        }
+        double normalX = -Math.sin(bandAngle * (Math.PI / 180));
+        double normalY = Math.cos(bandAngle * (Math.PI / 180));
+        double[] corners = {0, width * normalX, height * normalY, width * normalX + height * normalY};
+        double first = Math.min(Math.min(corners[0], corners[1]), Math.min(corners[2], corners[3]));
+        double last = Math.max(Math.max(corners[0], corners[1]), Math.max(corners[2], corners[3]));
+        svg.gradient(canvasInstruction.getColorStart(), canvasInstruction.getColorEnd(),
+                first * normalX, first * normalY, last * normalX, last * normalY);
+    }
+
+    /**
+     * Draws every shape instruction; random placements repeat those of every other render of this drawing
+     *
+     * @param   g           the Graphics object to draw with
+     * @param   shapes      the version of the shape library to draw from, the same for the whole render
+     * @param   render      the state of the render
+     */
+    private void drawShapes(Graphics g, ShapeLibrary.Snapshot shapes, Render render) {
+        RenderMetrics.Recorder metrics = render.metrics;
         for(int i = 0; i < drawInstructions.size(); i++){//foreach
-            Shape shape = shapeLibrary.getShapeByName(drawInstructions.get(i).getShapeName());
+            long start = 0;
+            if (metrics != null) {
+                metrics.shape(drawInstructions.get(i).getShapeName());
+                start = System.nanoTime();
+            }
+            Shape shape = shapes.getShapeByName(drawInstructions.get(i).getShapeName());
+            if (metrics != null) {
+                metrics.time(RenderMetrics.RESOLVE, start);
+                start = System.nanoTime();
+            }
             int [] xs = new int [shape.getPointCount()];
             int [] ys = new int [shape.getPointCount()];
             double scalePercent = drawInstructions.get(i).getScalePercent()/100.0;
-            for(int j = 0; j < shape.getPointCount(); j++){
-                xs[j] = (int)(shape.getPoint(j).getX() * scalePercent);
-                ys[j] = (int)(shape.getPoint(j).getY() * scalePercent);
-            }
-            g.setColor(drawInstructions.get(i).getColor());
+            shape.scaleInto(scalePercent, xs, ys);
             int startX = drawInstructions.get(i).getStartingX();
             int startY = drawInstructions.get(i).getStartingY();
             if (startX != MIN_VALUE || startY != MIN_VALUE) {
@@ -78,18 +505,25 @@ public class Drawing {
                     ys[k] += startY;
                 }
             }
-            drawFigure(g, xs, ys, i);  
+            if (metrics != null) {
+                metrics.time(RenderMetrics.TRANSFORM, start);
+                metrics.count(RenderMetrics.VERTICES, xs.length);
+            }
+            if (render.figures == null) {
+                g.setColor(drawInstructions.get(i).getColor());
+            }
+            drawFigure(g, xs, ys, i, render);  
             int numRepeat = drawInstructions.get(i).getRepeats();
             if (numRepeat > 1) {
                 for(int d = 0; d < numRepeat-1; d++){
                     if (drawInstructions.get(i).getRepeatRotate() > 0){
-                        rotate(startX,startY,xs,ys,g,i);
+                        rotate(startX,startY,xs,ys,g,i,render);
                     }
-                    repeat(g, startX, startY, xs, ys, i);
+                    repeat(g, startX, startY, xs, ys, i, render);
                 }
             }
             if (drawInstructions.get(i).getRotate() > 1) {
-                rotate(startX,startY,xs,ys,g,i);
+                rotate(startX,startY,xs,ys,g,i,render);
             }
         }
     }
@@ -105,6 +539,23 @@ public class Drawing {
      * @param   i           the index of figure in draw instruction list
      */
     public void rotate(int startX, int startY,int [] xs,int [] ys, Graphics g,int i){
+        rotate(startX, startY, xs, ys, g, i, outside);
+    }
+
+    /**
+     * Rotates figure around the origin as part of a render
+     *
+     * @param   startX      the starting x coordinate at which the shape will be drawn
+     * @param   startY      the starting y coordinate at which the shape will be drawn
+     * @param   xs          the array of x-coordinates
+     * @param   ys          the array of y-coordinates
+     * @param   g           the Graphics object renefence
+     * @param   i           the index of figure in draw instruction list
+     * @param   render      the state of the render
+     */
+    private void rotate(int startX, int startY,int [] xs,int [] ys, Graphics g,int i, Render render){
+        RenderMetrics.Recorder metrics = render.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
         double angle;
         if(drawInstructions.get(i).getRotate() > 1){
             angle = drawInstructions.get(i).getRotate();
@@ -120,11 +571,15 @@ public class Drawing {
             xs[k] = newX;
             ys[k] = newY;
         }
-        drawFigure(g, xs, ys, i);
+        if (metrics != null) {
+            metrics.time(RenderMetrics.TRANSFORM, start);
+            metrics.count(RenderMetrics.VERTICES, xs.length);
+        }
+        drawFigure(g, xs, ys, i, render);
     }
     
     /**
-     * Draws figure based on filled or not figure type
+     * Draws figure based on filled or not figure type, in the Graphics object's current color
      *
      * @param   xs          the array of x-coordinates
      * @param   ys          the array of y-coordinates
@@ -138,6 +593,66 @@ public class Drawing {
             g.drawPolygon(xs,ys,xs.length);
         }
     }
+
+    /**
+     * Draws figure as part of a render, counting it once in the render's metrics; a render that places figures
+     * records the figure instead, and its cells time the rasterizing when they are painted
+     *
+     * @param   g           the Graphics object renefence
+     * @param   xs          the array of x-coordinates
+     * @param   ys          the array of y-coordinates
+     * @param   i           the index of figure in draw instruction list
+     * @param   render      the state of the render
+     */
+    private void drawFigure(Graphics g, int [] xs, int [] ys, int i, Render render){
+        RenderMetrics.Recorder metrics = render.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        if (render.figures != null) {
+            render.figures.add(new Figure(i, xs.clone(), ys.clone()));
+        } else {
+            drawFigure(g, xs, ys, i);
+        }
+        if (metrics != null) {
+            if (render.figures == null) {
+                metrics.time(RenderMetrics.RASTER, start);
+            }
+            metrics.count(RenderMetrics.INSTANCES, 1);
+            metrics.count(RenderMetrics.PIXELS, estimatePixels(xs, ys, drawInstructions.get(i).getFilled()));
+        }
+    }
+
+    /**
+     * Estimates how many canvas pixels a polygon touches: its clipped bounding box when filled,
+     * or the length of its outline in pixel steps when not
+     *
+     * @param   xs          the array of x-coordinates
+     * @param   ys          the array of y-coordinates
+     * @param   filled      whether the polygon is filled
+     * @return              the estimated pixel count
+     */
+    private long estimatePixels(int [] xs, int [] ys, boolean filled){
+        if (xs.length == 0) {
+            return 0;
+        }
+        if (filled) {
+            int minX = xs[0], maxX = xs[0], minY = ys[0], maxY = ys[0];
+            for(int k = 1; k < xs.length; k++){
+                minX = Math.min(minX, xs[k]);
+                maxX = Math.max(maxX, xs[k]);
+                minY = Math.min(minY, ys[k]);
+                maxY = Math.max(maxY, ys[k]);
+            }
+            long w = Math.min(maxX, canvasInstruction.getWidth()) - Math.max(minX, 0);
+            long h = Math.min(maxY, canvasInstruction.getHeight()) - Math.max(minY, 0);
+            return (w > 0 && h > 0) ? w * h : 0;
+        }
+        long steps = 0;
+        for(int k = 0; k < xs.length; k++){
+            int next = (k + 1) % xs.length;
+            steps += Math.max(Math.abs((long)xs[next] - xs[k]), Math.abs((long)ys[next] - ys[k]));
+        }
+        return steps;
+    }
     
     /**
      * Repeats figure on canvas with either certain offsets or random ones
@@ -150,19 +665,41 @@ public class Drawing {
      * @param   i           the index of figure in draw instruction list
      */
     public void repeat(Graphics g, int startX, int startY,int [] xs, int [] ys, int i ){
+        repeat(g, startX, startY, xs, ys, i, outside);
+    }
+
+    /**
+     * Repeats figure as part of a render, taking random offsets from the render's sequence
+     *
+     * @param   g           the Graphics object renefence
+     * @param   startX      the starting x coordinate at which the shape will be drawn
+     * @param   startY      the starting y coordinate at which the shape will be drawn
+     * @param   xs          the array of x-coordinates
+     * @param   ys          the array of y-coordinates
+     * @param   i           the index of figure in draw instruction list
+     * @param   render      the state of the render
+     */
+    private void repeat(Graphics g, int startX, int startY,int [] xs, int [] ys, int i, Render render){
+        RenderMetrics.Recorder metrics = render.metrics;
+        Random random = render.random;
+        long start = metrics == null ? 0 : System.nanoTime();
         int repeatOffSetX = drawInstructions.get(i).getRepeatOffsetX();
         int repeatOffSetY = drawInstructions.get(i).getRepeatOffsetY();
         if (startX == MIN_VALUE) {
-            repeatOffSetX = (int)(Math.random() * canvasInstruction.getWidth());
+            repeatOffSetX = (int)(random.nextDouble() * canvasInstruction.getWidth());
         }
         if (startY == MIN_VALUE) {
-            repeatOffSetY = (int)(Math.random() * canvasInstruction.getHeight());
+            repeatOffSetY = (int)(random.nextDouble() * canvasInstruction.getHeight());
         }
         for(int k=0; k < xs.length; k++){
             xs[k] += repeatOffSetX;
             ys[k] += repeatOffSetY;
         }
-        drawFigure(g, xs, ys, i);
+        if (metrics != null) {
+            metrics.time(RenderMetrics.TRANSFORM, start);
+            metrics.count(RenderMetrics.VERTICES, xs.length);
+        }
+        drawFigure(g, xs, ys, i, render);
         if (startX == MIN_VALUE || startY == MIN_VALUE) {
             for(int k=0; k < xs.length; k++){
                 xs[k] -= repeatOffSetX;
@@ -178,6 +715,16 @@ public class Drawing {
      * @param   dp          the DrawingPanel object renefence
      */
     public void gradient (Graphics g, DrawingPanel dp ) {
+        paintGradient(g);
+        dp.setBackground(canvasInstruction.getColorSolid());
+    }
+
+    /**
+     * Paints the canvas gradient
+     *
+     * @param   g           the Graphics object renefence
+     */
+    private void paintGradient (Graphics g) {
         Color colorStart = canvasInstruction.getColorStart();
         Color colorEnd = canvasInstruction.getColorEnd();
         int steps = 100;
@@ -236,19 +783,392 @@ public class Drawing {
                 default : /* do nothing */
             }
         }
-        dp.setBackground(canvasInstruction.getColorSolid());
     } 
     
+    /**
+     * Folds a value into a 64-bit FNV-1a style hash
+     *
+     * @param   hash        the hash so far
+     * @param   value       the value to fold in
+     * @return              the new hash
+     */
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 64; i += 8) {
+            hash = (hash ^ (value >>> i & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
     /**
      * Retrieves state of this object
      * 
      * @return                          the state of this object
      */
     public String toString () {
-        String result = canvasInstruction.toString() + "\n";
+        StringBuilder result = new StringBuilder();
+        try {
+            writeTo(result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes the state of this object to the given output, instruction by instruction, so that
+     * even very large drawings are dumped in linear time without building the whole text in memory
+     * 
+     * @param       out         where to write; a Writer or a StringBuilder, for example
+     * @throws                  IOException if the output cannot be written
+     */
+    public void writeTo(Appendable out) throws IOException {
+        out.append(canvasInstruction.toString()).append("\n");
         for (int i = 0; i < drawInstructions.size(); i++) {
-            result += drawInstructions.get(i).toString();
+            out.append(drawInstructions.get(i).toString());
+        }
+    }
+
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * Receives the bands of a banded render, top to bottom
+     */
+    private interface BandSink {
+        /**
+         * Takes one finished band; the image is reused for the next band once this returns
+         *
+         * @param       band        the band's pixels, as wide as the image
+         * @param       top         the image row the band starts at
+         * @throws                  IOException if the band cannot be written
+         */
+        void band(BufferedImage band, int top) throws IOException;
+    }
+
+    /**
+     * The placed figures of the drawing at one scale, indexed by the cells of a grid over the image, so that any
+     * cell can be rendered on its own, by any thread, drawing only the figures that reach it. A band is a cell as
+     * wide as the image, and a tile a square one.
+     */
+    class Layout {
+        /** the image size relative to the canvas size */
+        private final double scale;
+        /** the image width */
+        private final int width;
+        /** the image height */
+        private final int height;
+        /** the width of a cell; those in the last column may be narrower */
+        private final int cellWidth;
+        /** the height of a cell; those in the last row may be shorter */
+        private final int cellHeight;
+        /** the number of columns of cells */
+        private final int columns;
+        /** the number of rows of cells */
+        private final int rows;
+        /** the placed figures */
+        private final ArrayList<Figure> placed;
+        /** the figures reaching cell c are members[cellStart[c]] up to members[cellStart[c + 1]], in drawing order */
+        private final int[] cellStart;
+        /** indexes into placed, cell by cell */
+        private final int[] members;
+
+        /**
+         * Constructor
+         *
+         * @param       placed      the placed figures, as placeFigures returns them
+         * @param       scale       the image size relative to the canvas size
+         * @param       width       the image width
+         * @param       height      the image height
+         * @param       cellWidth   the width of a cell
+         * @param       cellHeight  the height of a cell
+         */
+        Layout(ArrayList<Figure> placed, double scale, int width, int height, int cellWidth, int cellHeight) {
+            this.placed = placed;
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+            columns = (width + cellWidth - 1) / cellWidth;
+            rows = (height + cellHeight - 1) / cellHeight;
+            int cells = columns * rows;
+
+            int[][] ranges = new int[placed.size()][4];
+            cellStart = new int[cells + 1];
+            for (int f = 0; f < placed.size(); f++) {
+                int[] range = ranges[f];
+                placed.get(f).cells(scale, width, height, cellWidth, cellHeight, range);
+                for (int r = range[2]; r <= range[3]; r++) {
+                    for (int c = range[0]; c <= range[1]; c++) {
+                        cellStart[r * columns + c + 1]++;
+                    }
+                }
+            }
+            for (int c = 0; c < cells; c++) {
+                cellStart[c + 1] += cellStart[c];
+            }
+            members = new int[cellStart[cells]];
+            int[] next = Arrays.copyOf(cellStart, cells);
+            for (int f = 0; f < placed.size(); f++) {
+                int[] range = ranges[f];
+                for (int r = range[2]; r <= range[3]; r++) {
+                    for (int c = range[0]; c <= range[1]; c++) {
+                        members[next[r * columns + c]++] = f;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Retrieves the number of columns of cells
+         *
+         * @return                  the number of columns
+         */
+        int getColumns() {
+            return columns;
+        }
+
+        /**
+         * Retrieves the number of rows of cells
+         *
+         * @return                  the number of rows
+         */
+        int getRows() {
+            return rows;
+        }
+
+        /**
+         * Retrieves the width of the cells in a column
+         *
+         * @param       column      the column
+         * @return                  the width in pixels
+         */
+        int getCellWidth(int column) {
+            return Math.min(cellWidth, width - column * cellWidth);
+        }
+
+        /**
+         * Retrieves the height of the cells in a row
+         *
+         * @param       row         the row
+         * @return                  the height in pixels
+         */
+        int getCellHeight(int row) {
+            return Math.min(cellHeight, height - row * cellHeight);
+        }
+
+        /**
+         * Determines whether a cell shows nothing but the solid background
+         *
+         * @param       column      the cell's column
+         * @param       row         the cell's row
+         * @return                  true if no figure reaches the cell and the canvas has no gradient
+         */
+        boolean isBlank(int column, int row) {
+            int cell = row * columns + column;
+            return cellStart[cell] == cellStart[cell + 1] && !canvasInstruction.getIsGradient();
+        }
+
+        /**
+         * Computes a 64-bit fingerprint of everything that decides a cell's pixels: its place and size, the scale,
+         * the canvas background and gradient, the antialiasing setting, and the color, fill and corners of each
+         * figure reaching it. Cells with equal keys render alike, so a cell whose key has not changed since it was
+         * last rendered need not be rendered again.
+         *
+         * @param       column      the cell's column
+         * @param       row         the cell's row
+         * @return                  the cell's key
+         */
+        long key(int column, int row) {
+            long key = 0xcbf29ce484222325L;
+            key = mix(key, Double.doubleToLongBits(scale));
+            key = mix(key, (long) column * cellWidth << 32 | row * cellHeight);
+            key = mix(key, (long) getCellWidth(column) << 32 | getCellHeight(row));
+            key = mix(key, DrawingPanel.isAntiAliasDefault() ? 1 : 0);
+            key = mix(key, canvasInstruction.getColorSolid().getRGB());
+            if (canvasInstruction.getIsGradient()) {
+                key = mix(key, canvasInstruction.getGradientDirection());
+                key = mix(key, (long) canvasInstruction.getColorStart().getRGB() << 32
+                        | canvasInstruction.getColorEnd().getRGB() & 0xffffffffL);
+                key = mix(key, (long) canvasInstruction.getWidth() << 32 | canvasInstruction.getHeight());
+            }
+            int cell = row * columns + column;
+            for (int m = cellStart[cell]; m < cellStart[cell + 1]; m++) {
+                Figure figure = placed.get(members[m]);
+                DrawInstruction instruction = drawInstructions.get(figure.instruction);
+                key = mix(key, (long) instruction.getColor().getRGB() << 1 | (instruction.getFilled() ? 1 : 0));
+                for (int k = 0; k < figure.xs.length; k++) {
+                    key = mix(key, (long) figure.xs[k] << 32 | figure.ys[k] & 0xffffffffL);
+                }
+            }
+            return key;
+        }
+
+        /**
+         * Renders one cell, replacing every pixel of an image of the cell's size
+         *
+         * @param       image       the TYPE_INT_ARGB image to render into
+         * @param       column      the cell's column
+         * @param       row         the cell's row
+         */
+        void paint(BufferedImage image, int column, int row) {
+            int w = getCellWidth(column);
+            int h = getCellHeight(row);
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.Clear);
+                g.fillRect(0, 0, w, h);
+                g.setComposite(AlphaComposite.SrcOver);
+                if (DrawingPanel.isAntiAliasDefault()) {
+                    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                }
+                g.setColor(canvasInstruction.getColorSolid());
+                g.fillRect(0, 0, w, h);
+                // the cell shows its part of the image render would produce at this scale
+                g.translate(-column * cellWidth, -row * cellHeight);
+                g.scale(scale, scale);
+                if (canvasInstruction.getIsGradient()) {
+                    paintGradient(g);
+                }
+                // the figures were counted when they were placed, so a cell records only its rasterizing time;
+                // cells may be painted on several threads at once, so each paint has a recorder of its own
+                RenderMetrics.Recorder metrics = RenderMetrics.recorder(name);
+                int cell = row * columns + column;
+                for (int m = cellStart[cell]; m < cellStart[cell + 1]; m++) {
+                    Figure figure = placed.get(members[m]);
+                    DrawInstruction instruction = drawInstructions.get(figure.instruction);
+                    long start = metrics == null ? 0 : System.nanoTime();
+                    g.setColor(instruction.getColor());
+                    drawFigure(g, figure.xs, figure.ys, figure.instruction);
+                    if (metrics != null) {
+                        metrics.shape(instruction.getShapeName());
+                        metrics.time(RenderMetrics.RASTER, start);
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+    }
+
+    /**
+     * The state of one render: its own sequence of random placements, its own metrics recorder and, when it only
+     * places figures, where it puts them. Renders of the same drawing may run on different threads at once, a
+     * redraw on one and a vector export on another say, so this state is made afresh for each render and passed
+     * down rather than kept in the drawing. Calls from outside a render all share one state with no recorder,
+     * which is safe because Random is.
+     */
+    private class Render {
+        /** source of random placements, starting from the drawing's seed */
+        final Random random;
+        /** metrics recorder for the render; null when metrics are disabled */
+        final RenderMetrics.Recorder metrics;
+        /** where figures are recorded in place of being drawn; null for a render that draws them */
+        final ArrayList<Figure> figures;
+
+        /**
+         * Constructor for the state of calls from outside a render, which take random offsets from a sequence of
+         * their own, as they always have, and record no metrics
+         *
+         * @param       random      the source of random offsets
+         */
+        Render(Random random) {
+            this.random = random;
+            this.metrics = null;
+            this.figures = null;
+        }
+
+        /**
+         * Constructor for a render that draws its figures
+         *
+         * @param       seed        the seed for random placements
+         * @param       counted     whether this starts a render of the whole drawing, to be counted as one
+         */
+        Render(long seed, boolean counted) {
+            this(seed, counted, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param       seed        the seed for random placements
+         * @param       counted     whether this starts a render of the whole drawing, to be counted as one
+         * @param       figures     where to record figures in place of drawing them, or null to draw them
+         */
+        Render(long seed, boolean counted, ArrayList<Figure> figures) {
+            this.figures = figures;
+            random = new Random(seed);
+            metrics = RenderMetrics.recorder(name);
+            if (counted && metrics != null) {
+                metrics.count(RenderMetrics.RENDERS, 1);
+            }
+        }
+    }
+
+    /**
+     * One placed copy of a shape, as recorded for rendering by regions
+     */
+    static class Figure {
+        /** the index of the instruction the figure was drawn for */
+        final int instruction;
+        /** the x-coordinates of the figure's corners on the canvas */
+        final int [] xs;
+        /** the y-coordinates of the figure's corners on the canvas */
+        final int [] ys;
+
+        /**
+         * Constructor
+         *
+         * @param       instruction     the index of the instruction the figure was drawn for
+         * @param       xs              the x-coordinates of the figure's corners on the canvas
+         * @param       ys              the y-coordinates of the figure's corners on the canvas
+         */
+        Figure(int instruction, int [] xs, int [] ys) {
+            this.instruction = instruction;
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        /**
+         * Works out which cells of a grid over an image the figure can touch, from its bounding box widened by the
+         * reach of a scaled outline and of antialiasing
+         *
+         * @param       scale       the image size relative to the canvas size
+         * @param       width       the image width
+         * @param       height      the image height
+         * @param       cellWidth   the width of a cell
+         * @param       cellHeight  the height of a cell
+         * @param       range       where to put the first and last column and the first and last row touched;
+         *                          a figure entirely off the image gets a first column past the last
+         */
+        void cells(double scale, int width, int height, int cellWidth, int cellHeight, int[] range) {
+            range[0] = 1;
+            range[1] = 0;
+            range[2] = 1;
+            range[3] = 0;
+            if (xs.length == 0) {
+                return;
+            }
+            int minX = xs[0], maxX = xs[0], minY = ys[0], maxY = ys[0];
+            for (int k = 1; k < xs.length; k++) {
+                minX = Math.min(minX, xs[k]);
+                maxX = Math.max(maxX, xs[k]);
+                minY = Math.min(minY, ys[k]);
+                maxY = Math.max(maxY, ys[k]);
+            }
+            int margin = (int) Math.ceil(scale) + 1;
+            double left = Math.floor(minX * scale) - margin;
+            double right = Math.ceil(maxX * scale) + margin;
+            double top = Math.floor(minY * scale) - margin;
+            double bottom = Math.ceil(maxY * scale) + margin;
+            if (right < 0 || left >= width || bottom < 0 || top >= height) {
+                return;
+            }
+            range[0] = (int) Math.max(0, left) / cellWidth;
+            range[1] = (int) Math.min(width - 1, right) / cellWidth;
+            range[2] = (int) Math.max(0, top) / cellHeight;
+            range[3] = (int) Math.min(height - 1, bottom) / cellHeight;
         }
-        return result;
     }
 }
@@ -67,11 +67,20 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.PixelGrabber;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.Exception;
@@ -79,21 +88,42 @@ import java.lang.Integer;
 import java.lang.InterruptedException;
 import java.lang.Math;
 import java.lang.Object;
-import java.lang.OutOfMemoryError;
 import java.lang.SecurityException;
 import java.lang.String;
 import java.lang.System;
 import java.lang.Thread;
+import java.lang.reflect.Array;
 import java.net.URL;
 import java.net.NoRouteToHostException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -288,16 +318,17 @@ import javax.swing.filechooser.FileFilter;
  * @author Marty Stepp, Stanford University, and Stuart Reges, University of Washington
  * @version 4.04, 2016/08/17 (BJP 4th edition)
  */
-public final class DrawingPanel implements ImageObserver {
+public final class DrawingPanel implements ImageObserver, AutoCloseable {
     // class constants
     private static final Color GRID_LINE_COLOR      = new Color(64, 64, 64, 128);   // color of grid lines on panel
     private static final Object LOCK                = new Object();                 // object used for concurrency locking
     
     private static final boolean SAVE_SCALED_IMAGES = true;    // if true, when panel is zoomed, saves images at that zoom factor
     private static final int DELAY                  = 100;     // delay between repaints in millis
-    private static final int MAX_FRAMES             = 100;     // max animation frames
     private static final int MAX_SIZE               = 10000;   // max width/height
     private static final int GRID_LINES_PX_GAP_DEFAULT = 10;   // default px between grid lines
+    private static final int PARALLEL_PIXELS        = 1 << 18; // bulk pixel operations go row-parallel from this many pixels
+    private static final int SAVE_PNG_LEVEL         = 4;       // deflate level of saved PNG files (ImageIO's default)
     
     private static final String VERSION             = "4.04 (2016/08/17)";
     private static final String ABOUT_MESSAGE       = "DrawingPanel\n"
@@ -351,9 +382,15 @@ public final class DrawingPanel implements ImageObserver {
     /** An internal constant for setting system properties; clients should not use this. */
     public static final String HEADLESS_PROPERTY    = "drawingpanel.headless";
 
+    /** An internal constant for setting system properties; clients should not use this. */
+    public static final String IDLE_THREAD_PROPERTY = "drawingpanel.idlethread";
+
     /** An internal constant for setting system properties; clients should not use this. */
     public static final String MULTIPLE_PROPERTY    = "drawingpanel.multiple";
 
+    /** An internal constant for setting system properties; clients should not use this. */
+    public static final String PNG_THREADS_PROPERTY = "drawingpanel.pngthreads";
+
     /** An internal constant for setting system properties; clients should not use this. */
     public static final String SAVE_PROPERTY        = "drawingpanel.save";
     
@@ -367,6 +404,7 @@ public final class DrawingPanel implements ImageObserver {
     private static Boolean headless = null;
     private static Boolean antiAliasDefault = true;
     private static Thread shutdownThread = null;
+    private static ExecutorService gifFramePool = null;   // compresses GIF frames; created on first use
     
     // static class initializer - sets up thread to close program if
     // last DrawingPanel is closed
@@ -429,6 +467,120 @@ public final class DrawingPanel implements ImageObserver {
         }
     }
     
+    /*
+     * Helper that throws an IllegalArgumentException if the given image type
+     * is not one that a panel can be drawn in.
+     */
+    private static void ensureImageType(int imageType) {
+        if (imageType != BufferedImage.TYPE_INT_ARGB
+                && imageType != BufferedImage.TYPE_INT_ARGB_PRE
+                && imageType != BufferedImage.TYPE_INT_RGB
+                && imageType != BufferedImage.TYPE_BYTE_GRAY) {
+            throw new IllegalArgumentException("unsupported image type: " + imageType);
+        }
+    }
+    
+    /*
+     * Helper that throws an IllegalArgumentException if the given rectangle
+     * does not lie entirely within the panel.
+     */
+    private void ensureRegion(int x, int y, int w, int h) {
+        ensureInRange("x", x, 0, getWidth());
+        ensureInRange("y", y, 0, getHeight());
+        ensureInRange("w", w, 0, getWidth() - x);
+        ensureInRange("h", h, 0, getHeight() - y);
+    }
+    
+    /*
+     * Returns the int array backing the image if it holds exactly one packed
+     * ARGB integer per pixel with no padding, or null if pixels must go
+     * through getRGB/setRGB instead.
+     */
+    private int[] pixelData() {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        return (int[]) rawPixelData(image);
+    }
+    
+    /*
+     * Returns the array backing the given image if it holds exactly one int
+     * or one byte per pixel, row after row with no padding; otherwise null.
+     */
+    private static Object rawPixelData(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                || raster.getParent() != null
+                || buffer.getSize() != img.getWidth() * img.getHeight()) {
+            return null;
+        } else if (buffer instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            return ((DataBufferInt) buffer).getData();
+        } else if (buffer instanceof DataBufferByte && raster.getNumBands() == 1
+                && raster.getSampleModel() instanceof ComponentSampleModel) {
+            return ((DataBufferByte) buffer).getData();
+        }
+        return null;
+    }
+    
+    /*
+     * Copies the pixels of one image onto another of the same size, as
+     * AlphaComposite.Src would.  Images of the same format are copied array to
+     * array, an opaque int image goes into an ARGB one by setting each pixel's
+     * alpha, gray images go through getRGB/setRGB rows, and anything else goes
+     * through Java2D.
+     */
+    private static void blit(BufferedImage src, BufferedImage dst) {
+        Object from = rawPixelData(src);
+        Object to = rawPixelData(dst);
+        if (from != null && to != null && src.getType() == dst.getType()) {
+            System.arraycopy(from, 0, to, 0, Array.getLength(from));
+        } else if (from instanceof int[] && to instanceof int[]
+                && src.getType() == BufferedImage.TYPE_INT_RGB
+                && (dst.getType() == BufferedImage.TYPE_INT_ARGB
+                    || dst.getType() == BufferedImage.TYPE_INT_ARGB_PRE)) {
+            int[] rgb = (int[]) from;
+            int[] argb = (int[]) to;
+            for (int i = 0; i < rgb.length; i++) {
+                argb[i] = rgb[i] | PIXEL_ALPHA;
+            }
+        } else if (src.getType() == BufferedImage.TYPE_BYTE_GRAY
+                || dst.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            // Java2D's gray loops disagree with getRGB about the gray color
+            // space, so convert through getRGB/setRGB a row at a time
+            int w = src.getWidth();
+            int[] line = new int[w];
+            for (int row = 0; row < src.getHeight(); row++) {
+                src.getRGB(0, row, w, 1, line, 0, w);
+                dst.setRGB(0, row, w, 1, line, 0, w);
+            }
+        } else {
+            Graphics2D g = dst.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(src, 0, 0, null);
+            g.dispose();
+        }
+    }
+    
+    /*
+     * Copies one full row of the image to or from the given array.
+     */
+    private void copyRow(int row, int[] line, boolean toImage) {
+        int[] data = pixelData();
+        if (data == null) {
+            if (toImage) {
+                image.setRGB(0, row, width, 1, line, 0, width);
+            } else {
+                image.getRGB(0, row, width, 1, line, 0, width);
+            }
+        } else if (toImage) {
+            System.arraycopy(line, 0, data, row * width, width);
+        } else {
+            System.arraycopy(data, row * width, line, 0, width);
+        }
+    }
+    
     /**
      * Returns the alpha (opacity) component of the given RGB pixel from 0-255.
      * Often used in conjunction with the methods getPixelRGB, setPixelRGB, etc.
@@ -525,6 +677,58 @@ public final class DrawingPanel implements ImageObserver {
         }
     }
     
+    /*
+     * Returns how many threads PNG images are compressed with when saved:
+     * the PNG_THREADS_PROPERTY if it is set to a positive number, all
+     * available processors if it is set to anything else, and 1 if unset.
+     */
+    private static int pngThreads() {
+        try {
+            String prop = System.getProperty(PNG_THREADS_PROPERTY);
+            if (prop == null) {
+                return 1;
+            }
+            try {
+                int threads = Integer.parseInt(prop.trim());
+                if (threads > 0) {
+                    return threads;
+                }
+            } catch (NumberFormatException e) {
+                // fall through to "all processors"
+            }
+            return Runtime.getRuntime().availableProcessors();
+        } catch (SecurityException e) {
+            if (DEBUG) System.out.println("Security exception when trying to read " + PNG_THREADS_PROPERTY);
+            return 1;
+        }
+    }
+    
+    /*
+     * Returns how many GIF frames are quantized and compressed at once: one
+     * per available processor.
+     */
+    private static int gifFrameThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    /*
+     * Returns the pool GIF frames are quantized and compressed on, shared by
+     * every panel and encoder so that no threads are started per frame or per
+     * file. Its threads are daemons and stay for the life of the program.
+     */
+    private static synchronized ExecutorService gifFramePool() {
+        if (gifFramePool == null) {
+            gifFramePool = Executors.newFixedThreadPool(gifFrameThreads(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Gif89Encoder-frame");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return gifFramePool;
+    }
+    
     /**
      * Returns true if DrawingPanel instances should anti-alias (smooth) their graphics.
      * By default this is true, but it can be set to false using the ANTIALIAS_PROPERTY.
@@ -561,6 +765,17 @@ public final class DrawingPanel implements ImageObserver {
      * @return true if main thread is still running
      */
     public static boolean mainIsActive() {
+        Thread main = findMainThread();
+        
+        // didn't find a running main thread; guess that main is done running
+        return main != null && main.isAlive();
+    }
+    
+    /*
+     * Returns the program's main thread, or null if it cannot be found
+     * in the current thread group.
+     */
+    private static Thread findMainThread() {
         ThreadGroup group = Thread.currentThread().getThreadGroup();
         int activeCount = group.activeCount();
         
@@ -569,18 +784,28 @@ public final class DrawingPanel implements ImageObserver {
         group.enumerate(threads);
         for (int i = 0; i < threads.length; i++) {
             Thread thread = threads[i];
+            if (thread == null) {
+                continue;
+            }
             String name = String.valueOf(thread.getName()).toLowerCase();
-            if (DEBUG) System.out.println("    DrawingPanel.mainIsActive(): " + thread.getName() + ", priority=" + thread.getPriority() + ", alive=" + thread.isAlive() + ", stack=" + java.util.Arrays.toString(thread.getStackTrace()));
+            if (DEBUG) System.out.println("    DrawingPanel.findMainThread(): " + thread.getName() + ", priority=" + thread.getPriority() + ", alive=" + thread.isAlive() + ", stack=" + java.util.Arrays.toString(thread.getStackTrace()));
             if (name.indexOf("main") >= 0 || 
                 name.indexOf("testrunner-assignmentrunner") >= 0) {
                 // found main thread!
                 // (TestRunnerApplet's main runner also counts as "main" thread)
-                return thread.isAlive();
+                return thread;
             }
         }
-        
-        // didn't find a running main thread; guess that main is done running
-        return false;
+        return null;
+    }
+    
+    /*
+     * Returns whether the idle thread that exits the program once main is done
+     * and every panel is closed should be started; it is unless the
+     * IDLE_THREAD_PROPERTY is set to a false value.
+     */
+    private static boolean idleThreadEnabled() {
+        return !hasProperty(IDLE_THREAD_PROPERTY) || propertyIsTrue(IDLE_THREAD_PROPERTY);
     }
     
     /*
@@ -715,16 +940,21 @@ public final class DrawingPanel implements ImageObserver {
     
     // fields
     private ActionListener actionListener;
-    private List<ImageFrame> frames;       // stores frames of animation to save
+    private File animationFile;            // temp file receiving frames of animation as they're captured
+    private OutputStream animationStream;  // open stream onto animationFile
     private boolean animated = false;      // changes to true if sleep() is called
     private boolean antialias = isAntiAliasDefault();   // true to smooth corners of shapes
     private boolean gridLines = false;     // grid lines every 10px on screen
     private boolean hasBeenSaved = false;  // set true once saved to file (to avoid re-saving same panel)
+    private volatile boolean closed = false;  // set true once the panel is closed or its window is closed
     private BufferedImage image;           // remembers drawing commands
+    private boolean drawnOn = false;       // set true when pixels are set; false again after clear()
+    private boolean handedOut = false;     // set true once a Graphics or the pixel array has been handed out
     private Color backgroundColor = Color.WHITE;
     private Gif89Encoder encoder;          // for saving animations
     private Graphics g3;                   // new field to support DebuggingGraphics
     private Graphics2D g2;                 // graphics context for painting
+    private Consumer<Graphics2D> vectorSource;   // re-renders the contents at any scale, if known
     private ImagePanel imagePanel;         // real drawing surface
     private int currentZoom = 1;           // panel's zoom factor for drawing
     private int gridLinesPxGap = GRID_LINES_PX_GAP_DEFAULT;   // px between grid lines
@@ -737,7 +967,9 @@ public final class DrawingPanel implements ImageObserver {
     private JLabel statusBar;              // status bar showing mouse position
     private JPanel panel;                  // overall drawing surface
     private long createTime;               // time at which DrawingPanel was constructed
-    private Map<String, Integer> counts;   // new field to support DebuggingGraphics
+    private LongAdder[] callCounts;        // per-DebugOperation call counts, for DebuggingGraphics
+    private LongAdder[] callNanos;         // per-DebugOperation cumulative time, for DebuggingGraphics
+    private Map<String, Integer> countsView;  // live view of callCounts handed out by getCounts
     private MouseInputListener mouseListener;
     private String callingClassName;       // name of class that constructed this panel
     private Timer timer;                   // animation timer
@@ -757,8 +989,38 @@ public final class DrawingPanel implements ImageObserver {
      * @param height panel's height in pixels
      */
     public DrawingPanel(int width, int height) {
+        this(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Constructs a drawing panel of given width and height enclosed in a window,
+     * storing its pixels in the given BufferedImage format.  The formats are:
+     * <ul>
+     * <li>TYPE_INT_ARGB (the default): 4 bytes per pixel.  Pixels that have not
+     *     been drawn on are transparent, so the background color shows through
+     *     them whenever it is set.</li>
+     * <li>TYPE_INT_ARGB_PRE: 4 bytes per pixel with premultiplied alpha, which
+     *     makes drawing with translucent colors and images cheapest.</li>
+     * <li>TYPE_INT_RGB: 4 bytes per pixel, always opaque; the quickest to draw
+     *     on and to copy when no transparency is needed.</li>
+     * <li>TYPE_BYTE_GRAY: 1 byte per pixel, always opaque and gray only; for
+     *     masks and other single-channel images.</li>
+     * </ul>
+     * An opaque panel starts out filled with the background color, which is
+     * painted into its pixels again by clear(); setting a new background color
+     * repaints an opaque panel only while nothing can have been drawn on it
+     * (see setBackground).
+     * @param width panel's width in pixels
+     * @param height panel's height in pixels
+     * @param imageType BufferedImage.TYPE_INT_ARGB, TYPE_INT_ARGB_PRE,
+     *        TYPE_INT_RGB or TYPE_BYTE_GRAY
+     * @throws IllegalArgumentException if width/height is out of range or
+     *         imageType is not one of the formats above
+     */
+    public DrawingPanel(int width, int height, int imageType) {
         ensureInRange("width", width, 0, MAX_SIZE);
         ensureInRange("height", height, 0, MAX_SIZE);
+        ensureImageType(imageType);
         
         checkAnimationSettings();
         
@@ -768,34 +1030,36 @@ public final class DrawingPanel implements ImageObserver {
             instanceNumber = instances;  // each DrawingPanel stores its own int number
             INSTANCES.add(this);
             
-            if (shutdownThread == null && !usingDrJava()) {
+            if (shutdownThread == null && !usingDrJava() && idleThreadEnabled()) {
                 if (DEBUG) System.out.println("DrawingPanel(): starting idle thread");
                 shutdownThread = new Thread(new Runnable() {
                     // Runnable implementation; used for shutdown thread.
+                    // Sleeps until main has finished and then until the last panel
+                    // is closed (close() and closing a window wake it up).
                     public void run() {
-                        boolean save = shouldSave();
                         try {
-                            while (true) {
-                                // maybe shut down the program, if no more DrawingPanels are onscreen
-                                // and main has finished executing
-                                save |= shouldSave();
-                                if (DEBUG) System.out.println("DrawingPanel idle thread: instances=" + instances + ", save=" + save + ", main active=" + mainIsActive());
-                                if ((instances == 0 || save) && !mainIsActive()) {
-                                    try {
-                                        System.exit(0);
-                                    } catch (SecurityException sex) {
-                                        if (DEBUG) System.out.println("DrawingPanel idle thread: unable to exit program: " + sex);
-                                    }
+                            Thread main = findMainThread();
+                            if (main != null) {
+                                main.join();
+                            }
+                            synchronized (LOCK) {
+                                while (instances > 0 && !shouldSave()) {
+                                    LOCK.wait();
                                 }
-
-                                Thread.sleep(250);
+                            }
+                            if (DEBUG) System.out.println("DrawingPanel idle thread: instances=" + instances + ", save=" + shouldSave());
+                            try {
+                                System.exit(0);
+                            } catch (SecurityException sex) {
+                                if (DEBUG) System.out.println("DrawingPanel idle thread: unable to exit program: " + sex);
                             }
                         } catch (Exception e) {
                             if (DEBUG) System.out.println("DrawingPanel idle thread: exception caught: " + e);
                         }
                     }
                 });
-                // shutdownThread.setPriority(Thread.MIN_PRIORITY);
+                // a daemon, so that it never holds up a program that is otherwise done
+                shutdownThread.setDaemon(true);
                 shutdownThread.setName("DrawingPanel-shutdown");
                 shutdownThread.start();
             }
@@ -806,26 +1070,23 @@ public final class DrawingPanel implements ImageObserver {
         
         if (DEBUG) System.out.println("DrawingPanel(w=" + width + ",h=" + height + ",anim=" + isAnimated() + ",graph=" + isGraphical() + ",save=" + shouldSave());
         
-        if (isAnimated() && shouldSave()) {
-            // image must be no more than 256 colors
-            image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED);
-            // image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-            antialias = false;   // turn off anti-aliasing to save palette colors
-            
-            // initially fill the entire frame with the background color,
-            // because it won't show through via transparency like with a full ARGB image
-            Graphics g = image.getGraphics();
-            g.setColor(backgroundColor);
-            g.fillRect(0, 0, width + 1, height + 1);
-        } else {
-            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        }
+        // animated frames are drawn in full color too; the GIF encoder quantizes
+        // them down to a 256-color palette if they end up using more colors
+        image = new BufferedImage(width, height, imageType);
         initialPixel = image.getRGB(0, 0);
+        if (isOpaque()) {
+            fillPixels(backgroundColor.getRGB());
+        }
         
         g2 = (Graphics2D) image.getGraphics();
         // new field assignments for DebuggingGraphics
         g3 = new DebuggingGraphics();
-        counts = new TreeMap<String, Integer>();
+        callCounts = new LongAdder[DebugOperation.values().length];
+        callNanos = new LongAdder[DebugOperation.values().length];
+        for (int i = 0; i < callCounts.length; i++) {
+            callCounts[i] = new LongAdder();
+            callNanos[i] = new LongAdder();
+        }
         g2.setColor(Color.BLACK);
         if (antialias) {
             g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -893,15 +1154,9 @@ public final class DrawingPanel implements ImageObserver {
                         if (DEBUG) System.out.println("DrawingPanel.run(): Running shutdown hook");
                         if (DEBUG) System.out.println("DrawingPanel shutdown hook: instances=" + instances);
                         try {
-                            String filename = System.getProperty(SAVE_PROPERTY);
-                            if (filename == null) {
-                                filename = callingClassName + ".png";
-                            }
-
-                            if (isAnimated()) {
-                                saveAnimated(filename);
-                            } else {
-                                save(filename);
+                            // a closed panel has already saved itself
+                            if (!closed) {
+                                flush();
                             }
                         } catch (SecurityException e) {
                             System.err.println("Security error while saving image: " + e);
@@ -1019,11 +1274,65 @@ public final class DrawingPanel implements ImageObserver {
      * Erases all drawn shapes/lines/colors from the panel.
      */
     public void clear() {
-        int[] pixels = new int[width * height];
-        for (int i = 0; i < pixels.length; i++) {
-            pixels[i] = initialPixel;
+        fillPixels(isOpaque() ? backgroundColor.getRGB() : initialPixel);
+        drawnOn = false;
+    }
+    
+    /**
+     * Fills every pixel of the panel with the given color, replacing anything
+     * drawn so far.  This is much cheaper than fillRect over the whole panel
+     * and allocates nothing, so it is the quickest way to reset a panel that
+     * is reused for several drawings.
+     * @param color color to fill the panel with
+     * @throws NullPointerException if color is null
+     */
+    public void fill(Color color) {
+        ensureNotNull("color", color);
+        fillPixels(color.getRGB());
+        drawnOn = true;
+    }
+    
+    /**
+     * Fills every pixel of the panel with the color represented by the given
+     * RGB integer, replacing anything drawn so far.
+     * The passed RGB integer's alpha value is ignored and a full alpha of 255
+     * is always used, as with setPixelRGB.
+     * See also: fill(Color).
+     * @param rgb RGB integer representing the color to fill the panel with
+     */
+    public void fill(int rgb) {
+        fillPixels(rgb | PIXEL_ALPHA);
+        drawnOn = true;
+    }
+    
+    /*
+     * Sets every pixel of the image to the given ARGB value in place, a row at
+     * a time, spreading the rows over the common pool for large images.
+     * The value is converted to the image's format once, up front, so images
+     * backed by a plain int or byte array are filled with Arrays.fill.
+     */
+    private void fillPixels(int argb) {
+        int w = width;
+        IntStream rows = IntStream.range(0, height);
+        if ((long) w * height >= PARALLEL_PIXELS) {
+            rows = rows.parallel();
+        }
+        Object element = image.getColorModel().getDataElements(argb, null);
+        Object data = rawPixelData(image);
+        if (data instanceof int[]) {
+            int[] ints = (int[]) data;
+            int value = ((int[]) element)[0];
+            rows.forEach(row -> Arrays.fill(ints, row * w, row * w + w, value));
+        } else if (data instanceof byte[]) {
+            byte[] bytes = (byte[]) data;
+            byte value = ((byte[]) element)[0];
+            rows.forEach(row -> Arrays.fill(bytes, row * w, row * w + w, value));
+        } else {
+            BufferedImage target = image;
+            int[] line = new int[w];
+            Arrays.fill(line, argb);
+            rows.forEach(row -> target.setRGB(0, row, w, 1, line, 0, w));
         }
-        image.setRGB(0, 0, width, height, pixels, 0, 1);
     }
     
     /*
@@ -1128,6 +1437,79 @@ public final class DrawingPanel implements ImageObserver {
         }
     }
     
+    /**
+     * Closes this drawing panel.  If the program was asked to save its output
+     * to a file, the panel is saved first, as by flush.  Then its window is
+     * removed, its repaint timer is stopped and any animation in progress is
+     * discarded.  Once main has finished and every panel is closed, the program
+     * exits right away.  Closing a panel that is already closed has no effect.
+     * @throws IOException if the panel's output could not be saved
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            if (timer != null) {
+                timer.stop();
+            }
+            if (frame != null) {
+                frame.setVisible(false);
+                frame.dispose();
+            }
+            if (encoder != null) {
+                synchronized (encoder) {
+                    if (animationStream != null) {
+                        animationStream.close();
+                        animationStream = null;
+                        animationFile.delete();
+                    }
+                }
+            }
+            release();
+        }
+    }
+    
+    /**
+     * Saves the panel's current contents right away to the file the program
+     * was asked to save its output to (through the SAVE_PROPERTY), as an
+     * animated GIF if the panel is animated, rather than waiting for the
+     * program to exit.  If no output file was requested, this has no effect.
+     * @throws IOException if the file cannot be written
+     */
+    public void flush() throws IOException {
+        if (!shouldSave()) {
+            return;
+        }
+        String filename = System.getProperty(SAVE_PROPERTY);
+        if (filename == null) {
+            filename = callingClassName + ".png";
+        }
+        if (isAnimated()) {
+            saveAnimated(filename);
+        } else {
+            save(filename);
+        }
+    }
+    
+    /*
+     * Marks the panel as closed, once, and wakes the idle thread so that it can
+     * exit the program if this was the last panel open.
+     */
+    private void release() {
+        synchronized (LOCK) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            instances--;
+            INSTANCES.remove(this);
+            LOCK.notifyAll();
+        }
+    }
+    
     /*
      * Closes the DrawingPanel and exits the program.
      */
@@ -1164,10 +1546,32 @@ public final class DrawingPanel implements ImageObserver {
      * Returns a map of counts of occurrences of calls of various drawing methods.
      * You can print this map to see how many times your graphics methods have
      * been called to aid in debugging.
+     * Only methods that have been called at least once appear in the map.
+     * The map is a live, unmodifiable view sorted by method name: it reflects
+     * later calls without calling this method again.
      * @return map of {method name, count} pairs
      */
     public Map<String, Integer> getCounts() {
-        return Collections.unmodifiableMap(counts);
+        if (countsView == null) {
+            countsView = new CountsView();
+        }
+        return countsView;
+    }
+
+    /**
+     * Returns a map of the cumulative time, in nanoseconds, spent in calls of
+     * the drawing methods counted by getCounts.
+     * Only methods that have been called at least once appear in the map.
+     * @return map of {method name, total nanoseconds} pairs
+     */
+    public Map<String, Long> getCallNanos() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (DebugOperation op : DebugOperation.values()) {
+            if (callCounts[op.ordinal()].sum() > 0) {
+                result.put(op.methodName, callNanos[op.ordinal()].sum());
+            }
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     /**
@@ -1180,6 +1584,7 @@ public final class DrawingPanel implements ImageObserver {
         if (g3 == null) {
             g3 = new DebuggingGraphics();
         }
+        handedOut = true;
         return g3;
     }
     
@@ -1188,6 +1593,7 @@ public final class DrawingPanel implements ImageObserver {
      * @return panel's Graphics object
      */
     public Graphics2D getGraphics() {
+        handedOut = true;
         return g2;
     }
     
@@ -1196,11 +1602,11 @@ public final class DrawingPanel implements ImageObserver {
      */
     private BufferedImage getImage() {
         // create second image so we get the background color
-        BufferedImage image2;
-        if (isAnimated()) {
-            image2 = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED);
-        } else {
-            image2 = new BufferedImage(width, height, image.getType());
+        BufferedImage image2 = new BufferedImage(width, height, image.getType());
+        if (isOpaque()) {
+            // the background is already in the pixels
+            blit(image, image2);
+            return image2;
         }
         Graphics g = image2.getGraphics();
         // if (DEBUG) System.out.println("DrawingPanel getImage setting background to " + backgroundColor);
@@ -1210,6 +1616,43 @@ public final class DrawingPanel implements ImageObserver {
         return image2;
     }
     
+    /**
+     * Returns the BufferedImage format the panel's pixels are stored in,
+     * such as BufferedImage.TYPE_INT_ARGB.
+     * @return the panel's image type
+     */
+    public int getImageType() {
+        return image.getType();
+    }
+    
+    /*
+     * Returns whether the panel's image has no alpha channel, so that its
+     * background has to be painted into the pixels themselves.
+     */
+    private boolean isOpaque() {
+        return !image.getColorModel().hasAlpha();
+    }
+    
+    /**
+     * Returns a copy of the panel's contents over its background color,
+     * in the given BufferedImage format.  Copies into the panel's own format,
+     * and from an opaque TYPE_INT_RGB panel into TYPE_INT_ARGB, are done
+     * directly between the images' pixel arrays.
+     * @param imageType the format of the image to return, such as
+     *        BufferedImage.TYPE_INT_RGB
+     * @return a new image holding the panel's contents
+     * @throws IllegalArgumentException if imageType is not a valid BufferedImage type
+     */
+    public BufferedImage toImage(int imageType) {
+        BufferedImage composed = getImage();
+        if (composed.getType() == imageType) {
+            return composed;
+        }
+        BufferedImage result = new BufferedImage(width, height, imageType);
+        blit(composed, result);
+        return result;
+    }
+    
     /**
      * Returns the drawing panel's height in pixels.
      * @return drawing panel's height in pixels
@@ -1268,11 +1711,15 @@ public final class DrawingPanel implements ImageObserver {
      * @return 2D array of colors (row-major)
      */
     public Color[][] getPixels() {
+        int[] rgbs = new int[getWidth() * getHeight()];
+        getPixelsRGB(0, 0, getWidth(), getHeight(), rgbs);
         Color[][] pixels = new Color[getHeight()][getWidth()];
+        int i = 0;
         for (int row = 0; row < pixels.length; row++) {
-            for (int col = 0; col < pixels[0].length; col++) {
-                // note axis inversion; x/y => col/row
-                pixels[row][col] = getPixel(col, row);
+            for (int col = 0; col < pixels[row].length; col++, i++) {
+                // background pixels share the panel's Color rather than getting a new one
+                pixels[row][col] = (rgbs[i] == backgroundColor.getRGB())
+                        ? backgroundColor : new Color(rgbs[i], /* hasAlpha */ true);
             }
         }
         return pixels;
@@ -1290,19 +1737,121 @@ public final class DrawingPanel implements ImageObserver {
      */
     public int[][] getPixelsRGB() {
         int[][] pixels = new int[getHeight()][getWidth()];
-        int backgroundRGB = backgroundColor.getRGB();
         for (int row = 0; row < pixels.length; row++) {
-            for (int col = 0; col < pixels[0].length; col++) {
-                // note axis inversion; x/y => col/row
-                int px = image.getRGB(col, row);
-                if (getAlpha(px) == 0) {
-                    pixels[row][col] = backgroundRGB;
-                } else {
-                    pixels[row][col] = px;
+            getPixelsRGB(0, row, getWidth(), 1, pixels[row]);
+        }
+        return pixels;
+    }
+    
+    /**
+     * Copies the colors of a rectangular region of this DrawingPanel into the
+     * given array as RGB integers, one row after another, with row y + r starting
+     * at index r * w.  Each row is copied in bulk rather than pixel by pixel.
+     * If nothing has been explicitly drawn on a pixel, the panel's background
+     * color is stored for it, as with getPixelRGB.
+     * @param x x-coordinate of the region's left edge
+     * @param y y-coordinate of the region's top edge
+     * @param w width of the region
+     * @param h height of the region
+     * @param dest array to fill, or null to allocate a new one
+     * @return dest, or the newly allocated array
+     * @throws IllegalArgumentException if the region is out of range or dest is too short
+     */
+    public int[] getPixelsRGB(int x, int y, int w, int h, int[] dest) {
+        ensureRegion(x, y, w, h);
+        if (dest == null) {
+            dest = new int[w * h];
+        }
+        ensureInRange("dest length", dest.length, w * h, Integer.MAX_VALUE);
+        int backgroundRGB = backgroundColor.getRGB();
+        int[] data = pixelData();
+        for (int row = 0; row < h; row++) {
+            int off = row * w;
+            if (data != null) {
+                System.arraycopy(data, (y + row) * width + x, dest, off, w);
+            } else {
+                image.getRGB(x, y + row, w, 1, dest, off, w);
+            }
+            for (int i = off; i < off + w; i++) {
+                if (getAlpha(dest[i]) == 0) {
+                    dest[i] = backgroundRGB;
                 }
             }
         }
-        return pixels;
+        return dest;
+    }
+    
+    /**
+     * Returns the array of ARGB integers that backs this DrawingPanel's image.
+     * The array is live: pixel (x, y) is at index y * getWidth() + x, writes to
+     * it show up on the panel at the next repaint, and pixels that have never
+     * been drawn on hold 0 (fully transparent) rather than the background color.
+     * The array is replaced if the panel is resized, so it should be fetched again
+     * after any call to setSize.
+     * Holding on to the array may make Java2D stop accelerating the image, so
+     * prefer getPixelsRGB(x, y, w, h, dest) for occasional reads.
+     * @return the panel's backing pixel array
+     * @throws UnsupportedOperationException if the panel's image is not backed by
+     *         one ARGB integer per pixel
+     */
+    public int[] getPixelBuffer() {
+        int[] data = pixelData();
+        if (data == null) {
+            throw new UnsupportedOperationException("image is not backed by an int array: type " + image.getType());
+        }
+        handedOut = true;
+        return data;
+    }
+    
+    /**
+     * Returns an IntBuffer view of the array that backs this DrawingPanel's image.
+     * The buffer shares its contents with the image, exactly as described for
+     * getPixelBuffer.
+     * @return a buffer over the panel's backing pixel array
+     * @throws UnsupportedOperationException if the panel's image is not backed by
+     *         one ARGB integer per pixel
+     */
+    public IntBuffer getPixelIntBuffer() {
+        return IntBuffer.wrap(getPixelBuffer());
+    }
+    
+    /**
+     * Replaces every pixel of this DrawingPanel with the RGB integer that the
+     * given operator computes from its coordinates and current color.  Pixels
+     * that have never been drawn on are passed the background color, as with
+     * getPixelRGB.  The returned value's alpha is ignored and full opacity is always used,
+     * as with setPixelRGB.  Large panels are processed a row at a time in
+     * parallel, so the operator must be safe to call from several threads
+     * and must not depend on the order in which pixels are visited.
+     * @param operator the function applied to each pixel
+     * @throws NullPointerException if operator is null
+     */
+    public void forEachPixel(DPPixelOperator operator) {
+        ensureNotNull("operator", operator);
+        drawnOn = true;
+        int w = getWidth();
+        IntStream rows = IntStream.range(0, getHeight());
+        if ((long) w * getHeight() >= PARALLEL_PIXELS) {
+            rows = rows.parallel();
+        }
+        BufferedImage target = image;
+        int[] data = pixelData();
+        int backgroundRGB = backgroundColor.getRGB();
+        rows.forEach(row -> {
+            if (data != null) {
+                for (int i = row * w, col = 0; col < w; i++, col++) {
+                    int px = (getAlpha(data[i]) == 0) ? backgroundRGB : data[i];
+                    data[i] = operator.applyAsRGB(col, row, px) | PIXEL_ALPHA;
+                }
+            } else {
+                int[] line = target.getRGB(0, row, w, 1, null, 0, w);
+                for (int col = 0; col < w; col++) {
+                    int px = (getAlpha(line[col]) == 0) ? backgroundRGB : line[col];
+                    line[col] = operator.applyAsRGB(col, row, px) | PIXEL_ALPHA;
+                }
+                target.setRGB(0, row, w, 1, line, 0, w);
+            }
+        });
     }
     
     /**
@@ -1370,18 +1919,8 @@ public final class DrawingPanel implements ImageObserver {
      * Sets up state for drawing and saving frames of animation to a GIF image.
      */
     private void initializeAnimation() {
-        frames = new ArrayList<ImageFrame>();
         encoder = new Gif89Encoder();
-        /*
-        try {
-            if (hasProperty(SAVE_PROPERTY)) {
-                stream = new FileOutputStream(System.getProperty(SAVE_PROPERTY));
-            }
-            // encoder.startEncoding(stream);
-        } catch (IOException e) {
-            System.out.println(e);
-        }
-        */
+        encoder.setLoopCount(0);
     }
     
     /*
@@ -1621,21 +2160,6 @@ public final class DrawingPanel implements ImageObserver {
         return (instances == 0 || shouldSave()) && !mainIsActive();
     }
     
-    /*
-     * Replaces all occurrences of the given old color with the given new color.
-     */
-    private void replaceColor(BufferedImage image, Color oldColor, Color newColor) {
-        int oldRGB = oldColor.getRGB();
-        int newRGB = newColor.getRGB();
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                if (image.getRGB(x, y) == oldRGB) {
-                    image.setRGB(x, y, newRGB);
-                }
-            }
-        }
-    }
-    
     /**
      * Takes the current contents of the drawing panel and writes them to
      * the given file.
@@ -1658,20 +2182,6 @@ public final class DrawingPanel implements ImageObserver {
      */
     public void save(String filename) throws IOException {
         ensureNotNull("filename", filename);
-        BufferedImage image2 = getImage();
-        
-        // if zoomed, scale image before saving it
-        if (SAVE_SCALED_IMAGES && currentZoom != 1) {
-            BufferedImage zoomedImage = new BufferedImage(width * currentZoom, height * currentZoom, image.getType());
-            Graphics2D g = (Graphics2D) zoomedImage.getGraphics();
-            g.setColor(Color.BLACK);
-            if (antialias) {
-                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            }
-            g.scale(currentZoom, currentZoom);
-            g.drawImage(image2, 0, 0, imagePanel);
-            image2 = zoomedImage;
-        }
         
         // if saving multiple panels, append number
         // (e.g. output_*.png becomes output_1.png, output_2.png, etc.)
@@ -1682,6 +2192,21 @@ public final class DrawingPanel implements ImageObserver {
         int lastDot = filename.lastIndexOf(".");
         String extension = filename.substring(lastDot + 1);
         
+        // PNGs go through our own writer, straight from the panel's pixels;
+        // drawings are mostly flat color, which deflates best unfiltered
+        if (extension.equalsIgnoreCase("png")) {
+            FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                writePng(channel, new PngWriter(SAVE_PNG_LEVEL, PngWriter.Filter.NONE, pngThreads()));
+            } finally {
+                channel.close();
+            }
+            hasBeenSaved = true;
+            return;
+        }
+        BufferedImage image2 = getSaveImage();
+        
         // write file
         // (for some reason, NPEs throw sometimes for no reason; just squish them)
         try {
@@ -1697,62 +2222,156 @@ public final class DrawingPanel implements ImageObserver {
     }
     
     /**
-     * Takes the current contents of the drawing panel and writes them to
-     * the given file.
-     * @param file the file to save
-     * @throws NullPointerException if filename is null
-     * @throws IOException if the given file cannot be written
+     * Supplies a way to redraw the panel's contents at any scale, such as the
+     * instructions of a vector drawing. When one is set, saving a zoomed panel
+     * renders the contents directly at the zoomed size instead of scaling up
+     * the panel's pixels, so the saved image stays sharp. The source is given
+     * a graphics context that has already been scaled, over a canvas filled
+     * with the background color, and must draw exactly what was drawn on the
+     * panel.
+     * @param source draws the panel's contents, or null to scale up pixels
      */
-    public void saveAnimated(File file) throws IOException {
-        ensureNotNull("file", file);
-        saveAnimated(file.toString());
+    public void setVectorSource(Consumer<Graphics2D> source) {
+        vectorSource = source;
     }
     
     /**
-     * Takes the current contents of the drawing panel and writes them to
-     * the given file.
-     * @param filename name/path of the file to save
-     * @throws NullPointerException if filename is null
-     * @throws IOException if the given file cannot be written
+     * Takes the current contents of the drawing panel and writes them as a
+     * PNG image to the given channel, using the given writer's compression
+     * level and filter. The channel is left open.
+     * @param channel where to write the PNG data
+     * @param writer the PNG writer to use
+     * @throws NullPointerException if channel or writer is null
+     * @throws IOException if the channel cannot be written
      */
-    public void saveAnimated(String filename) throws IOException {
-        ensureNotNull("filename", filename);
-        
-        // add one more final frame
-        if (DEBUG) System.out.println("DrawingPanel.saveAnimated(" + filename + ")");
-        frames.add(new ImageFrame(getImage(), 5000));
-        // encoder.continueEncoding(stream, getImage(), 5000);
-        
-        // Gif89Encoder gifenc = new Gif89Encoder();
-        
-        // add each frame of animation to the encoder
-        try {
-            for (int i = 0; i < frames.size(); i++) {
-                ImageFrame imageFrame = frames.get(i);
-                encoder.addFrame(imageFrame.image);
-                encoder.getFrameAt(i).setDelay(imageFrame.delay);
-                imageFrame.image.flush();
-                frames.set(i, null);
+    public void save(WritableByteChannel channel, PngWriter writer) throws IOException {
+        ensureNotNull("channel", channel);
+        ensureNotNull("writer", writer);
+        writePng(channel, writer);
+        hasBeenSaved = true;
+    }
+    
+    /*
+     * Writes the panel's contents as a PNG image. Unless the saved image is
+     * zoomed, the writer reads the panel's own pixels and composites them over
+     * the background a row at a time, so the panel is never copied first.
+     */
+    private void writePng(WritableByteChannel channel, PngWriter writer) throws IOException {
+        if (!SAVE_SCALED_IMAGES || currentZoom == 1) {
+            if (isOpaque()) {
+                // the background is already in the pixels
+                writer.write(image, channel);
+                return;
+            }
+            if (backgroundColor.getAlpha() == 255) {
+                writer.write(image, backgroundColor, channel);
+                return;
             }
-        } catch (OutOfMemoryError e) {
-            System.out.println("Out of memory when saving");
         }
-        
-        // gifenc.setComments(annotation);
-        // gifenc.setUniformDelay((int) Math.round(100 / frames_per_second));
-        // gifenc.setUniformDelay(DELAY);
-        // encoder.setBackground(backgroundColor);
-        encoder.setLoopCount(0);
-        encoder.encode(new FileOutputStream(filename));
+        writer.write(getSaveImage(), channel);
     }
     
     /*
-     * Called when the user presses the "Save As" menu item.
-     * Pops up a file chooser prompting the user to save their panel to an image.
+     * Returns the image to be saved: the panel's contents over its background,
+     * scaled up by the zoom factor if the panel is zoomed.
      */
-    private void saveAs() {
-        String filename = saveAsHelper("png");
-        if (filename != null) {
+    private BufferedImage getSaveImage() {
+        // if zoomed and the contents can be redrawn, render them at the zoomed
+        // size rather than scaling up the pixels
+        if (SAVE_SCALED_IMAGES && currentZoom != 1 && vectorSource != null) {
+            BufferedImage zoomedImage = new BufferedImage(width * currentZoom, height * currentZoom, image.getType());
+            Graphics2D g = zoomedImage.createGraphics();
+            g.setColor(backgroundColor);
+            g.fillRect(0, 0, zoomedImage.getWidth(), zoomedImage.getHeight());
+            if (antialias) {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            }
+            g.scale(currentZoom, currentZoom);
+            vectorSource.accept(g);
+            g.dispose();
+            return zoomedImage;
+        }
+        
+        BufferedImage image2 = getImage();
+        
+        // if zoomed, scale image before saving it
+        if (SAVE_SCALED_IMAGES && currentZoom != 1) {
+            BufferedImage zoomedImage = new BufferedImage(width * currentZoom, height * currentZoom, image.getType());
+            Graphics2D g = (Graphics2D) zoomedImage.getGraphics();
+            g.setColor(Color.BLACK);
+            if (antialias) {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            }
+            g.scale(currentZoom, currentZoom);
+            g.drawImage(image2, 0, 0, imagePanel);
+            image2 = zoomedImage;
+        }
+        return image2;
+    }
+    
+    /**
+     * Takes the current contents of the drawing panel and writes them to
+     * the given file.
+     * @param file the file to save
+     * @throws NullPointerException if filename is null
+     * @throws IOException if the given file cannot be written
+     */
+    public void saveAnimated(File file) throws IOException {
+        ensureNotNull("file", file);
+        saveAnimated(file.toString());
+    }
+    
+    /**
+     * Takes the current contents of the drawing panel and writes them to
+     * the given file.
+     * @param filename name/path of the file to save
+     * @throws NullPointerException if filename is null
+     * @throws IOException if the given file cannot be written
+     */
+    public void saveAnimated(String filename) throws IOException {
+        ensureNotNull("filename", filename);
+        if (DEBUG) System.out.println("DrawingPanel.saveAnimated(" + filename + ")");
+        
+        synchronized (encoder) {
+            // add one more final frame; it and the frames captured before it are
+            // already encoded in the temp file, so copy them and add the trailer
+            captureFrame(getImage(), 5000);
+            encoder.finishFrames(animationStream);
+            animationStream.flush();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+            try {
+                Files.copy(animationFile.toPath(), out);
+                encoder.endEncoding(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+    
+    /*
+     * Encodes one captured frame of animation, shown for the given number of
+     * milliseconds, into a temp file so that no frames need to be kept in memory.
+     */
+    private void captureFrame(Image frameImage, int millis) throws IOException {
+        synchronized (encoder) {
+            if (animationStream == null) {
+                animationFile = File.createTempFile("DrawingPanel", ".gif");
+                animationFile.deleteOnExit();
+                animationStream = new BufferedOutputStream(new FileOutputStream(animationFile));
+                encoder.startEncoding(animationStream, width, height);
+            }
+            encoder.continueEncoding(animationStream, frameImage, millis / 10);   // gif stores delay as sec/100
+            frameImage.flush();
+        }
+    }
+    
+    /*
+     * Called when the user presses the "Save As" menu item.
+     * Pops up a file chooser prompting the user to save their panel to an image.
+     */
+    private void saveAs() {
+        String filename = saveAsHelper("png");
+        if (filename != null) {
             try {
                 save(filename);  // save the file
             } catch (IOException ex) {
@@ -1848,23 +2467,29 @@ public final class DrawingPanel implements ImageObserver {
     
     /**
      * Sets the background color of the drawing panel to be the given color.
+     * On an opaque panel (see the imageType constructor) the background is
+     * part of the pixels, and a pixel drawn in the old background color cannot
+     * be told apart from one never drawn on.  So the panel is repainted in the
+     * new color only while nothing can have been drawn on it: no pixels set
+     * since it was created or last cleared, and no Graphics or pixel array
+     * handed out yet.  Otherwise the pixels already there are left alone, and
+     * the new color fills the panel at the next clear(), and any area added by
+     * setSize.
      * @param c color to use as background
      * @throws NullPointerException if color is null
      */
     public void setBackground(Color c) {
         ensureNotNull("color", c);
-        Color oldBackgroundColor = backgroundColor;
+        boolean repaint = isOpaque() && !drawnOn && !handedOut && !c.equals(backgroundColor);
         backgroundColor = c;
+        if (repaint) {
+            // every pixel still holds the old background
+            fillPixels(c.getRGB());
+        }
         if (isGraphical()) {
             panel.setBackground(c);
             imagePanel.setBackground(c);
         }
-        
-        // with animated images, need to palette-swap the old bg color for the new
-        // because there's no notion of transparency in a palettized 8-bit image
-        if (isAnimated()) {
-            replaceColor(image, oldBackgroundColor, c);
-        }
     }
     
     /**
@@ -1924,6 +2549,7 @@ public final class DrawingPanel implements ImageObserver {
         ensureInRange("y", y, 0, getHeight() - 1);
         ensureNotNull("color", color);
         image.setRGB(x, y, color.getRGB());
+        drawnOn = true;
     }
      
     /**
@@ -1957,6 +2583,7 @@ public final class DrawingPanel implements ImageObserver {
         ensureInRange("x", x, 0, getWidth() - 1);
         ensureInRange("y", y, 0, getHeight() - 1);
         image.setRGB(x, y, rgb | PIXEL_ALPHA);
+        drawnOn = true;
     }
     
     /**
@@ -1979,14 +2606,18 @@ public final class DrawingPanel implements ImageObserver {
             if (width != pixels[0].length || height != pixels.length) {
                 setSize(pixels[0].length, pixels.length);
             }
+            drawnOn = true;
+            int[] line = new int[width];
             for (int row = 0; row < height; row++) {
                 if (pixels[row] != null) {
+                    // null colors keep their current pixel, so start from the existing row
+                    copyRow(row, line, false);
                     for (int col = 0; col < width; col++) {
                         if (pixels[row][col] != null) {
-                            int rgb = pixels[row][col].getRGB();
-                            image.setRGB(col, row, rgb);
+                            line[col] = pixels[row][col].getRGB();
                         }
                     }
+                    copyRow(row, line, true);
                 }
             }
         }
@@ -2030,11 +2661,47 @@ public final class DrawingPanel implements ImageObserver {
             }
             for (int row = 0; row < height; row++) {
                 if (pixels[row] != null) {
-                    for (int col = 0; col < width; col++) {
-                        // note axis inversion, row/col => y/x
-                        image.setRGB(col, row, pixels[row][col] | PIXEL_ALPHA);
-                    }
+                    // note axis inversion, row/col => y/x
+                    setPixelsRGB(0, row, width, 1, pixels[row]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sets the colors of a rectangular region of this DrawingPanel to the colors
+     * represented by the given RGB integers, laid out one row after another with
+     * row y + r starting at index r * w.  Each row is copied in bulk rather than
+     * pixel by pixel.
+     * The passed RGB integers' alpha values are ignored and a full alpha of 255
+     * is always used, as with setPixelRGB.
+     * @param x x-coordinate of the region's left edge
+     * @param y y-coordinate of the region's top edge
+     * @param w width of the region
+     * @param h height of the region
+     * @param src RGB integers to copy into the region (row-major)
+     * @throws IllegalArgumentException if the region is out of range or src is too short
+     * @throws NullPointerException if src is null
+     */
+    public void setPixelsRGB(int x, int y, int w, int h, int[] src) {
+        ensureNotNull("src", src);
+        ensureRegion(x, y, w, h);
+        ensureInRange("src length", src.length, w * h, Integer.MAX_VALUE);
+        drawnOn = true;
+        int[] data = pixelData();
+        for (int row = 0; row < h; row++) {
+            if (data != null) {
+                int start = (y + row) * width + x;
+                System.arraycopy(src, row * w, data, start, w);
+                for (int i = start; i < start + w; i++) {
+                    data[i] |= PIXEL_ALPHA;
                 }
+            } else {
+                int[] line = Arrays.copyOfRange(src, row * w, row * w + w);
+                for (int i = 0; i < w; i++) {
+                    line[i] |= PIXEL_ALPHA;
+                }
+                image.setRGB(x, y + row, w, 1, line, 0, w);
             }
         }
     }
@@ -2054,7 +2721,12 @@ public final class DrawingPanel implements ImageObserver {
         // replace the image buffer for drawing
         BufferedImage newImage = new BufferedImage(width, height, image.getType());
         imagePanel.setImage(newImage);
-        newImage.getGraphics().drawImage(image, 0, 0, imagePanel);
+        Graphics newGraphics = newImage.getGraphics();
+        if (isOpaque()) {
+            newGraphics.setColor(backgroundColor);
+            newGraphics.fillRect(0, 0, width, height);
+        }
+        newGraphics.drawImage(image, 0, 0, imagePanel);
 
         this.width = width;
         this.height = height;
@@ -2286,15 +2958,13 @@ public final class DrawingPanel implements ImageObserver {
         // capture a frame of animation
         if (isAnimated() && shouldSave() && !isMultiple()) {
             try {
-                if (frames.size() < MAX_FRAMES) {
-                    frames.add(new ImageFrame(getImage(), millis));
-                }
-                
-                // reset creation timer so that we won't save/close just yet
-                createTime = System.currentTimeMillis();
-            } catch (OutOfMemoryError e) {
-                System.out.println("Out of memory after capturing " + frames.size() + " frames");
+                captureFrame(getImage(), millis);
+            } catch (IOException e) {
+                System.err.println("Error capturing frame of animation: " + e);
             }
+            
+            // reset creation timer so that we won't save/close just yet
+            createTime = System.currentTimeMillis();
         }
     }
     
@@ -2381,11 +3051,7 @@ public final class DrawingPanel implements ImageObserver {
                 } else if (shouldSave() && readyToClose()) {
                     // auto-save-and-close if desired
                     try {
-                        if (isAnimated()) {
-                            saveAnimated(System.getProperty(SAVE_PROPERTY));
-                        } else {
-                            save(System.getProperty(SAVE_PROPERTY));
-                        }
+                        flush();
                     } catch (IOException ioe) {
                         System.err.println("Error saving image: " + ioe);
                     }
@@ -2470,6 +3136,22 @@ public final class DrawingPanel implements ImageObserver {
         public void onKeyEvent(char keyCode);
     }
     
+    /**
+     * This functional interface is provided to allow Java 8 clients to write
+     * lambda functions that compute new pixel colors for forEachPixel.
+     */
+    @FunctionalInterface
+    public static interface DPPixelOperator {
+        /**
+         * Called for each pixel of the drawing panel to compute its new color.
+         * @param x x-coordinate of the pixel
+         * @param y y-coordinate of the pixel
+         * @param rgb current color of the pixel as an RGB integer
+         * @return new color of the pixel as an RGB integer
+         */
+        public int applyAsRGB(int x, int y, int rgb);
+    }
+    
     // internal class to implement DPKeyEventHandler behavior.
     private class DPKeyEventHandlerAdapter implements KeyListener {
         private DPKeyEventHandler handler;
@@ -2639,9 +3321,7 @@ public final class DrawingPanel implements ImageObserver {
         // called when DrawingPanel closes, to potentially exit the program
         public void windowClosing(WindowEvent event) {
             frame.setVisible(false);
-            synchronized (LOCK) {
-                instances--;
-            }
+            release();
             frame.dispose();
         }
     }
@@ -2791,33 +3471,39 @@ public final class DrawingPanel implements ImageObserver {
         }
 
         public void drawOval(int x, int y, int width, int height) {
+            long start = System.nanoTime();
             g2.drawOval(x, y, width, height);
-            recordString("drawOval");
+            record(DebugOperation.DRAW_OVAL, start);
         }
 
         public void fillOval(int x, int y, int width, int height) {
+            long start = System.nanoTime();
             g2.fillOval(x, y, width, height);
-            recordString("fillOval");
+            record(DebugOperation.FILL_OVAL, start);
         }
 
         public void drawString(String str, int x, int y) {
+            long start = System.nanoTime();
             g2.drawString(str, x, y);
-            recordString("drawString");
+            record(DebugOperation.DRAW_STRING, start);
         }
 
         public void drawLine(int x1, int y1, int x2, int y2) {
+            long start = System.nanoTime();
             g2.drawLine(x1, y1, x2, y2);
-            recordString("drawLine");
+            record(DebugOperation.DRAW_LINE, start);
         }
 
         public void fillRect(int x, int y, int width, int height) {
+            long start = System.nanoTime();
             g2.fillRect(x, y, width, height);
-            recordString("fillRect");
+            record(DebugOperation.FILL_RECT, start);
         }
 
         public void drawRect(int x, int y, int width, int height) {
+            long start = System.nanoTime();
             g2.drawRect(x, y, width, height);
-            recordString("drawRect");
+            record(DebugOperation.DRAW_RECT, start);
         }
 
         public void setColor(Color c) {
@@ -2825,15 +3511,99 @@ public final class DrawingPanel implements ImageObserver {
             // recordString("setColor");
         }
 
-        public void recordString(String s) {
-            if (!counts.containsKey(s)) {
-                counts.put(s, 1);
-            } else {
-                counts.put(s, counts.get(s) + 1);
-            }
+        // counts one call of the given operation and the time it took since start;
+        // LongAdder keeps this cheap and safe when several threads draw at once
+        private void record(DebugOperation op, long start) {
+            callNanos[op.ordinal()].add(System.nanoTime() - start);
+            callCounts[op.ordinal()].increment();
         }
     } // end class DebuggingGraphics
     
+    /*
+     * The drawing methods counted by DebuggingGraphics; each constant indexes
+     * the panel's callCounts and callNanos arrays.
+     */
+    private enum DebugOperation {
+        DRAW_LINE("drawLine"),
+        DRAW_OVAL("drawOval"),
+        DRAW_RECT("drawRect"),
+        DRAW_STRING("drawString"),
+        FILL_OVAL("fillOval"),
+        FILL_RECT("fillRect");
+        
+        private final String methodName;   // name reported by getCounts
+        
+        private DebugOperation(String methodName) {
+            this.methodName = methodName;
+        }
+    }
+    
+    /*
+     * The map returned by getCounts: an unmodifiable view that reads callCounts
+     * each time it is looked at, so it keeps up with later calls. Operations
+     * never called are left out. DebugOperation's constants are declared in
+     * method-name order, so iteration is sorted by method name.
+     */
+    private class CountsView extends AbstractMap<String, Integer> {
+        public Integer get(Object key) {
+            for (DebugOperation op : DebugOperation.values()) {
+                if (op.methodName.equals(key)) {
+                    long count = callCounts[op.ordinal()].sum();
+                    return count > 0 ? (int) Math.min(count, Integer.MAX_VALUE) : null;
+                }
+            }
+            return null;
+        }
+        
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+        
+        public Set<Map.Entry<String, Integer>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Integer>>() {
+                public int size() {
+                    int size = 0;
+                    for (LongAdder count : callCounts) {
+                        if (count.sum() > 0) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+                
+                public Iterator<Map.Entry<String, Integer>> iterator() {
+                    return new Iterator<Map.Entry<String, Integer>>() {
+                        private final DebugOperation[] ops = DebugOperation.values();
+                        private int next = advance(0);
+                        
+                        // index of the first called operation at or after i
+                        private int advance(int i) {
+                            while (i < ops.length && callCounts[i].sum() == 0) {
+                                i++;
+                            }
+                            return i;
+                        }
+                        
+                        public boolean hasNext() {
+                            return next < ops.length;
+                        }
+                        
+                        public Map.Entry<String, Integer> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            DebugOperation op = ops[next];
+                            next = advance(next + 1);
+                            long count = callCounts[op.ordinal()].sum();
+                            return new AbstractMap.SimpleImmutableEntry<String, Integer>(
+                                    op.methodName, (int) Math.min(count, Integer.MAX_VALUE));
+                        }
+                    };
+                }
+            };
+        }
+    } // end class CountsView
+    
     /*
      * This internal class represents a graphical panel that can pop up on the
      * screen to report the differences between two images.
@@ -2848,6 +3618,7 @@ public final class DrawingPanel implements ImageObserver {
         private BufferedImage image2;
         private String image1name;
         private int numDiffPixels;
+        private ImageComparison.Result comparison;
         private int opacity = 50;
         private String label1Text = "Expected";
         private String label2Text = "Actual";
@@ -2900,24 +3671,8 @@ public final class DrawingPanel implements ImageObserver {
                 return;
             }
             
-            int w1 = image1.getWidth();
-            int h1 = image1.getHeight();
-            int w2 = image2.getWidth();
-            int h2 = image2.getHeight();
-            int wmax = Math.max(w1, w2);
-            int hmax = Math.max(h1, h2);
-            
-            // check each pair of pixels
-            numDiffPixels = 0;
-            for (int y = 0; y < hmax; y++) {
-                for (int x = 0; x < wmax; x++) {
-                    int pixel1 = (x < w1 && y < h1) ? image1.getRGB(x, y) : 0;
-                    int pixel2 = (x < w2 && y < h2) ? image2.getRGB(x, y) : 0;
-                    if (pixel1 != pixel2) {
-                        numDiffPixels++;
-                    }
-                }
-            }
+            comparison = new ImageComparison().compare(image1, image2);
+            numDiffPixels = (int) comparison.getDiffCount();
         }
         
         // initializes diffimage panel
@@ -2977,25 +3732,10 @@ public final class DrawingPanel implements ImageObserver {
             
             // draw the highlighted diffs (if so desired)
             if (highlightDiffs && image1 != null && image2 != null) {
-                int w1 = image1.getWidth();
-                int h1 = image1.getHeight();
-                int w2 = image2.getWidth();
-                int h2 = image2.getHeight();
-                
-                int wmax = Math.max(w1, w2);
-                int hmax = Math.max(h1, h2);
-                
-                // check each pair of pixels
-                g2.setColor(highlightColor);
-                for (int y = 0; y < hmax; y++) {
-                    for (int x = 0; x < wmax; x++) {
-                        int pixel1 = (x < w1 && y < h1) ? image1.getRGB(x, y) : 0;
-                        int pixel2 = (x < w2 && y < h2) ? image2.getRGB(x, y) : 0;
-                        if (pixel1 != pixel2) {
-                            g2.fillRect(x, y, 1, 1);
-                        }
-                    }
+                if (comparison == null) {
+                    countDiffPixels();
                 }
+                g2.drawImage(comparison.getMask(highlightColor), 0, 0, this);
             }
         }
         
@@ -3056,6 +3796,7 @@ public final class DrawingPanel implements ImageObserver {
             }
             
             image1 = image;
+            comparison = null;
             setPreferredSize(new Dimension(
                                            Math.max(getPreferredSize().width, image.getWidth()),
                                            Math.max(getPreferredSize().height, image.getHeight()))
@@ -3102,6 +3843,7 @@ public final class DrawingPanel implements ImageObserver {
             }
             
             image2 = image;
+            comparison = null;
             setPreferredSize(new Dimension(
                                            Math.max(getPreferredSize().width, image.getWidth()),
                                            Math.max(getPreferredSize().height, image.getHeight()))
@@ -3217,17 +3959,6 @@ public final class DrawingPanel implements ImageObserver {
         }
     }
     
-    // inner class to represent one frame of an animated GIF
-    private static class ImageFrame {
-        public Image image;
-        public int delay;
-        
-        public ImageFrame(Image image, int delay) {
-            this.image = image;
-            this.delay = delay / 10;   // strangely, gif stores delay as sec/100
-        }
-    }
-
     // inner class to do the actual drawing onto the DrawingPanel
     private class ImagePanel extends JPanel {
         private static final long serialVersionUID = 0;
@@ -3373,10 +4104,10 @@ public final class DrawingPanel implements ImageObserver {
      * There are still some limitations. For instance, animations are limited to
      * a single global color table. But that is usually what you want anyway, so
      * as to avoid irregularities on some displays. (So this is not really a
-     * limitation, but a "disciplinary feature" :) Another rather more serious
-     * restriction is that the total number of RGB colors in a given input-batch
-     * mustn't exceed 256. Obviously, there is an opening here for someone who
-     * would like to add a color-reducing preprocessor.
+     * limitation, but a "disciplinary feature" :) When the RGB frames of an
+     * input-batch hold more than 256 colors between them, the palette is chosen
+     * by octree quantization over all frames (optionally with ordered dithering,
+     * see setDithering()) instead of being collected color by color.
      * <p>
      * The encoder, though very usable in its present form, is at bottom only a
      * partial implementation skewed toward my own particular needs. Hence a
@@ -3449,6 +4180,7 @@ public final class DrawingPanel implements ImageObserver {
         private int loopCount = 1;
         private String theComments;
         private Vector<Gif89Frame> vFrames = new Vector<Gif89Frame>();
+        private boolean dither;
 
         // ----------------------------------------------------------------------------
         /**
@@ -3551,9 +4283,8 @@ public final class DrawingPanel implements ImageObserver {
          *            An externally constructed Gif89Frame.
          * @exception IOException
          *                If Gif89Frame can't be accommodated. This could happen
-         *                if either (1) the aggregate cross-frame RGB color
-         *                count exceeds 256, or (2) the Gif89Frame subclass is
-         *                incompatible with the present encoder object.
+         *                if the Gif89Frame subclass is incompatible with the
+         *                present encoder object.
          */
         public void addFrame(Gif89Frame gf) throws IOException {
             accommodateFrame(gf);
@@ -3568,8 +4299,7 @@ public final class DrawingPanel implements ImageObserver {
          * @param image
          *            Any Image object that supports pixel-grabbing.
          * @exception IOException
-         *                If either (1) pixel-grabbing fails, (2) the aggregate
-         *                cross-frame RGB color count exceeds 256, or (3) this
+         *                If either (1) pixel-grabbing fails, or (2) this
          *                encoder object was constructed with an explicit color
          *                table.
          */
@@ -3612,9 +4342,8 @@ public final class DrawingPanel implements ImageObserver {
          *            An externally constructed Gif89Frame.
          * @exception IOException
          *                If Gif89Frame can't be accommodated. This could happen
-         *                if either (1) the aggregate cross-frame RGB color
-         *                count exceeds 256, or (2) the Gif89Frame subclass is
-         *                incompatible with the present encoder object.
+         *                if the Gif89Frame subclass is incompatible with the
+         *                present encoder object.
          */
         public void insertFrame(int index, Gif89Frame gf) throws IOException {
             accommodateFrame(gf);
@@ -3662,6 +4391,20 @@ public final class DrawingPanel implements ImageObserver {
             loopCount = count;
         }
 
+        // ----------------------------------------------------------------------------
+        /**
+         * Choose whether ordered dithering is applied when the frames hold more
+         * than 256 distinct colors and the palette has to be quantized. Dithering
+         * smooths gradients at the cost of a slightly noisier (and larger) image.
+         *
+         * @param dither
+         *            true to dither quantized frames. (Default: false)
+         */
+        public void setDithering(boolean dither) {
+            this.dither = dither;
+            colorTable.setDithering(dither);
+        }
+
         // ----------------------------------------------------------------------------
         /**
          * Specify some textual comments to be embedded in GIF.
@@ -3720,15 +4463,18 @@ public final class DrawingPanel implements ImageObserver {
             if (theComments != null && theComments.length() > 0)
                 writeCommentExtension(out);
 
-            // write out the control and rendering data for each frame
-            for (int i = 0; i < nframes; ++i) {
-                DirectGif89Frame frame = (DirectGif89Frame) vFrames
-                        .elementAt(i);
-                frame.encode(out, is_sequence, colorTable.getDepth(),
-                        colorTable.getTransparent());
-                vFrames.set(i, null); // for GC's sake
-                System.gc();
-            }
+            // write out the control and rendering data for each frame; with the
+            // palette settled the frames are independent, so several of them are
+            // compressed at once and written out in frame order
+            int nthreads = Math.min(nframes, gifFrameThreads());
+            if (nthreads > 1)
+                encodeFramesInParallel(out, is_sequence, nthreads);
+            else
+                for (int i = 0; i < nframes; ++i) {
+                    vFrames.elementAt(i).encode(out, is_sequence,
+                            colorTable.getDepth(), colorTable.getTransparent());
+                    vFrames.set(i, null); // for GC's sake
+                }
 
             // write GIF TRAILER
             out.write((int) ';');
@@ -3736,55 +4482,266 @@ public final class DrawingPanel implements ImageObserver {
             out.flush();
         }
 
+        // ----------------------------------------------------------------------------
+        // Encodes each frame into a buffer on the shared frame pool and writes the
+        // buffers to out in frame order, so the output is the same as encoding the
+        // frames one after the other. At most two buffers per worker are pending
+        // at any time, which bounds the memory held by finished frames.
+        // ----------------------------------------------------------------------------
+        private void encodeFramesInParallel(OutputStream out,
+                final boolean is_sequence, int nthreads) throws IOException {
+            final int depth = colorTable.getDepth();
+            final int transparent = colorTable.getTransparent();
+            ExecutorService pool = gifFramePool();
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+            try {
+                for (int i = 0; i < vFrames.size(); ++i) {
+                    final Gif89Frame frame = vFrames.elementAt(i);
+                    vFrames.set(i, null); // for GC's sake
+                    pending.add(pool.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                                    frame.getWidth() * frame.getHeight() / 2 + 64);
+                            frame.encode(buffer, is_sequence, depth, transparent);
+                            return buffer.toByteArray();
+                        }
+                    }));
+                    if (pending.size() >= 2 * nthreads)
+                        out.write(awaitFrame(pending.remove()));
+                }
+                while (!pending.isEmpty())
+                    out.write(awaitFrame(pending.remove()));
+            } finally {
+                // after a failure, drop the frames nobody will write
+                for (Future<byte[]> frame : pending)
+                    frame.cancel(true);
+            }
+        }
+
+        // ----------------------------------------------------------------------------
+        private byte[] awaitFrame(Future<byte[]> frame) throws IOException {
+            try {
+                return frame.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted encoding GIF frames");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException("error encoding GIF frame", e.getCause());
+            }
+        }
+
         public boolean hasStarted = false;
 
+        // what a viewer displays after the frames streamed so far, which the
+        // next streamed frame is compared against
+        private int[] displayed;
+        private int displayedWidth;
+
+        // streamed frames being quantized and compressed, oldest first, still to
+        // be written to the stream
+        private ArrayDeque<Future<byte[]>> streaming = new ArrayDeque<Future<byte[]>>();
+
         // ----------------------------------------------------------------------------
         /**
-         * After adding your frame(s) and setting your options, simply call this
-         * method to write the GIF to the passed stream. Multiple calls are
-         * permissible if for some reason that is useful to your application.
-         * (The method simply encodes the current state of the object with no
-         * thought to previous calls.)
+         * Begin writing an animated GIF whose frames will be supplied one at a
+         * time by continueEncoding(), as they become available. Unlike
+         * encode(), nothing is kept from one frame to the next, so memory use
+         * stays at about one frame however long the sequence gets. Because the
+         * colors of later frames aren't known yet, there is no global color
+         * table; each frame is written with its own local one instead. Set the
+         * loop count and comments before calling this method.
          *
          * @param out
          *            The stream you want the GIF written to.
+         * @param width
+         *            Width of the logical display, normally that of the frames.
+         * @param height
+         *            Height of same.
          * @exception IOException
          *                If a write error is encountered.
          */
-        public void startEncoding(OutputStream out, Image image, int delay)
+        public void startEncoding(OutputStream out, int width, int height)
                 throws IOException {
             hasStarted = true;
-            boolean is_sequence = true;
-            Gif89Frame gf = new DirectGif89Frame(image);
-            accommodateFrame(gf);
-
-            // N.B. must be called before writing screen descriptor
-            colorTable.closePixelProcessing();
+            dispDim = new Dimension(width, height);
+            displayed = null;
+            for (Future<byte[]> frame : streaming)
+                frame.cancel(true); // left over from an abandoned sequence
+            streaming.clear();
 
             // write GIF HEADER
             putAscii("GIF89a", out);
 
-            // write global blocks
-            writeLogicalScreenDescriptor(out);
-            colorTable.encode(out);
-            if (is_sequence && loopCount != 1)
+            // write the logical screen descriptor, flagging that no global
+            // color table follows (bits per primary color less 1 (3:7))
+            putShort(dispDim.width, out);
+            putShort(dispDim.height, out);
+            out.write(0x70);
+            out.write(0); // background color index (no global table)
+            out.write(0); // pixel aspect ratio (none specified)
+
+            if (loopCount != 1)
                 writeNetscapeExtension(out);
             if (theComments != null && theComments.length() > 0)
                 writeCommentExtension(out);
         }
 
+        // ----------------------------------------------------------------------------
+        /**
+         * Write one more frame of a sequence begun with startEncoding(). The
+         * frame gets a palette of its own, quantized if it holds more than 256
+         * colors. Only the bounding rectangle of the pixels that differ from
+         * what is already on display is written, with the unchanged pixels in it
+         * made transparent, and the frame is left in place (DM_LEAVE) for the
+         * next one to be drawn over.
+         *
+         * The image is read and compared before this method returns, so the
+         * caller may draw on it again straight away. With more than one
+         * processor the frame is then quantized and compressed on the shared
+         * frame pool while the caller goes on, and frames are written to the
+         * stream in order as they finish; finishFrames() or endEncoding() writes
+         * the rest. An error compressing a frame is thrown by a later call.
+         *
+         * @param out
+         *            The stream passed to startEncoding().
+         * @param image
+         *            Any Image object that supports pixel-grabbing.
+         * @param delay
+         *            How long to show the frame, in centiseconds.
+         * @exception IOException
+         *                If pixel-grabbing fails or a write error is
+         *                encountered.
+         */
         public void continueEncoding(OutputStream out, Image image, int delay)
                 throws IOException {
-            // write out the control and rendering data for each frame
-            Gif89Frame gf = new DirectGif89Frame(image);
-            accommodateFrame(gf);
-            gf.encode(out, true, colorTable.getDepth(),
-                    colorTable.getTransparent());
-            out.flush();
-            image.flush();
+            DirectGif89Frame gf = new DirectGif89Frame(image);
+            int[] argb_pixels = (int[]) gf.getPixelSource();
+            if (displayed == null || displayed.length != argb_pixels.length
+                    || displayedWidth != gf.getWidth()) {
+                displayed = argb_pixels.clone();
+                displayedWidth = gf.getWidth();
+            } else {
+                gf = deltaFrame(argb_pixels);
+            }
+            gf.setDisposalMode(Gif89Frame.DM_LEAVE);
+            gf.setDelay(delay);
+            int nthreads = gifFrameThreads();
+            if (nthreads < 2) {
+                encodeStreamedFrame(out, gf, dither);
+                return;
+            }
+
+            final DirectGif89Frame frame = gf;
+            final boolean frameDither = dither;
+            streaming.add(gifFramePool().submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                            frame.getWidth() * frame.getHeight() / 2 + 1024);
+                    encodeStreamedFrame(buffer, frame, frameDither);
+                    return buffer.toByteArray();
+                }
+            }));
+            // write the frames finished so far, in order; wait for the oldest only
+            // once two per worker are pending, which bounds the memory they hold
+            while (!streaming.isEmpty() && (streaming.peek().isDone()
+                    || streaming.size() > 2 * nthreads))
+                out.write(awaitFrame(streaming.remove()));
         }
 
+        // ----------------------------------------------------------------------------
+        /**
+         * Write every frame passed to continueEncoding() that has not been
+         * written yet, waiting for those still being compressed.
+         *
+         * @param out
+         *            The stream passed to startEncoding().
+         * @exception IOException
+         *                If a frame could not be compressed or a write error
+         *                is encountered.
+         */
+        public void finishFrames(OutputStream out) throws IOException {
+            try {
+                while (!streaming.isEmpty())
+                    out.write(awaitFrame(streaming.remove()));
+            } finally {
+                for (Future<byte[]> frame : streaming)
+                    frame.cancel(true);
+                streaming.clear();
+            }
+        }
+
+        // ----------------------------------------------------------------------------
+        // Quantizes a streamed frame to a palette of its own and writes it, with
+        // that palette as its local color table, to os.
+        // ----------------------------------------------------------------------------
+        private void encodeStreamedFrame(OutputStream os, Gif89Frame gf,
+                boolean dither) throws IOException {
+            GifColorTable frameColors = new GifColorTable();
+            frameColors.setDithering(dither);
+            frameColors.processPixels(gf);
+            frameColors.closePixelProcessing();
+            gf.encode(os, true, frameColors);
+        }
+
+        // ----------------------------------------------------------------------------
+        // Builds a frame covering just the pixels of argb_pixels that would change
+        // what is displayed, and records them as displayed. Transparent pixels
+        // never change anything, since the frame below shows through them.
+        // ----------------------------------------------------------------------------
+        private DirectGif89Frame deltaFrame(int[] argb_pixels) {
+            int width = displayedWidth;
+            int height = argb_pixels.length / width;
+            int minX = width, minY = height, maxX = -1, maxY = -1;
+            for (int y = 0, i = 0; y < height; ++y)
+                for (int x = 0; x < width; ++x, ++i) {
+                    int argb = argb_pixels[i];
+                    if ((argb >>> 24) >= 0x80 && argb != displayed[i]) {
+                        if (x < minX)
+                            minX = x;
+                        if (x > maxX)
+                            maxX = x;
+                        if (y < minY)
+                            minY = y;
+                        maxY = y;
+                    }
+                }
+            if (maxX < 0) {
+                // nothing changed; a single transparent pixel carries the delay
+                minX = minY = maxX = maxY = 0;
+            }
+
+            int rw = maxX - minX + 1, rh = maxY - minY + 1;
+            int[] delta = new int[rw * rh]; // zero, i.e. transparent
+            for (int y = 0; y < rh; ++y)
+                for (int x = 0, i = (minY + y) * width + minX; x < rw; ++x, ++i) {
+                    int argb = argb_pixels[i];
+                    if ((argb >>> 24) >= 0x80 && argb != displayed[i]) {
+                        delta[y * rw + x] = argb;
+                        displayed[i] = argb;
+                    }
+                }
+            DirectGif89Frame frame = new DirectGif89Frame(rw, rh, delta);
+            frame.setPosition(new Point(minX, minY));
+            return frame;
+        }
+
+        // ----------------------------------------------------------------------------
+        /**
+         * Finish a sequence begun with startEncoding() by writing any frames
+         * not written yet and then the GIF trailer. The stream is flushed but
+         * not closed.
+         *
+         * @param out
+         *            The stream passed to startEncoding().
+         * @exception IOException
+         *                If a frame could not be compressed or a write error
+         *                is encountered.
+         */
         public void endEncoding(OutputStream out) throws IOException {
+            finishFrames(out);
+
             // write GIF TRAILER
             out.write((int) ';');
 
@@ -3905,6 +4862,10 @@ public final class DrawingPanel implements ImageObserver {
         // the palette of ARGB colors, packed as returned by Color.getRGB()
         private int[] theColors = new int[256];
 
+        // 4x4 Bayer threshold matrix (values 0-15) for ordered dithering
+        private final int[] BAYER_4X4 = { 0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9,
+                15, 7, 13, 5 };
+
         // other basic attributes
         private int colorDepth;
         private int transparentIndex = -1;
@@ -3913,6 +4874,14 @@ public final class DrawingPanel implements ImageObserver {
         private int ciCount = 0; // count of distinct color indices
         private ReverseColorMap ciLookup; // cumulative rgb-to-ci lookup table
 
+        // these fields support frames with more than 256 distinct colors, whose
+        // palette is chosen by quantization once all frames have been seen
+        private List<DirectGif89Frame> directFrames = new ArrayList<DirectGif89Frame>();
+        private boolean quantizing;
+        private boolean dither;
+        private boolean closed;
+        private GifColorQuantizer quantizer;
+
         // ----------------------------------------------------------------------------
         GifColorTable() {
             ciLookup = new ReverseColorMap(); // puts us into "auto-detect mode"
@@ -3927,6 +4896,12 @@ public final class DrawingPanel implements ImageObserver {
 
         int indexOf(Color color) {
             int rgb = color.getRGB();
+            if (ciLookup != null) {
+                int idx = ciLookup.getPaletteIndex(rgb & 0xffffff);
+                if (idx >= 0 && theColors[idx] == rgb) {
+                    return idx;
+                }
+            }
             for (int i = 0; i < theColors.length; i++) {
                 if (rgb == theColors[i]) {
                     return i;
@@ -3935,6 +4910,13 @@ public final class DrawingPanel implements ImageObserver {
             return -1;
         }
 
+        // ----------------------------------------------------------------------------
+        // Whether to apply ordered dithering when frames have to be quantized down
+        // to 256 colors (default: false).
+        void setDithering(boolean dither) {
+            this.dither = dither;
+        }
+
         // ----------------------------------------------------------------------------
         int getDepth() {
             return colorDepth;
@@ -3962,6 +4944,10 @@ public final class DrawingPanel implements ImageObserver {
         // ----------------------------------------------------------------------------
         void closePixelProcessing() // must be called before encode()
         {
+            if (quantizing && quantizer == null)
+                quantize();
+            directFrames.clear();
+            closed = true;
             colorDepth = computeColorDepth(ciCount);
         }
 
@@ -3995,34 +4981,61 @@ public final class DrawingPanel implements ImageObserver {
                 throw new IOException(
                         "RGB frames require palette autodetection");
 
+            if (quantizer != null) {
+                // palette already quantized (streaming): map straight onto it
+                remap(dgf);
+                return;
+            }
+            if (!closed)
+                directFrames.add(dgf);
+            if (quantizing)
+                return; // all frames get mapped once the palette is chosen
+
             int[] argb_pixels = (int[]) dgf.getPixelSource();
             byte[] ci_pixels = dgf.getPixelSink();
             int npixels = argb_pixels.length;
             for (int i = 0; i < npixels; ++i) {
                 int argb = argb_pixels[i];
 
-                // handle transparency
+                // handle transparency: all transparent pixels collapse into one
+                // color index of their own, kept out of the reverse table so
+                // that an opaque pixel of the same rgb doesn't map onto it
                 if ((argb >>> 24) < 0x80) // transparent pixel?
-                    if (transparentIndex == -1) // first transparent color
-                                                // encountered?
-                        transparentIndex = ciCount; // record its index
-                    else if (argb != theColors[transparentIndex]) // different
-                                                                    // pixel
-                                                                    // value?
+                {
+                    if (transparentIndex == -1) // first one encountered?
                     {
-                        // collapse all transparent pixels into one color index
-                        ci_pixels[i] = (byte) transparentIndex;
-                        continue; // CONTINUE - index already in table
+                        if (closed) {
+                            // the palette has been written without one
+                            ci_pixels[i] = (byte) nearestIndex(argb);
+                            continue;
+                        }
+                        if (ciCount == 256) {
+                            quantizing = true;
+                            return;
+                        }
+                        transparentIndex = ciCount++; // record its index
+                        theColors[transparentIndex] = argb;
                     }
+                    ci_pixels[i] = (byte) transparentIndex;
+                    continue; // CONTINUE - index already in table
+                }
 
                 // try to look up the index in our "reverse" color table
                 int color_index = ciLookup.getPaletteIndex(argb & 0xffffff);
 
                 if (color_index == -1) // if it isn't in there yet
                 {
-                    if (ciCount == 256)
-                        throw new IOException(
-                                "can't encode as GIF (> 256 colors)");
+                    if (closed) {
+                        // the palette has been written; use its closest color
+                        ci_pixels[i] = (byte) nearestIndex(argb);
+                        continue;
+                    }
+                    if (ciCount == 256) {
+                        // too many colors for a GIF; the palette will be
+                        // quantized from all frames at closePixelProcessing()
+                        quantizing = true;
+                        return;
+                    }
 
                     // store color in our accumulating palette
                     theColors[ciCount] = argb;
@@ -4042,6 +5055,103 @@ public final class DrawingPanel implements ImageObserver {
             }
         }
 
+        // ----------------------------------------------------------------------------
+        // Replaces the accumulated palette with an octree-quantized one, built from
+        // a histogram of the opaque pixels of every frame seen so far, and maps the
+        // pixels of those frames onto it. One palette slot is kept back for
+        // transparency if any pixel is transparent.
+        // ----------------------------------------------------------------------------
+        private void quantize() {
+            ReverseColorMap histogram = new ReverseColorMap(4096);
+            boolean transparent = false;
+            for (DirectGif89Frame dgf : directFrames) {
+                int[] argb_pixels = (int[]) dgf.getPixelSource();
+                for (int argb : argb_pixels) {
+                    if ((argb >>> 24) < 0x80)
+                        transparent = true;
+                    else
+                        histogram.add(argb & 0xffffff, 1);
+                }
+            }
+
+            quantizer = new GifColorQuantizer(transparent ? 255 : 256);
+            for (int slot = 0; slot < histogram.capacity(); ++slot)
+                if (histogram.keyAt(slot) >= 0)
+                    quantizer.add(histogram.keyAt(slot), histogram.valueAt(slot));
+            int[] palette = quantizer.buildPalette();
+
+            System.arraycopy(palette, 0, theColors, 0, palette.length);
+            ciCount = palette.length;
+            transparentIndex = -1;
+            if (transparent) {
+                transparentIndex = ciCount;
+                theColors[ciCount++] = 0;
+            }
+
+            // from here on ciLookup caches rgb-to-index answers of the quantizer
+            ciLookup = new ReverseColorMap();
+            for (DirectGif89Frame dgf : directFrames)
+                remap(dgf);
+        }
+
+        // ----------------------------------------------------------------------------
+        // Maps a frame's pixels onto the quantized palette, with optional 4x4 ordered
+        // (Bayer) dithering to break up the banding of smooth gradients.
+        // ----------------------------------------------------------------------------
+        private void remap(DirectGif89Frame dgf) {
+            int[] argb_pixels = (int[]) dgf.getPixelSource();
+            byte[] ci_pixels = dgf.getPixelSink();
+            int width = dgf.getWidth();
+            for (int i = 0; i < argb_pixels.length; ++i) {
+                int argb = argb_pixels[i];
+                if ((argb >>> 24) < 0x80 && transparentIndex >= 0) {
+                    ci_pixels[i] = (byte) transparentIndex;
+                    continue;
+                }
+                int rgb = argb & 0xffffff;
+                if (dither) {
+                    int x = i % width, y = i / width;
+                    int offset = (BAYER_4X4[(y & 3) << 2 | (x & 3)] * 2 - 15);
+                    rgb = clamp((rgb >> 16 & 0xff) + offset) << 16
+                            | clamp((rgb >> 8 & 0xff) + offset) << 8
+                            | clamp((rgb & 0xff) + offset);
+                }
+                int color_index = ciLookup.getPaletteIndex(rgb);
+                if (color_index == -1) {
+                    color_index = quantizer.indexOf(rgb);
+                    ciLookup.put(rgb, color_index);
+                }
+                ci_pixels[i] = (byte) color_index;
+            }
+        }
+
+        // ----------------------------------------------------------------------------
+        private int clamp(int channel) {
+            return channel < 0 ? 0 : channel > 255 ? 255 : channel;
+        }
+
+        // ----------------------------------------------------------------------------
+        // Index of the opaque palette entry closest to argb, for colors that turn up
+        // after the palette has been written.
+        private int nearestIndex(int argb) {
+            int r = argb >> 16 & 0xff, g = argb >> 8 & 0xff, b = argb & 0xff;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < ciCount; ++i) {
+                if (i == transparentIndex)
+                    continue;
+                int dr = r - (theColors[i] >> 16 & 0xff);
+                int dg = g - (theColors[i] >> 8 & 0xff);
+                int db = b - (theColors[i] & 0xff);
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            return best;
+        }
+
         // ----------------------------------------------------------------------------
         private void trackPixelUsage(IndexGif89Frame igf) throws IOException {
             byte[] ci_pixels = (byte[]) igf.getPixelSource();
@@ -4067,67 +5177,308 @@ public final class DrawingPanel implements ImageObserver {
     }
 
     // ==============================================================================
-    // We're doing a very simple linear hashing thing here, which seems
-    // sufficient
-    // for our needs. I make no claims for this approach other than that it
-    // seems
-    // an improvement over doing a brute linear search for each pixel on the one
-    // hand, and creating a Java object for each pixel (if we were to use a Java
-    // Hashtable) on the other. Doubtless my little hash could be improved by
-    // tuning the capacity (at the very least). Suggestions are welcome.
+    // Maps 24-bit RGB values to palette indices (or, used as a histogram, to pixel
+    // counts). Keys and values live in two parallel int arrays, so no object is
+    // created per color. The table size is a power of two, probed linearly from a
+    // mixed hash, and doubles whenever it becomes half full, so lookups stay short
+    // whether it holds a 256-color palette or the full color histogram of a frame.
     // ==============================================================================
     class ReverseColorMap {
 
-        private class ColorRecord {
-            int rgb;
-            int ipalette;
+        // marks an unused slot; rgb keys never have the high byte set
+        private static final int EMPTY = -1;
 
-            ColorRecord(int rgb, int ipalette) {
-                this.rgb = rgb;
-                this.ipalette = ipalette;
-            }
-        }
+        private int[] keys;
+        private int[] values;
+        private int count;
 
-        // I wouldn't really know what a good hashing capacity is, having missed
-        // out
-        // on data structures and algorithms class :) Alls I know is, we've got
-        // a lot
-        // more space than we have time. So let's try a sparse table with a
-        // maximum
-        // load of about 1/8 capacity.
-        private static final int HCAPACITY = 2053; // a nice prime number
+        // ----------------------------------------------------------------------------
+        ReverseColorMap() {
+            this(256);
+        }
 
-        // our hash table proper
-        private ColorRecord[] hTable = new ColorRecord[HCAPACITY];
+        // ----------------------------------------------------------------------------
+        ReverseColorMap(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
 
         // ----------------------------------------------------------------------------
         // Assert: rgb is not negative (which is the same as saying, be sure the
         // alpha transparency byte - i.e., the high byte - has been masked out).
         // ----------------------------------------------------------------------------
         int getPaletteIndex(int rgb) {
-            ColorRecord rec;
+            int mask = keys.length - 1;
+            for (int i = slot(rgb, mask); ; i = (i + 1) & mask) {
+                int key = keys[i];
+                if (key == rgb) {
+                    return values[i];
+                }
+                if (key == EMPTY) {
+                    return -1;
+                }
+            }
+        }
 
-            for (int itable = rgb % hTable.length; (rec = hTable[itable]) != null
-                    && rec.rgb != rgb; itable = ++itable % hTable.length)
-                ;
+        // ----------------------------------------------------------------------------
+        // Assert: same as above. Replaces the value if the key is already present.
+        // ----------------------------------------------------------------------------
+        void put(int rgb, int ipalette) {
+            int i = find(rgb);
+            if (keys[i] == EMPTY) {
+                keys[i] = rgb;
+                values[i] = ipalette;
+                grow();
+            } else {
+                values[i] = ipalette;
+            }
+        }
 
-            if (rec != null)
-                return rec.ipalette;
+        // ----------------------------------------------------------------------------
+        // Histogram use: adds delta to the value stored for rgb (absent counts as 0).
+        // ----------------------------------------------------------------------------
+        void add(int rgb, int delta) {
+            int i = find(rgb);
+            if (keys[i] == EMPTY) {
+                keys[i] = rgb;
+                values[i] = delta;
+                grow();
+            } else {
+                values[i] += delta;
+            }
+        }
 
-            return -1;
+        // ----------------------------------------------------------------------------
+        int size() {
+            return count;
         }
 
         // ----------------------------------------------------------------------------
-        // Assert: (1) same as above; (2) rgb key not already present
+        // Iteration support: slots run from 0 to capacity() - 1, and keyAt returns
+        // -1 for slots that hold nothing.
         // ----------------------------------------------------------------------------
-        void put(int rgb, int ipalette) {
-            int itable;
+        int capacity() {
+            return keys.length;
+        }
+
+        int keyAt(int slot) {
+            return keys[slot];
+        }
+
+        int valueAt(int slot) {
+            return values[slot];
+        }
+
+        // ----------------------------------------------------------------------------
+        // Returns the slot holding rgb, or the empty slot where it belongs.
+        private int find(int rgb) {
+            int mask = keys.length - 1;
+            int i = slot(rgb, mask);
+            while (keys[i] != EMPTY && keys[i] != rgb) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        // ----------------------------------------------------------------------------
+        // Spreads the rgb bits over the table so that neighboring colors (as in a
+        // gradient) don't pile up in neighboring slots.
+        private int slot(int rgb, int mask) {
+            int h = rgb * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        // ----------------------------------------------------------------------------
+        // Counts a newly inserted key and doubles the table once it is half full.
+        private void grow() {
+            count++;
+            if (count * 2 <= keys.length) {
+                return;
+            }
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(keys, EMPTY);
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != EMPTY) {
+                    int i = slot(oldKeys[j], mask);
+                    while (keys[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    // ==============================================================================
+    // Octree color quantizer (after Gervautz and Purgathofer), used by
+    // GifColorTable when the frames of a GIF hold more than 256 distinct colors.
+    // Colors are added with their pixel counts. Whenever there are more leaves than
+    // the palette may hold, the deepest internal node is folded into a single leaf,
+    // so the tree never grows beyond about 8 * maxColors nodes. Each leaf becomes
+    // one palette entry, the count-weighted average of the colors it absorbed.
+    // ==============================================================================
+    class GifColorQuantizer {
+
+        private static final int MAX_DEPTH = 8;
+
+        private class Node {
+            long redSum, greenSum, blueSum, pixelCount;
+            Node[] children;
+            boolean leaf;
+            int paletteIndex;
+        }
+
+        private final int maxColors;
+        private final Node root = new Node();
+        private final List<List<Node>> reducible = new ArrayList<List<Node>>();
+        private int leafCount;
+        private int[] palette;
 
-            for (itable = rgb % hTable.length; hTable[itable] != null; itable = ++itable
-                    % hTable.length)
-                ;
+        // ----------------------------------------------------------------------------
+        GifColorQuantizer(int maxColors) {
+            this.maxColors = maxColors;
+            for (int level = 0; level < MAX_DEPTH; level++) {
+                reducible.add(new ArrayList<Node>());
+            }
+        }
+
+        // ----------------------------------------------------------------------------
+        // Adds a 24-bit rgb color that occurs in count pixels.
+        void add(int rgb, int count) {
+            Node node = root;
+            for (int level = 0; !node.leaf; level++) {
+                if (node.children == null) {
+                    node.children = new Node[8];
+                }
+                int child = childIndex(rgb, level);
+                if (node.children[child] == null) {
+                    Node created = new Node();
+                    if (level + 1 == MAX_DEPTH) {
+                        created.leaf = true;
+                        leafCount++;
+                    } else {
+                        reducible.get(level + 1).add(created);
+                    }
+                    node.children[child] = created;
+                }
+                node = node.children[child];
+            }
+            node.redSum += (long) (rgb >> 16 & 0xff) * count;
+            node.greenSum += (long) (rgb >> 8 & 0xff) * count;
+            node.blueSum += (long) (rgb & 0xff) * count;
+            node.pixelCount += count;
+            while (leafCount > maxColors) {
+                reduce();
+            }
+        }
+
+        // ----------------------------------------------------------------------------
+        // Assigns palette indices to the leaves and returns the palette as ARGB
+        // values (full alpha), at most maxColors long.
+        int[] buildPalette() {
+            List<Node> leaves = new ArrayList<Node>();
+            collectLeaves(root, leaves);
+            palette = new int[leaves.size()];
+            for (int i = 0; i < palette.length; i++) {
+                Node leaf = leaves.get(i);
+                long n = Math.max(1, leaf.pixelCount);
+                leaf.paletteIndex = i;
+                palette[i] = 0xff000000
+                        | (int) (leaf.redSum / n) << 16
+                        | (int) (leaf.greenSum / n) << 8
+                        | (int) (leaf.blueSum / n);
+            }
+            return palette;
+        }
 
-            hTable[itable] = new ColorRecord(rgb, ipalette);
+        // ----------------------------------------------------------------------------
+        // Returns the palette index for any 24-bit rgb color; call buildPalette first.
+        // Colors that were added find their leaf directly, others fall back to the
+        // nearest palette entry.
+        int indexOf(int rgb) {
+            Node node = root;
+            for (int level = 0; !node.leaf; level++) {
+                Node child = node.children == null ? null : node.children[childIndex(rgb, level)];
+                if (child == null) {
+                    return nearest(rgb);
+                }
+                node = child;
+            }
+            return node.paletteIndex;
+        }
+
+        // ----------------------------------------------------------------------------
+        private int nearest(int rgb) {
+            int r = rgb >> 16 & 0xff, g = rgb >> 8 & 0xff, b = rgb & 0xff;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < palette.length; i++) {
+                int dr = r - (palette[i] >> 16 & 0xff);
+                int dg = g - (palette[i] >> 8 & 0xff);
+                int db = b - (palette[i] & 0xff);
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        // ----------------------------------------------------------------------------
+        // Folds the most recently created internal node of the deepest level that has
+        // any into a leaf holding the sum of its children.
+        private void reduce() {
+            int level = MAX_DEPTH - 1;
+            while (level > 0 && reducible.get(level).isEmpty()) {
+                level--;
+            }
+            List<Node> candidates = reducible.get(level);
+            Node node = candidates.remove(candidates.size() - 1);
+            int merged = 0;
+            for (Node child : node.children) {
+                if (child != null) {
+                    node.redSum += child.redSum;
+                    node.greenSum += child.greenSum;
+                    node.blueSum += child.blueSum;
+                    node.pixelCount += child.pixelCount;
+                    merged++;
+                }
+            }
+            node.children = null;
+            node.leaf = true;
+            leafCount -= merged - 1;
+        }
+
+        // ----------------------------------------------------------------------------
+        private void collectLeaves(Node node, List<Node> leaves) {
+            if (node.leaf) {
+                leaves.add(node);
+            } else if (node.children != null) {
+                for (Node child : node.children) {
+                    if (child != null) {
+                        collectLeaves(child, leaves);
+                    }
+                }
+            }
+        }
+
+        // ----------------------------------------------------------------------------
+        private int childIndex(int rgb, int level) {
+            int shift = 7 - level;
+            return (rgb >> (16 + shift) & 1) << 2
+                    | (rgb >> (8 + shift) & 1) << 1
+                    | (rgb >> shift & 1);
         }
     }
 
@@ -4308,6 +5659,26 @@ public final class DrawingPanel implements ImageObserver {
                     color_depth).encode(os);
         }
 
+        // ----------------------------------------------------------------------------
+        // Variant of encode() for frames that carry a local color table rather than
+        // relying on the global one.
+        void encode(OutputStream os, boolean epluribus, GifColorTable local_colors)
+                throws IOException {
+            int color_depth = local_colors.getDepth();
+            writeGraphicControlExtension(os, epluribus,
+                    local_colors.getTransparent());
+            os.write((int) ','); // Image Separator
+            putShort(thePosition.x, os);
+            putShort(thePosition.y, os);
+            putShort(theWidth, os);
+            putShort(theHeight, os);
+            // packed fields: local color table present, interlace flag, size
+            os.write(0x80 | (isInterlaced ? 0x40 : 0) | color_depth - 1);
+            local_colors.encode(os);
+            new GifPixelsEncoder(theWidth, theHeight, ciPixels, isInterlaced,
+                    color_depth).encode(os);
+        }
+
         // ----------------------------------------------------------------------------
         private void writeGraphicControlExtension(OutputStream os,
                 boolean epluribus, int itransparent) throws IOException {
@@ -4337,20 +5708,30 @@ public final class DrawingPanel implements ImageObserver {
         }
     }
 
+    // ==============================================================================
+    // LZW-compresses a frame of color indices into GIF image data. The algorithm
+    // and its output are those of Jef Poskanzer's GIFCOMPR.C (after 'compress'),
+    // which this class used to port line by line; the core now runs over a flat
+    // byte[] in pixel order, looks strings up in an open-addressing table kept per
+    // thread (see LzwTables) and packs codes into a growable byte buffer that is
+    // written out in one go, rather than feeding the stream a byte at a time.
     // ==============================================================================
     class GifPixelsEncoder {
 
-        private static final int EOF = -1;
+        private static final int BITS = 12; // largest code size a GIF allows
+        private static final int MAX_CODES = 1 << BITS; // never emitted
+        private static final int PACKET = 254; // data bytes per sub-block
 
         private int imgW, imgH;
         private byte[] pixAry;
         private boolean wantInterlaced;
         private int initCodeSize;
 
-        // raster data navigators
-        private int countDown;
-        private int xCur, yCur;
-        private int curPass;
+        // code-writing state
+        private byte[] buf;
+        private int bufLen;
+        private int accum;
+        private int accumBits;
 
         // ----------------------------------------------------------------------------
         GifPixelsEncoder(int width, int height, byte[] pixels,
@@ -4364,344 +5745,171 @@ public final class DrawingPanel implements ImageObserver {
 
         // ----------------------------------------------------------------------------
         void encode(OutputStream os) throws IOException {
-            os.write(initCodeSize); // write "initial code size" byte
-
-            countDown = imgW * imgH; // reset navigation variables
-            xCur = yCur = curPass = 0;
-
-            compress(initCodeSize + 1, os); // compress and write the pixel data
+            LzwTables tables = LzwTables.CURRENT.get();
+            byte[] pixels = wantInterlaced ? interlace(tables) : pixAry;
+
+            buf = tables.out;
+            bufLen = 0;
+            compress(pixels, imgW * imgH, initCodeSize + 1, tables);
+
+            // split into length-prefixed sub-blocks and write in a single call
+            int npackets = (bufLen + PACKET - 1) / PACKET;
+            byte[] packed = tables.packed(2 + bufLen + npackets);
+            int n = 0;
+            packed[n++] = (byte) initCodeSize; // "initial code size" byte
+            for (int off = 0; off < bufLen; off += PACKET) {
+                int len = Math.min(PACKET, bufLen - off);
+                packed[n++] = (byte) len;
+                System.arraycopy(buf, off, packed, n, len);
+                n += len;
+            }
+            packed[n++] = 0; // block terminator
+            os.write(packed, 0, n);
 
-            os.write(0); // write block terminator
+            tables.out = buf; // keep the buffer if it had to grow
+            buf = null;
         }
 
-        // ****************************************************************************
-        // (J.E.) The logic of the next two methods is largely intact from
-        // Jef Poskanzer. Some stylistic changes were made for consistency sake,
-        // plus the second method accesses the pixel value from a prefiltered
-        // linear
-        // array. That's about it.
-        // ****************************************************************************
-
         // ----------------------------------------------------------------------------
-        // Bump the 'xCur' and 'yCur' to point to the next pixel.
+        // Returns the pixels with their rows in GIF interlace order: every 8th row
+        // from 0, every 8th from 4, every 4th from 2, then every 2nd from 1.
         // ----------------------------------------------------------------------------
-        private void bumpPosition() {
-            // Bump the current X position
-            ++xCur;
-
-            // If we are at the end of a scan line, set xCur back to the
-            // beginning
-            // If we are interlaced, bump the yCur to the appropriate spot,
-            // otherwise, just increment it.
-            if (xCur == imgW) {
-                xCur = 0;
-
-                if (!wantInterlaced)
-                    ++yCur;
-                else
-                    switch (curPass) {
-                    case 0:
-                        yCur += 8;
-                        if (yCur >= imgH) {
-                            ++curPass;
-                            yCur = 4;
-                        }
-                        break;
-                    case 1:
-                        yCur += 8;
-                        if (yCur >= imgH) {
-                            ++curPass;
-                            yCur = 2;
-                        }
-                        break;
-                    case 2:
-                        yCur += 4;
-                        if (yCur >= imgH) {
-                            ++curPass;
-                            yCur = 1;
-                        }
-                        break;
-                    case 3:
-                        yCur += 2;
-                        break;
-                    }
-            }
+        private byte[] interlace(LzwTables tables) {
+            byte[] rows = tables.interlaced(imgW * imgH);
+            int dest = 0;
+            int[] starts = { 0, 4, 2, 1 };
+            int[] steps = { 8, 8, 4, 2 };
+            for (int pass = 0; pass < 4; ++pass)
+                for (int y = starts[pass]; y < imgH; y += steps[pass]) {
+                    System.arraycopy(pixAry, y * imgW, rows, dest, imgW);
+                    dest += imgW;
+                }
+            return rows;
         }
 
         // ----------------------------------------------------------------------------
-        // Return the next pixel from the image
+        // The compressor proper. Strings are identified by (prefix code, next
+        // index) pairs packed into one int key; a key's slot is found by linear
+        // probing from a multiplicative hash. When all 4096 codes are used up a
+        // clear code is sent and the table starts over.
         // ----------------------------------------------------------------------------
-        private int nextPixel() {
-            if (countDown == 0)
-                return EOF;
-
-            --countDown;
-
-            byte pix = pixAry[yCur * imgW + xCur];
-
-            bumpPosition();
-
-            return pix & 0xff;
-        }
-
-        // ****************************************************************************
-        // (J.E.) I didn't touch Jef Poskanzer's code from this point on. (Well,
-        // OK,
-        // I changed the name of the sole outside method it accesses.) I figure
-        // if I have no idea how something works, I shouldn't play with it :)
-        //
-        // Despite its unencapsulated structure, this section is actually highly
-        // self-contained. The calling code merely calls compress(), and the
-        // present
-        // code calls nextPixel() in the caller. That's the sum total of their
-        // communication. I could have dumped it in a separate class with a
-        // callback
-        // via an interface, but it didn't seem worth messing with.
-        // ****************************************************************************
-
-        // GIFCOMPR.C - GIF Image compression routines
-        //
-        // Lempel-Ziv compression based on 'compress'. GIF modifications by
-        // David Rowley (mgardi@watdcsu.waterloo.edu)
-
-        // General DEFINEs
-
-        static final int BITS = 12;
-
-        static final int HSIZE = 5003; // 80% occupancy
-
-        // GIF Image compression - modified 'compress'
-        //
-        // Based on: compress.c - File compression ala IEEE Computer, June 1984.
-        //
-        // By Authors: Spencer W. Thomas (decvax!harpo!utah-cs!utah-gr!thomas)
-        // Jim McKie (decvax!mcvax!jim)
-        // Steve Davies (decvax!vax135!petsd!peora!srd)
-        // Ken Turkowski (decvax!decwrl!turtlevax!ken)
-        // James A. Woods (decvax!ihnp4!ames!jaw)
-        // Joe Orost (decvax!vax135!petsd!joe)
-
-        int n_bits; // number of bits/code
-        int maxbits = BITS; // user settable max # bits/code
-        int maxcode; // maximum code, given n_bits
-        int maxmaxcode = 1 << BITS; // should NEVER generate this code
-
-        final int MAXCODE(int n_bits) {
-            return (1 << n_bits) - 1;
-        }
-
-        int[] htab = new int[HSIZE];
-        int[] codetab = new int[HSIZE];
-
-        int hsize = HSIZE; // for dynamic table sizing
-
-        int free_ent = 0; // first unused entry
-
-        // block compression parameters -- after all codes are used up,
-        // and compression rate changes, start over.
-        boolean clear_flg = false;
-
-        // Algorithm: use open addressing double hashing (no chaining) on the
-        // prefix code / next character combination. We do a variant of Knuth's
-        // algorithm D (vol. 3, sec. 6.4) along with G. Knott's relatively-prime
-        // secondary probe. Here, the modular division first probe is gives way
-        // to a faster exclusive-or manipulation. Also do block compression with
-        // an adaptive reset, whereby the code table is cleared when the
-        // compression
-        // ratio decreases, but after the table fills. The variable-length
-        // output
-        // codes are re-sized at this point, and a special CLEAR code is
-        // generated
-        // for the decompressor. Late addition: construct the table according to
-        // file size for noticeable speed improvement on small files. Please
-        // direct
-        // questions about this implementation to ames!jaw.
-
-        int g_init_bits;
-
-        int ClearCode;
-        int EOFCode;
-
-        void compress(int init_bits, OutputStream outs) throws IOException {
-            int fcode;
-            int i /* = 0 */;
-            int c;
-            int ent;
-            int disp;
-            int hsize_reg;
-            int hshift;
-
-            // Set up the globals: g_init_bits - initial number of bits
-            g_init_bits = init_bits;
-
-            // Set up the necessary values
-            clear_flg = false;
-            n_bits = g_init_bits;
-            maxcode = MAXCODE(n_bits);
-
-            ClearCode = 1 << (init_bits - 1);
-            EOFCode = ClearCode + 1;
-            free_ent = ClearCode + 2;
-
-            char_init();
-
-            ent = nextPixel();
-
-            hshift = 0;
-            for (fcode = hsize; fcode < 65536; fcode *= 2)
-                ++hshift;
-            hshift = 8 - hshift; // set hash code range bound
-
-            hsize_reg = hsize;
-            cl_hash(hsize_reg); // clear hash table
-
-            output(ClearCode, outs);
-
-            outer_loop: while ((c = nextPixel()) != EOF) {
-                fcode = (c << maxbits) + ent;
-                i = (c << hshift) ^ ent; // xor hashing
-
-                if (htab[i] == fcode) {
-                    ent = codetab[i];
-                    continue;
-                } else if (htab[i] >= 0) // non-empty slot
-                {
-                    disp = hsize_reg - i; // secondary hash (after G. Knott)
-                    if (i == 0)
-                        disp = 1;
-                    do {
-                        if ((i -= disp) < 0)
-                            i += hsize_reg;
-
-                        if (htab[i] == fcode) {
-                            ent = codetab[i];
-                            continue outer_loop;
-                        }
-                    } while (htab[i] >= 0);
-                }
-                output(ent, outs);
-                ent = c;
-                if (free_ent < maxmaxcode) {
-                    codetab[i] = free_ent++; // code -> hashtable
-                    htab[i] = fcode;
-                } else
-                    cl_block(outs);
-            }
-            // Put out the final code.
-            output(ent, outs);
-            output(EOFCode, outs);
-        }
-
-        // output
-        //
-        // Output the given code.
-        // Inputs:
-        // code: A n_bits-bit integer. If == -1, then EOF. This assumes
-        // that n_bits =< wordsize - 1.
-        // Outputs:
-        // Outputs code to the file.
-        // Assumptions:
-        // Chars are 8 bits long.
-        // Algorithm:
-        // Maintain a BITS character long buffer (so that 8 codes will
-        // fit in it exactly). Use the VAX insv instruction to insert each
-        // code in turn. When the buffer fills up empty it and start over.
-
-        int cur_accum = 0;
-        int cur_bits = 0;
-
-        int masks[] = { 0x0000, 0x0001, 0x0003, 0x0007, 0x000F, 0x001F, 0x003F,
-                0x007F, 0x00FF, 0x01FF, 0x03FF, 0x07FF, 0x0FFF, 0x1FFF, 0x3FFF,
-                0x7FFF, 0xFFFF };
-
-        void output(int code, OutputStream outs) throws IOException {
-            cur_accum &= masks[cur_bits];
-
-            if (cur_bits > 0)
-                cur_accum |= (code << cur_bits);
-            else
-                cur_accum = code;
-
-            cur_bits += n_bits;
-
-            while (cur_bits >= 8) {
-                char_out((byte) (cur_accum & 0xff), outs);
-                cur_accum >>= 8;
-                cur_bits -= 8;
+        private void compress(byte[] pixels, int npixels, int init_bits,
+                LzwTables tables) {
+            int[] keys = tables.keys;
+            short[] codes = tables.codes;
+            int mask = keys.length - 1;
+
+            int clearCode = 1 << (init_bits - 1);
+            int eofCode = clearCode + 1;
+            int nBits = init_bits;
+            int maxCode = (1 << nBits) - 1;
+            int freeEnt = clearCode + 2;
+
+            accum = 0;
+            accumBits = 0;
+            ensureCapacity(npixels / 2 + 16);
+
+            Arrays.fill(keys, -1);
+            putCode(clearCode, nBits);
+            if (npixels == 0) {
+                putCode(eofCode, nBits);
+                buf[bufLen++] = (byte) accum;
+                return;
             }
 
-            // If the next entry is going to be too big for the code size,
-            // then increase it, if possible.
-            if (free_ent > maxcode || clear_flg) {
-                if (clear_flg) {
-                    maxcode = MAXCODE(n_bits = g_init_bits);
-                    clear_flg = false;
-                } else {
-                    ++n_bits;
-                    if (n_bits == maxbits)
-                        maxcode = maxmaxcode;
-                    else
-                        maxcode = MAXCODE(n_bits);
+            int ent = pixels[0] & 0xff;
+            outer_loop: for (int p = 1; p < npixels; ++p) {
+                int c = pixels[p] & 0xff;
+                int key = c << BITS | ent;
+                int i = (key * 0x9E3779B1) >>> 18 & mask; // top 14 bits
+                int k;
+                while ((k = keys[i]) >= 0) {
+                    if (k == key) {
+                        ent = codes[i];
+                        continue outer_loop;
+                    }
+                    i = (i + 1) & mask;
                 }
-            }
 
-            if (code == EOFCode) {
-                // At EOF, write the rest of the buffer.
-                while (cur_bits > 0) {
-                    char_out((byte) (cur_accum & 0xff), outs);
-                    cur_accum >>= 8;
-                    cur_bits -= 8;
+                // emit the longest match, then (as in the original) widen the
+                // codes once the table has outgrown them
+                putCode(ent, nBits);
+                if (freeEnt > maxCode) {
+                    ++nBits;
+                    maxCode = nBits == BITS ? MAX_CODES : (1 << nBits) - 1;
                 }
 
-                flush_char(outs);
+                ent = c;
+                if (freeEnt < MAX_CODES) {
+                    keys[i] = key;
+                    codes[i] = (short) freeEnt++;
+                } else {
+                    // table full: start over with a clear code
+                    Arrays.fill(keys, -1);
+                    freeEnt = clearCode + 2;
+                    putCode(clearCode, nBits);
+                    nBits = init_bits;
+                    maxCode = (1 << nBits) - 1;
+                }
             }
-        }
-
-        // Clear out the hash table
 
-        // table clear for block compress
-        void cl_block(OutputStream outs) throws IOException {
-            cl_hash(hsize);
-            free_ent = ClearCode + 2;
-            clear_flg = true;
-
-            output(ClearCode, outs);
-        }
-
-        // reset code table
-        void cl_hash(int hsize) {
-            for (int i = 0; i < hsize; ++i)
-                htab[i] = -1;
+            // put out the final code, widening after it if need be, then EOF
+            putCode(ent, nBits);
+            if (freeEnt > maxCode)
+                ++nBits;
+            putCode(eofCode, nBits);
+            if (accumBits > 0)
+                buf[bufLen++] = (byte) accum;
         }
 
-        // GIF Specific routines
-
-        // Number of characters so far in this 'packet'
-        int a_count;
-
-        // Set up the 'byte output' routine
-        void char_init() {
-            a_count = 0;
+        // ----------------------------------------------------------------------------
+        // Appends an nBits-wide code to the bit stream, least significant bit first.
+        private void putCode(int code, int nBits) {
+            if (bufLen + 4 > buf.length)
+                ensureCapacity(buf.length * 2);
+            accum |= code << accumBits;
+            accumBits += nBits;
+            while (accumBits >= 8) {
+                buf[bufLen++] = (byte) accum;
+                accum >>>= 8;
+                accumBits -= 8;
+            }
         }
 
-        // Define the storage for the packet accumulator
-        byte[] accum = new byte[256];
-
-        // Add a character to the end of the current packet, and if it is 254
-        // characters, flush the packet to disk.
-        void char_out(byte c, OutputStream outs) throws IOException {
-            accum[a_count++] = c;
-            if (a_count >= 254)
-                flush_char(outs);
+        // ----------------------------------------------------------------------------
+        private void ensureCapacity(int capacity) {
+            if (buf.length < capacity)
+                buf = Arrays.copyOf(buf, capacity);
         }
+    }
 
-        // Flush the packet to disk, and reset the accumulator
-        void flush_char(OutputStream outs) throws IOException {
-            if (a_count > 0) {
-                outs.write(a_count);
-                outs.write(accum, 0, a_count);
-                a_count = 0;
-            }
+    // ==============================================================================
+    // Tables and buffers for GifPixelsEncoder. They are held per thread, so that
+    // successive frames, and the workers of a parallel encode, reuse them instead
+    // of allocating a fresh set for every frame.
+    // ==============================================================================
+    private static final class LzwTables {
+        static final ThreadLocal<LzwTables> CURRENT = ThreadLocal.withInitial(LzwTables::new);
+
+        // 16384 slots for at most 4096 strings keeps the table under a quarter
+        // full; at half full, the chains of strings that flat runs of one color
+        // build clustered and cost hits there a probe and a half on average
+        final int[] keys = new int[16384];
+        final short[] codes = new short[16384];
+        byte[] out = new byte[4096];
+        private byte[] packed = new byte[0];
+        private byte[] interlaced = new byte[0];
+
+        byte[] packed(int size) {
+            if (packed.length < size)
+                packed = new byte[size];
+            return packed;
+        }
+
+        byte[] interlaced(int size) {
+            if (interlaced.length < size)
+                interlaced = new byte[size];
+            return interlaced;
         }
     }
 
@@ -0,0 +1,292 @@
+package drawings;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory of drawings and its shapes folder and renders drawings again as their files change. An
+ * edited instruction file is parsed again and only that drawing is rendered; an edited shape file is read back into
+ * the shape library and only the drawings that draw a shape of that name are rendered. A new instruction file is
+ * picked up and rendered, and a deleted one is dropped. Changes are collected until the files have been quiet for
+ * a short debounce window, so an editor saving several files at once, or writing one file in several steps, causes
+ * one render of each affected drawing.
+ * <p>
+ * The watcher does not render anything itself: it hands each drawing that needs rendering to a listener, on the
+ * thread that called run.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class DrawingWatcher implements Closeable {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** how long the files must be quiet before changes are acted on, when no window is given */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 200;
+    /** the folder, under the drawings directory, that shapes are read from */
+    private static final String SHAPE_FOLDER = "shapes";
+    /** the file name suffix of shape files */
+    private static final String SHAPE_SUFFIX = ".shp";
+    /** the file name prefix of drawing instruction files */
+    private static final String PREFIX = "Instruct-";
+    /** the file name suffix of drawing instruction files */
+    private static final String SUFFIX = ".txt";
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** the shapes the drawings are made of; kept up to date with the shapes folder */
+    private final ShapeLibrary shapeLibrary;
+    /** the directory holding the instruction files */
+    private final Path directory;
+    /** the shapes folder */
+    private final Path shapeFolder;
+    /** how long the files must be quiet before changes are acted on, in milliseconds */
+    private final long debounceMillis;
+    /** told about each drawing to render */
+    private final Listener listener;
+    /** the drawings being watched, by instruction file name */
+    private final Map<String, Drawing> drawings = new TreeMap<String, Drawing>();
+    /** reports changes to the watched folders */
+    private final WatchService watchService;
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Constructor; reads every instruction file in the directory and starts watching it and its shapes folder.
+     * Nothing is rendered until a file changes.
+     *
+     * @param       shapeLib        the shape library the drawings draw from, loaded from the shapes folder
+     * @param       directory       the directory holding the Instruct-*.txt files and the shapes folder
+     * @param       debounceMillis  how long the files must be quiet before changes are acted on, in milliseconds
+     * @param       listener        told about each drawing to render
+     * @throws                      IOException if the directory cannot be read or watched
+     */
+    public DrawingWatcher(ShapeLibrary shapeLib, File directory, long debounceMillis, Listener listener)
+            throws IOException {
+        this.shapeLibrary = shapeLib;
+        this.directory = directory.toPath();
+        this.shapeFolder = this.directory.resolve(SHAPE_FOLDER);
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+        File[] files = directory.listFiles((dir, name) -> isInstructionFile(name));
+        if (files == null) {
+            throw new FileNotFoundException(directory.toString());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            drawings.put(file.getName(), new Drawing(shapeLibrary, file));
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            this.directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            if (shapeFolder.toFile().isDirectory()) {
+                shapeFolder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves a drawing being watched
+     *
+     * @param       name        the drawing's instruction file name
+     * @return                  the drawing as last parsed, or null if there is no such drawing
+     */
+    public Drawing getDrawing(String name) {
+        return drawings.get(name);
+    }
+
+    /**
+     * Watches for changes until the watcher is closed or the thread is interrupted, handing the drawings to
+     * render to the listener after each quiet period
+     */
+    public void run() {
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<Path>();
+                collect(watchService.take(), changed);
+                // coalesce: keep collecting until nothing has changed for a whole debounce window
+                WatchKey key;
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed);
+                }
+                apply(changed);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed: stop watching
+        }
+    }
+
+    /**
+     * Stops watching; a run in progress returns
+     *
+     * @throws                  IOException if the watch service cannot be closed
+     */
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Acts on a set of changed files: reads changed shapes back into the library, parses changed instruction
+     * files again, and hands each affected drawing to the listener once. A file that cannot be read, such as an
+     * instruction file saved half-way, is reported and skipped.
+     *
+     * @param       changed     the changed files, instruction files by their plain names and shape files as
+     *                          paths under the shapes folder
+     */
+    private void apply(Set<Path> changed) {
+        Set<String> shapeNames = new LinkedHashSet<String>();
+        Set<String> affected = new LinkedHashSet<String>();
+        for (Path path : changed) {
+            if (path.startsWith(shapeFolder)) {
+                String shapeName = shapeLibrary.reloadShape(path.toFile());
+                if (shapeName == null) {
+                    System.err.println("Unable to read shape " + path);
+                } else {
+                    shapeNames.add(shapeName);
+                }
+                continue;
+            }
+            String name = path.getFileName().toString();
+            File file = directory.resolve(name).toFile();
+            if (!file.isFile()) {
+                if (drawings.remove(name) != null) {
+                    listener.drawingRemoved(name);
+                }
+                continue;
+            }
+            try {
+                drawings.put(name, new Drawing(shapeLibrary, file));
+                affected.add(name);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Unable to read " + file + ": " + e);
+            }
+        }
+        for (Map.Entry<String, Drawing> entry : drawings.entrySet()) {
+            for (String shapeName : shapeNames) {
+                if (entry.getValue().usesShape(shapeName)) {
+                    affected.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        for (String name : affected) {
+            listener.drawingChanged(drawings.get(name));
+        }
+    }
+
+    /**
+     * Adds the files a watch key reports to the set of changed files and readies the key for more events
+     *
+     * @param       key         the signalled key
+     * @param       changed     the changed files so far
+     */
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path folder = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost: treat every file as changed
+                changed.add(folder);
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (folder.equals(shapeFolder) ? name.toString().endsWith(SHAPE_SUFFIX)
+                    : isInstructionFile(name.toString())) {
+                changed.add(folder.equals(shapeFolder) ? shapeFolder.resolve(name) : name);
+            }
+        }
+        key.reset();
+        boolean lost = changed.remove(directory);
+        lost |= changed.remove(shapeFolder);
+        if (lost) {
+            addEverything(changed);
+        }
+    }
+
+    /**
+     * Adds every instruction and shape file to the set of changed files, after watch events were lost
+     *
+     * @param       changed     the changed files so far
+     */
+    private void addEverything(Set<Path> changed) {
+        // drawings already known, including any whose files are gone
+        for (String name : drawings.keySet()) {
+            changed.add(directory.getFileSystem().getPath(name));
+        }
+        File[] files = directory.toFile().listFiles((dir, name) -> isInstructionFile(name));
+        for (File file : files == null ? new File[0] : files) {
+            changed.add(directory.getFileSystem().getPath(file.getName()));
+        }
+        File[] shapes = shapeFolder.toFile().listFiles((dir, name) -> name.endsWith(SHAPE_SUFFIX));
+        for (File file : shapes == null ? new File[0] : shapes) {
+            changed.add(shapeFolder.resolve(file.getName()));
+        }
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Determines whether a file name is that of a drawing instruction file
+     *
+     * @param       name        the file name
+     * @return                  true for Instruct-*.txt
+     */
+    private static boolean isInstructionFile(String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * Told about drawings to render as their files change
+     */
+    public interface Listener {
+        /**
+         * Called for a drawing whose instruction file changed or was created, or which draws a shape that
+         * changed
+         *
+         * @param       drawing     the drawing, parsed from its current instruction file
+         */
+        void drawingChanged(Drawing drawing);
+
+        /**
+         * Called when a drawing's instruction file is deleted; does nothing unless overridden
+         *
+         * @param       name        the instruction file name
+         */
+        default void drawingRemoved(String name) {
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package drawings;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Measures how fast a DrawingPanel's GIF encoder LZW-compresses frames of color indices, for pixel patterns that
+ * stress it differently: noise, whose strings stay short so most lookups miss; an xor pattern over all 256 indices;
+ * and wide flat bands, whose strings grow long so nearly every lookup hits. Each pattern is timed as a plain and
+ * as an interlaced frame. Runs headless:
+ * <pre>
+ *     java -Djava.awt.headless=true -Ddrawingpanel.headless=true drawings.GifBenchmark [WIDTH HEIGHT]
+ * </pre>
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class GifBenchmark {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the names of the patterns compared */
+    private static final String[] NAMES = {"noise, 16 idx", "xor, 256 idx", "flat bands"};
+    /** the bits per color index of each pattern */
+    private static final int[] DEPTHS = {4, 8, 4};
+    /** the frame width when none is given */
+    private static final int DEFAULT_WIDTH = 800;
+    /** the frame height when none is given */
+    private static final int DEFAULT_HEIGHT = 600;
+    /** how many frames are encoded untimed before each measurement */
+    private static final int WARMUP_FRAMES = 30;
+    /** how long each measurement runs, in nanoseconds */
+    private static final long RUN_NANOS = 1000000000L;
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Runs the benchmark and prints one line per pattern
+     *
+     * @param       args        optionally, the frame width and height in pixels
+     */
+    public static void main(String[] args) throws IOException {
+        int width = args.length > 1 ? Integer.parseInt(args[0]) : DEFAULT_WIDTH;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_HEIGHT;
+        DrawingPanel panel = new DrawingPanel(1, 1);
+        try {
+            System.out.printf("%dx%d frame%n", width, height);
+            System.out.printf("%-15s %10s %10s %12s%n", "pattern", "ms/frame", "interlaced", "bytes/frame");
+            for (int i = 0; i < NAMES.length; i++) {
+                byte[] pixels = pattern(i, width, height);
+                System.out.printf("%-15s %10.2f %10.2f %12d%n", NAMES[i],
+                        measure(panel, width, height, pixels, DEPTHS[i], false),
+                        measure(panel, width, height, pixels, DEPTHS[i], true),
+                        encodedSize(panel, width, height, pixels, DEPTHS[i]));
+            }
+        } finally {
+            panel.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Builds the color indices of one pattern
+     *
+     * @param       pattern     the pattern's position in NAMES
+     * @param       width       the frame width
+     * @param       height      the frame height
+     * @return                  the color indices, row by row
+     */
+    private static byte[] pattern(int pattern, int width, int height) {
+        byte[] pixels = new byte[width * height];
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index;
+                if (pattern == 0) {
+                    index = random.nextInt(16);
+                } else if (pattern == 1) {
+                    index = (x ^ y) & 0xff;
+                } else {
+                    index = y * 16 / height;
+                }
+                pixels[y * width + x] = (byte) index;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Times the encoding of one frame
+     *
+     * @param       panel       the panel whose encoder is used
+     * @param       width       the frame width
+     * @param       height      the frame height
+     * @param       pixels      the color indices
+     * @param       depth       the bits per color index
+     * @param       interlaced  whether the frame is interlaced
+     * @return                  the average time per frame, in milliseconds
+     */
+    private static double measure(DrawingPanel panel, int width, int height, byte[] pixels, int depth,
+            boolean interlaced) throws IOException {
+        OutputStream sink = new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        for (int k = 0; k < WARMUP_FRAMES; k++) {
+            panel.new GifPixelsEncoder(width, height, pixels, interlaced, depth).encode(sink);
+        }
+        long frames = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < RUN_NANOS) {
+            panel.new GifPixelsEncoder(width, height, pixels, interlaced, depth).encode(sink);
+            frames++;
+        }
+        return (System.nanoTime() - start) / 1e6 / frames;
+    }
+
+    /**
+     * Encodes one plain frame and counts its bytes, to show how well the pattern compresses
+     *
+     * @param       panel       the panel whose encoder is used
+     * @param       width       the frame width
+     * @param       height      the frame height
+     * @param       pixels      the color indices
+     * @param       depth       the bits per color index
+     * @return                  the size of the frame's image data
+     */
+    private static long encodedSize(DrawingPanel panel, int width, int height, byte[] pixels, int depth)
+            throws IOException {
+        final long[] size = new long[1];
+        OutputStream counter = new OutputStream() {
+            public void write(int b) {
+                size[0]++;
+            }
+
+            public void write(byte[] b, int off, int len) {
+                size[0] += len;
+            }
+        };
+        panel.new GifPixelsEncoder(width, height, pixels, false, depth).encode(counter);
+        return size[0];
+    }
+}
@@ -0,0 +1,184 @@
+package drawings;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders every Instruct-*.txt drawing without a window and checks it against a stored golden image, for catching
+ * rendering regressions. Drawings are rendered and compared in parallel. Run it from the directory holding the
+ * drawings and the shapes folder:
+ * <pre>
+ *     java drawings.GoldenImages [--update] [--tolerance N] [--goldens DIR] [DRAWINGS_DIR]
+ * </pre>
+ * Missing goldens are created from the current rendering, and --update replaces all of them. For each mismatch the
+ * rendering and a mask of the differing pixels are written next to the golden, and the exit status is 1.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class GoldenImages {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the directory goldens are kept in when none is given */
+    public static final String DEFAULT_DIRECTORY = "goldens";
+    /** the seed for random placements, fixed so that renders repeat from run to run */
+    public static final long SEED = 0;
+    /** the file name prefix of drawing instruction files */
+    private static final String PREFIX = "Instruct-";
+    /** the file name suffix of drawing instruction files */
+    private static final String SUFFIX = ".txt";
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** the shapes the drawings are made of */
+    private final ShapeLibrary shapeLibrary;
+    /** the directory holding the golden images */
+    private final File goldenDirectory;
+    /** how renderings are compared against goldens */
+    private final ImageComparison comparison;
+    /** whether goldens are replaced by the current renderings rather than checked */
+    private final boolean update;
+    /** writes goldens, renderings and masks */
+    private final PngWriter pngWriter = new PngWriter();
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Constructor
+     *
+     * @param       shapeLib        the shape library from which to draw shapes
+     * @param       goldenDirectory the directory holding the golden images
+     * @param       comparison      how renderings are compared against goldens
+     * @param       update          true to replace goldens with the current renderings instead of checking them
+     */
+    public GoldenImages(ShapeLibrary shapeLib, File goldenDirectory, ImageComparison comparison, boolean update) {
+        this.shapeLibrary = shapeLib;
+        this.goldenDirectory = goldenDirectory;
+        this.comparison = comparison;
+        this.update = update;
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Checks every drawing against its golden
+     *
+     * @param       args        the options and drawings directory described in the class comment
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        boolean update = false;
+        int tolerance = 0;
+        File goldens = new File(DEFAULT_DIRECTORY);
+        File drawings = new File(".");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--update")) {
+                update = true;
+            } else if (args[i].equals("--tolerance") && i + 1 < args.length) {
+                tolerance = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--goldens") && i + 1 < args.length) {
+                goldens = new File(args[++i]);
+            } else if (args[i].startsWith("--")) {
+                System.err.println("Usage: java drawings.GoldenImages [--update] [--tolerance N] [--goldens DIR] [DRAWINGS_DIR]");
+                System.exit(2);
+            } else {
+                drawings = new File(args[i]);
+            }
+        }
+        if (!goldens.isDirectory() && !goldens.mkdirs()) {
+            throw new IOException("Unable to create " + goldens);
+        }
+        GoldenImages runner = new GoldenImages(new ShapeLibrary(), goldens, new ImageComparison(tolerance), update);
+        long start = System.nanoTime();
+        List<String> report = runner.checkAll(drawings);
+        int failures = 0;
+        for (String line : report) {
+            System.out.println(line);
+            if (line.startsWith("FAIL")) {
+                failures++;
+            }
+        }
+        System.out.printf("%d drawings, %d failed, %.2f s%n", report.size(), failures, (System.nanoTime() - start) / 1e9);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Checks every drawing in a directory against its golden, in parallel
+     *
+     * @param       directory   the directory holding the Instruct-*.txt files
+     * @return                  one report line per drawing, in file name order
+     * @throws                  IOException if a drawing cannot be read or an image cannot be read or written
+     */
+    public List<String> checkAll(File directory) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            throw new FileNotFoundException(directory.toString());
+        }
+        Arrays.sort(files);
+        try {
+            return Arrays.stream(files).parallel().map(file -> {
+                try {
+                    return check(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Checks one drawing against its golden, creating the golden if there is none yet or if updating
+     *
+     * @param       instructions    the drawing's instruction file
+     * @return                      a report line starting with PASS, FAIL or NEW
+     * @throws                      IOException if the drawing cannot be read or an image cannot be read or written
+     */
+    public String check(File instructions) throws IOException {
+        String name = instructions.getName();
+        String base = name.substring(0, name.length() - SUFFIX.length());
+        Drawing drawing = new Drawing(shapeLibrary, instructions);
+        drawing.setSeed(SEED);
+        BufferedImage actual = drawing.render(1);
+
+        File golden = new File(goldenDirectory, base + ".png");
+        File actualFile = new File(goldenDirectory, base + ".actual.png");
+        File maskFile = new File(goldenDirectory, base + ".diff.png");
+        if (update || !golden.exists()) {
+            pngWriter.write(actual, golden);
+            actualFile.delete();
+            maskFile.delete();
+            return "NEW  " + name;
+        }
+        BufferedImage expected = ImageIO.read(golden);
+        if (expected == null) {
+            throw new IOException("Not a readable image: " + golden);
+        }
+        ImageComparison.Result result = comparison.compare(expected, actual);
+        if (result.isMatch()) {
+            actualFile.delete();
+            maskFile.delete();
+            return "PASS " + name;
+        }
+        pngWriter.write(actual, actualFile);
+        pngWriter.write(result.getMask(), maskFile);
+        return "FAIL " + name + " " + result;
+    }
+}
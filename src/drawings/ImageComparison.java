@@ -0,0 +1,403 @@
+package drawings;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Compares two images pixel by pixel without any user interface, for regression checks against stored golden
+ * images. Rows are read in bulk straight from the images' rasters and compared in parallel bands, and a comparison
+ * reports how many pixels differ, boxes around the areas that differ, and a mask of the differing pixels. A
+ * comparison holds no state between calls and may be shared between threads.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class ImageComparison {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the color differing pixels are shown in by a mask, the same as in DrawingPanel's compare window */
+    public static final Color DEFAULT_HIGHLIGHT = new Color(224, 0, 224);
+    /** the size of the square cells in which differing pixels are gathered into boxes */
+    private static final int CELL = 16;
+    /** the number of pixels from which images are compared on several threads */
+    private static final int PARALLEL_PIXELS = 1 << 18;
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** the largest difference allowed in any one channel of a pixel for it to still count as equal */
+    private final int tolerance;
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Default constructor; only identical pixels count as equal
+     */
+    public ImageComparison() {
+        this(0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param       tolerance   the largest difference in alpha, red, green or blue for which two pixels still count
+     *                          as equal, from 0 (exact) to 255 (everything matches)
+     * @throws                  IllegalArgumentException if the tolerance is out of range
+     */
+    public ImageComparison(int tolerance) {
+        if (tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException("tolerance must be between 0 and 255: " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves the per-channel tolerance
+     *
+     * @return                  the largest channel difference that still counts as equal
+     */
+    public int getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Compares two images. Images of different sizes are compared over the larger width and height, with pixels
+     * outside an image taken to be transparent black, so every pixel that only one of the images has counts as a
+     * difference unless it is itself transparent black.
+     *
+     * @param       expected    the reference image
+     * @param       actual      the image being checked
+     * @return                  the differences between the images
+     * @throws                  NullPointerException if either image is null
+     */
+    public Result compare(BufferedImage expected, BufferedImage actual) {
+        if (expected == null || actual == null) {
+            throw new NullPointerException(expected == null ? "expected" : "actual");
+        }
+        Result result = new Result(Math.max(expected.getWidth(), actual.getWidth()),
+                Math.max(expected.getHeight(), actual.getHeight()));
+        IntStream bands = IntStream.range(0, result.cellRows);
+        if ((long) result.width * result.height >= PARALLEL_PIXELS) {
+            bands = bands.parallel();
+        }
+        bands.forEach(band -> compareBand(expected, actual, result, band));
+        result.gatherBounds();
+        return result;
+    }
+
+    /**
+     * Compares one band of CELL rows, recording its differences in the band's own part of the result
+     *
+     * @param       expected    the reference image
+     * @param       actual      the image being checked
+     * @param       result      the result being filled in
+     * @param       band        the index of the band, which is also the index of its row of cells
+     */
+    private void compareBand(BufferedImage expected, BufferedImage actual, Result result, int band) {
+        int width = result.width;
+        int[] expectedRow = new int[width];
+        int[] actualRow = new int[width];
+        byte[] mask = result.maskBytes;
+        int stride = result.maskStride;
+        int count = 0;
+        for (int y = band * CELL, end = Math.min(result.height, y + CELL); y < end; y++) {
+            readRow(expected, y, expectedRow);
+            readRow(actual, y, actualRow);
+            for (int x = 0; x < width; x++) {
+                if (expectedRow[x] != actualRow[x] && differs(expectedRow[x], actualRow[x])) {
+                    count++;
+                    mask[y * stride + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+                    result.include(band * result.cellColumns + x / CELL, x, y);
+                }
+            }
+        }
+        result.bandCounts[band] = count;
+    }
+
+    /**
+     * Determines whether two unequal pixels differ by more than the tolerance in any channel
+     *
+     * @param       a           one ARGB pixel
+     * @param       b           the other ARGB pixel
+     * @return                  true if the pixels count as different
+     */
+    private boolean differs(int a, int b) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            if (Math.abs(((a >>> shift) & 0xff) - ((b >>> shift) & 0xff)) > tolerance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Reads one row of an image as ARGB values, padding with transparent black past the image's edges. Images that
+     * keep one ARGB int per pixel are copied straight from their pixel array.
+     *
+     * @param       image       the image to read
+     * @param       y           the row to read
+     * @param       row         receives the row; its length is the width being compared
+     */
+    private static void readRow(BufferedImage image, int y, int[] row) {
+        int width = Math.min(image.getWidth(), row.length);
+        if (y >= image.getHeight()) {
+            width = 0;
+        } else if (image.getType() == BufferedImage.TYPE_INT_ARGB && isPackedInts(image.getRaster())) {
+            Raster raster = image.getRaster();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            DataBufferInt data = (DataBufferInt) raster.getDataBuffer();
+            System.arraycopy(data.getData(), data.getOffset() + y * stride, row, 0, width);
+        } else {
+            image.getRGB(0, y, width, 1, row, 0, width);
+        }
+        Arrays.fill(row, width, row.length, 0);
+    }
+
+    /**
+     * Determines whether a raster keeps each pixel in one int of a single array
+     *
+     * @param       raster      the raster to inspect
+     * @return                  true if rows can be copied out of the raster's array directly
+     */
+    private static boolean isPackedInts(Raster raster) {
+        return raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getParent() == null;
+    }
+
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * The outcome of comparing two images
+     */
+    public static final class Result {
+        /** the width compared */
+        private final int width;
+        /** the height compared */
+        private final int height;
+        /** the number of columns of cells */
+        private final int cellColumns;
+        /** the number of rows of cells, which is also the number of bands */
+        private final int cellRows;
+        /** one bit per pixel, set where the images differ */
+        private final WritableRaster mask;
+        /** the mask's packed bits */
+        private final byte[] maskBytes;
+        /** the number of bytes per mask row */
+        private final int maskStride;
+        /** the number of differing pixels in each band */
+        private final int[] bandCounts;
+        /** the smallest differing x in each cell, or Integer.MAX_VALUE if the cell has no differences */
+        private final int[] cellMinX;
+        /** the smallest differing y in each cell */
+        private final int[] cellMinY;
+        /** the largest differing x in each cell */
+        private final int[] cellMaxX;
+        /** the largest differing y in each cell */
+        private final int[] cellMaxY;
+        /** boxes around the connected areas of differences, in top-to-bottom order */
+        private List<Rectangle> bounds;
+
+        /**
+         * Constructor; sets up an empty result for images of the given size
+         *
+         * @param       width       the width compared
+         * @param       height      the height compared
+         */
+        private Result(int width, int height) {
+            this.width = width;
+            this.height = height;
+            cellColumns = (width + CELL - 1) / CELL;
+            cellRows = (height + CELL - 1) / CELL;
+            mask = Raster.createPackedRaster(DataBuffer.TYPE_BYTE, width, height, 1, 1, null);
+            maskBytes = ((DataBufferByte) mask.getDataBuffer()).getData();
+            maskStride = (width + 7) / 8;
+            bandCounts = new int[cellRows];
+            int cells = cellColumns * cellRows;
+            cellMinX = new int[cells];
+            cellMinY = new int[cells];
+            cellMaxX = new int[cells];
+            cellMaxY = new int[cells];
+            Arrays.fill(cellMinX, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Retrieves the width compared
+         *
+         * @return                  the larger of the two images' widths
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Retrieves the height compared
+         *
+         * @return                  the larger of the two images' heights
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Retrieves the number of differing pixels
+         *
+         * @return                  the number of pixels that differ by more than the tolerance
+         */
+        public long getDiffCount() {
+            long count = 0;
+            for (int bandCount : bandCounts) {
+                count += bandCount;
+            }
+            return count;
+        }
+
+        /**
+         * Determines whether the images matched
+         *
+         * @return                  true if no pixels differ by more than the tolerance
+         */
+        public boolean isMatch() {
+            return bounds.isEmpty();
+        }
+
+        /**
+         * Retrieves boxes around the areas that differ. Differences within a few pixels of each other fall in the
+         * same box, so a shape drawn in the wrong place gives one box rather than one per pixel.
+         *
+         * @return                  the boxes, top to bottom; empty if the images match
+         */
+        public List<Rectangle> getBounds() {
+            List<Rectangle> copy = new ArrayList<Rectangle>(bounds.size());
+            for (Rectangle box : bounds) {
+                copy.add(new Rectangle(box));
+            }
+            return copy;
+        }
+
+        /**
+         * Retrieves a mask of the differing pixels in the default highlight color
+         *
+         * @return                  an image that is transparent except where the images differ
+         */
+        public BufferedImage getMask() {
+            return getMask(DEFAULT_HIGHLIGHT);
+        }
+
+        /**
+         * Retrieves a mask of the differing pixels in the given color. The mask takes one bit per pixel and
+         * shares its pixels with the result, so masks in several colors cost no more than one.
+         *
+         * @param       highlight   the color for differing pixels
+         * @return                  an image that is transparent except where the images differ
+         */
+        public BufferedImage getMask(Color highlight) {
+            byte[] r = {0, (byte) highlight.getRed()};
+            byte[] g = {0, (byte) highlight.getGreen()};
+            byte[] b = {0, (byte) highlight.getBlue()};
+            byte[] a = {0, (byte) highlight.getAlpha()};
+            return new BufferedImage(new IndexColorModel(1, 2, r, g, b, a), mask, false, null);
+        }
+
+        /**
+         * Retrieves a one-line description of the result
+         *
+         * @return                  the size compared, the number of differing pixels and the boxes
+         */
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(width).append('x').append(height).append(": ");
+            result.append(getDiffCount()).append(" pixels differ");
+            for (Rectangle box : bounds) {
+                result.append(" [").append(box.x).append(',').append(box.y).append(' ');
+                result.append(box.width).append('x').append(box.height).append(']');
+            }
+            return result.toString();
+        }
+
+        /**
+         * Widens a cell's bounds to take in a differing pixel; only the thread comparing the cell's band calls this
+         *
+         * @param       cell        the index of the cell
+         * @param       x           the pixel's x
+         * @param       y           the pixel's y
+         */
+        private void include(int cell, int x, int y) {
+            if (cellMinX[cell] == Integer.MAX_VALUE) {
+                cellMinX[cell] = x;
+                cellMinY[cell] = y;
+                cellMaxX[cell] = x;
+                cellMaxY[cell] = y;
+            } else {
+                cellMinX[cell] = Math.min(cellMinX[cell], x);
+                cellMaxX[cell] = Math.max(cellMaxX[cell], x);
+                cellMaxY[cell] = y;
+            }
+        }
+
+        /**
+         * Joins cells with differences that touch, sideways or diagonally, into boxes
+         */
+        private void gatherBounds() {
+            List<Rectangle> boxes = new ArrayList<Rectangle>();
+            boolean[] seen = new boolean[cellMinX.length];
+            ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+            for (int start = 0; start < cellMinX.length; start++) {
+                if (seen[start] || cellMinX[start] == Integer.MAX_VALUE) {
+                    continue;
+                }
+                Rectangle box = null;
+                seen[start] = true;
+                pending.add(start);
+                while (!pending.isEmpty()) {
+                    int cell = pending.poll();
+                    Rectangle cellBox = new Rectangle(cellMinX[cell], cellMinY[cell],
+                            cellMaxX[cell] - cellMinX[cell] + 1, cellMaxY[cell] - cellMinY[cell] + 1);
+                    box = box == null ? cellBox : box.union(cellBox);
+                    int column = cell % cellColumns;
+                    int row = cell / cellColumns;
+                    for (int r = Math.max(0, row - 1); r <= Math.min(cellRows - 1, row + 1); r++) {
+                        for (int c = Math.max(0, column - 1); c <= Math.min(cellColumns - 1, column + 1); c++) {
+                            int next = r * cellColumns + c;
+                            if (!seen[next] && cellMinX[next] != Integer.MAX_VALUE) {
+                                seen[next] = true;
+                                pending.add(next);
+                            }
+                        }
+                    }
+                }
+                boxes.add(box);
+            }
+            bounds = Collections.unmodifiableList(boxes);
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package drawings;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 /**
  * This is a test of the Main class
  */
@@ -24,45 +30,94 @@ public class Main {
         Drawing drawing11 = new Drawing(shapeLib, new File("Instruct-Checkers.txt"));
         Drawing drawing12 = new Drawing(shapeLib, new File("Instruct-Sun.txt"));
         
-        drawing12.draw();
-        drawing11.draw();
-        drawing10.draw();
-        drawing9.draw();
-        drawing8.draw();
-        drawing7.draw();
-        drawing6.draw();
-        drawing5.draw();
-        drawing4.draw();
-        drawing3.draw();
-        drawing2.draw();
-        drawing1.draw();
+        // keep each drawing's window, so that watch mode can render into it again
+        final Map<String, DrawingPanel> panels = new HashMap<String, DrawingPanel>();
+        Drawing[] drawings = {drawing12, drawing11, drawing10, drawing9, drawing8, drawing7,
+            drawing6, drawing5, drawing4, drawing3, drawing2, drawing1};
+        for (Drawing drawing : drawings) {
+            panels.put(drawing.getName(), drawing.draw());
+        }
         
-        System.out.println("*********Shape Library**************");
-        System.out.println(shapeLib.toString());
-        System.out.println("*********Instruct-Simple************");
-        System.out.println(drawing1.toString());
-        System.out.println("*********Instruct-Rand**************");
-        System.out.println(drawing2.toString());
-        System.out.println("******Instruct-RepeatOffset*********");
-        System.out.println(drawing3.toString());
-        System.out.println("*********Instruct-Gradient**********");
-        System.out.println(drawing4.toString());
-        System.out.println("*********Instruct-Rotate************");
-        System.out.println(drawing5.toString());
-        System.out.println("*****Instruct-Gradient-Horiz********");
-        System.out.println(drawing6.toString());
-        System.out.println("******Instruct-Gradient-Vert********");
-        System.out.println(drawing7.toString());
-        System.out.println("*****Instruct-Gradient-DiagTL*******");
-        System.out.println(drawing8.toString());
-        System.out.println("*****Instruct-Gradient-DiagTR*******");
-        System.out.println(drawing9.toString());
-        System.out.println("******Instruct-Rotate-backup********");
-        System.out.println(drawing10.toString());
-        System.out.println("*********Instruct-Checkers**********");
-        System.out.println(drawing11.toString());
-        System.out.println("*********Instruct-Sun***************");
-        System.out.println(drawing12.toString());
+        // dump everything through one buffered writer, streaming each object straight into it
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        out.println("*********Shape Library**************");
+        shapeLib.writeTo(out);
+        out.println();
+        out.println("*********Instruct-Simple************");
+        drawing1.writeTo(out);
+        out.println();
+        out.println("*********Instruct-Rand**************");
+        drawing2.writeTo(out);
+        out.println();
+        out.println("******Instruct-RepeatOffset*********");
+        drawing3.writeTo(out);
+        out.println();
+        out.println("*********Instruct-Gradient**********");
+        drawing4.writeTo(out);
+        out.println();
+        out.println("*********Instruct-Rotate************");
+        drawing5.writeTo(out);
+        out.println();
+        out.println("*****Instruct-Gradient-Horiz********");
+        drawing6.writeTo(out);
+        out.println();
+        out.println("******Instruct-Gradient-Vert********");
+        drawing7.writeTo(out);
+        out.println();
+        out.println("*****Instruct-Gradient-DiagTL*******");
+        drawing8.writeTo(out);
+        out.println();
+        out.println("*****Instruct-Gradient-DiagTR*******");
+        drawing9.writeTo(out);
+        out.println();
+        out.println("******Instruct-Rotate-backup********");
+        drawing10.writeTo(out);
+        out.println();
+        out.println("*********Instruct-Checkers**********");
+        drawing11.writeTo(out);
+        out.println();
+        out.println("*********Instruct-Sun***************");
+        drawing12.writeTo(out);
+        out.println();
+        out.flush();
+        
+        if (Arrays.asList(args).contains("--watch")) {
+            watch(shapeLib, panels);
+        }
+    }
+    
+    /**
+     * Renders drawings again as their instruction or shape files change, until the program is stopped
+     * 
+     * @param       shapeLib    the shape library the drawings draw from
+     * @param       panels      the window of each drawing, by instruction file name
+     */
+    private static void watch(ShapeLibrary shapeLib, final Map<String, DrawingPanel> panels) throws IOException {
+        DrawingWatcher watcher = new DrawingWatcher(shapeLib, new File("."), DrawingWatcher.DEFAULT_DEBOUNCE_MILLIS,
+                new DrawingWatcher.Listener() {
+                    public void drawingChanged(Drawing drawing) {
+                        DrawingPanel panel = panels.get(drawing.getName());
+                        if (panel == null) {
+                            panels.put(drawing.getName(), drawing.draw());
+                        } else {
+                            drawing.redraw(panel);
+                        }
+                        System.out.println("Rendered " + drawing.getName());
+                    }
+
+                    public void drawingRemoved(String name) {
+                        DrawingPanel panel = panels.remove(name);
+                        if (panel != null) {
+                            try {
+                                panel.close();
+                            } catch (IOException e) {
+                                System.err.println("Unable to close " + name + ": " + e);
+                            }
+                        }
+                    }
+                });
+        System.out.println("Watching for changes to the drawings and shapes; press Ctrl+C to stop");
+        watcher.run();
     }
    
 }
@@ -0,0 +1,430 @@
+package drawings;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An ARGB canvas whose pixels live outside the Java heap, in direct byte buffers, so that large canvases add
+ * nothing for the garbage collector to trace or copy and their memory is handed back as soon as the canvas is
+ * closed rather than at some later collection. Pixels are stored row by row, one int per pixel as in a
+ * TYPE_INT_ARGB image, in chunks of whole rows of at most a gigabyte each, so canvases larger than a single
+ * buffer can address are possible.
+ * <p>
+ * Drawing into the canvas goes through a heap image of a band of rows at a time (see Drawing.renderOffHeap);
+ * the canvas itself offers fills and row copies in both directions. A BufferedImage of the whole canvas is only
+ * made when toImage is called, and writePng encodes straight from the off-heap rows, a band at a time.
+ * <p>
+ * Direct memory is limited by -XX:MaxDirectMemorySize rather than by the heap size. A canvas must be closed once
+ * it is no longer needed; any use after that throws IllegalStateException. A canvas is not safe for use by several
+ * threads at once.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class OffHeapCanvas implements AutoCloseable {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the most bytes held in one direct buffer */
+    private static final int CHUNK_BYTES = 1 << 30;
+    /** about how many pixels are copied through the heap at a time when encoding */
+    private static final int BAND_PIXELS = 1 << 20;
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** the canvas width */
+    private final int width;
+    /** the canvas height */
+    private final int height;
+    /** the number of rows in each chunk; the last may hold fewer */
+    private final int chunkRows;
+    /** the direct buffers holding the rows, first row first */
+    private ByteBuffer[] buffers;
+    /** int views of the buffers, in the platform's byte order */
+    private IntBuffer[] chunks;
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Constructor; the canvas starts out fully transparent
+     *
+     * @param       width       the canvas width
+     * @param       height      the canvas height
+     * @throws                  IllegalArgumentException if the width or height is not positive
+     * @throws                  OutOfMemoryError if there is not enough direct memory for the canvas
+     */
+    public OffHeapCanvas(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("canvas size must be positive: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        chunkRows = Math.max(1, CHUNK_BYTES / 4 / width);
+        int count = (height + chunkRows - 1) / chunkRows;
+        buffers = new ByteBuffer[count];
+        chunks = new IntBuffer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                int rows = Math.min(chunkRows, height - i * chunkRows);
+                buffers[i] = ByteBuffer.allocateDirect(rows * width * 4).order(ByteOrder.nativeOrder());
+                chunks[i] = buffers[i].asIntBuffer();
+            }
+        } catch (OutOfMemoryError e) {
+            close();
+            throw e;
+        }
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves the canvas width
+     *
+     * @return                  the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Retrieves the canvas height
+     *
+     * @return                  the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Retrieves how much direct memory the canvas holds
+     *
+     * @return                  the size of the pixel data in bytes
+     */
+    public long getByteSize() {
+        return (long) width * height * 4;
+    }
+
+    /**
+     * Determines whether the canvas has been closed
+     *
+     * @return                  true if close has been called
+     */
+    public boolean isClosed() {
+        return chunks == null;
+    }
+
+    /**
+     * Retrieves one pixel
+     *
+     * @param       x           the pixel's x-coordinate
+     * @param       y           the pixel's y-coordinate
+     * @return                  the pixel as ARGB
+     * @throws                  IndexOutOfBoundsException if the pixel is off the canvas
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    public int getRGB(int x, int y) {
+        checkPixel(x, y);
+        return chunk(y).get((y % chunkRows) * width + x);
+    }
+
+    /**
+     * Sets one pixel
+     *
+     * @param       x           the pixel's x-coordinate
+     * @param       y           the pixel's y-coordinate
+     * @param       argb        the new pixel as ARGB
+     * @throws                  IndexOutOfBoundsException if the pixel is off the canvas
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    public void setRGB(int x, int y, int argb) {
+        checkPixel(x, y);
+        chunk(y).put((y % chunkRows) * width + x, argb);
+    }
+
+    /**
+     * Sets every pixel of the canvas to one value
+     *
+     * @param       argb        the value as ARGB
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    public void fill(int argb) {
+        fillRect(0, 0, width, height, argb);
+    }
+
+    /**
+     * Sets every pixel of a rectangle to one value; parts of the rectangle off the canvas are ignored
+     *
+     * @param       x           the x-coordinate of the rectangle's left edge
+     * @param       y           the y-coordinate of the rectangle's top edge
+     * @param       w           the rectangle's width
+     * @param       h           the rectangle's height
+     * @param       argb        the value as ARGB
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    public void fillRect(int x, int y, int w, int h, int argb) {
+        checkOpen();
+        int left = Math.max(0, x);
+        int right = (int) Math.min(width, (long) x + w);
+        int top = Math.max(0, y);
+        int bottom = (int) Math.min(height, (long) y + h);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        int[] line = new int[right - left];
+        Arrays.fill(line, argb);
+        for (int row = top; row < bottom; row++) {
+            IntBuffer chunk = chunk(row);
+            chunk.position((row % chunkRows) * width + left);
+            chunk.put(line);
+        }
+    }
+
+    /**
+     * Copies rows of the canvas into an image, filling the whole image. The image must be as wide as the canvas;
+     * a TYPE_INT_ARGB image is filled by bulk copies, any other through setRGB.
+     *
+     * @param       top         the first canvas row to copy
+     * @param       dest        the image to fill
+     * @throws                  IllegalArgumentException if the image is not as wide as the canvas or runs past
+     *                          the bottom of it
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    public void getRows(int top, BufferedImage dest) {
+        checkRows(top, dest);
+        int[] data = intPixels(dest);
+        int[] line = data == null ? new int[width] : data;
+        for (int r = 0; r < dest.getHeight(); r++) {
+            int row = top + r;
+            IntBuffer chunk = chunk(row);
+            chunk.position((row % chunkRows) * width);
+            chunk.get(line, data == null ? 0 : r * width, width);
+            if (data == null) {
+                dest.setRGB(0, r, width, 1, line, 0, width);
+            }
+        }
+    }
+
+    /**
+     * Copies an image into rows of the canvas, replacing them. The image must be as wide as the canvas; a
+     * TYPE_INT_ARGB image is read by bulk copies, any other through getRGB.
+     *
+     * @param       top         the first canvas row to replace
+     * @param       src         the image to copy
+     * @throws                  IllegalArgumentException if the image is not as wide as the canvas or runs past
+     *                          the bottom of it
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    public void setRows(int top, BufferedImage src) {
+        checkRows(top, src);
+        int[] data = intPixels(src);
+        int[] line = data == null ? new int[width] : data;
+        for (int r = 0; r < src.getHeight(); r++) {
+            int row = top + r;
+            if (data == null) {
+                src.getRGB(0, r, width, 1, line, 0, width);
+            }
+            IntBuffer chunk = chunk(row);
+            chunk.position((row % chunkRows) * width);
+            chunk.put(line, data == null ? 0 : r * width, width);
+        }
+    }
+
+    /**
+     * Copies the canvas into a new TYPE_INT_ARGB image on the heap, for code that needs a BufferedImage
+     *
+     * @return                  a copy of the canvas
+     * @throws                  IllegalStateException if the canvas has been closed or is too large for one image
+     */
+    public BufferedImage toImage() {
+        checkOpen();
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalStateException("canvas too large for a single image: " + width + "x" + height);
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        getRows(0, image);
+        return image;
+    }
+
+    /**
+     * Writes the canvas as a PNG file, replacing any existing file
+     *
+     * @param       file        the file to write to
+     * @param       dpi         the resolution in dots per inch, or 0 to record none
+     * @throws                  IllegalStateException if the canvas has been closed
+     * @throws                  IOException if the file cannot be written
+     */
+    public void writePng(File file, int dpi) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writePng(channel, new PngWriter(), dpi);
+        }
+    }
+
+    /**
+     * Writes the canvas in PNG format to a channel, copying it through the heap a band of rows at a time; the
+     * channel is left open
+     *
+     * @param       channel     where to write the PNG data
+     * @param       writer      the writer to encode with
+     * @param       dpi         the resolution in dots per inch, or 0 to record none
+     * @throws                  IllegalStateException if the canvas has been closed
+     * @throws                  IOException if writing to the channel fails
+     */
+    public void writePng(WritableByteChannel channel, PngWriter writer, int dpi) throws IOException {
+        checkOpen();
+        int bandRows = Math.min(height, Math.max(1, BAND_PIXELS / width));
+        BufferedImage band = new BufferedImage(width, bandRows, BufferedImage.TYPE_INT_ARGB);
+        PngWriter.BandWriter out = writer.open(channel, width, height, dpi);
+        for (int top = 0; top < height; top += bandRows) {
+            int rows = Math.min(bandRows, height - top);
+            BufferedImage rowsImage = rows == bandRows ? band : band.getSubimage(0, 0, width, rows);
+            getRows(top, rowsImage);
+            out.write(rowsImage);
+        }
+        out.finish();
+    }
+
+    /**
+     * Frees the canvas's direct memory now rather than whenever the garbage collector gets to it. Does nothing if
+     * the canvas is already closed.
+     */
+    public void close() {
+        ByteBuffer[] freed = buffers;
+        buffers = null;
+        chunks = null;
+        if (freed != null) {
+            for (ByteBuffer buffer : freed) {
+                if (buffer != null) {
+                    free(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the chunk holding a row
+     *
+     * @param       row         the row
+     * @return                  the int view of the chunk
+     */
+    private IntBuffer chunk(int row) {
+        return chunks[row / chunkRows];
+    }
+
+    /**
+     * Checks that the canvas has not been closed
+     *
+     * @throws                  IllegalStateException if it has
+     */
+    private void checkOpen() {
+        if (chunks == null) {
+            throw new IllegalStateException("canvas has been closed");
+        }
+    }
+
+    /**
+     * Checks that a pixel is on the canvas and the canvas is open
+     *
+     * @param       x           the pixel's x-coordinate
+     * @param       y           the pixel's y-coordinate
+     * @throws                  IndexOutOfBoundsException if the pixel is off the canvas
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    private void checkPixel(int x, int y) {
+        checkOpen();
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is off the " + width + "x" + height + " canvas");
+        }
+    }
+
+    /**
+     * Checks that an image can be copied to or from the canvas rows starting at a given one
+     *
+     * @param       top         the first canvas row
+     * @param       image       the image
+     * @throws                  IllegalArgumentException if the image is not as wide as the canvas or runs past
+     *                          the bottom of it
+     * @throws                  IllegalStateException if the canvas has been closed
+     */
+    private void checkRows(int top, BufferedImage image) {
+        checkOpen();
+        if (image.getWidth() != width) {
+            throw new IllegalArgumentException("image width " + image.getWidth() + " differs from canvas width " + width);
+        }
+        if (top < 0 || top > height - image.getHeight()) {
+            throw new IllegalArgumentException("rows " + top + " to " + (top + image.getHeight())
+                    + " are not all on the canvas");
+        }
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves the pixel array of a TYPE_INT_ARGB image whose rows lie back to back from the start of the array,
+     * as they do in a new image and in a full-width subimage of its top rows
+     *
+     * @param       image       the image
+     * @return                  the pixel array, or null if the image is laid out any other way
+     */
+    private static int[] intPixels(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        return buffer.getOffset() == 0 && buffer.getNumBanks() == 1 ? buffer.getData() : null;
+    }
+
+    /**
+     * Frees the memory of a direct buffer. There is no public API for this before the foreign memory API, so it
+     * is done through sun.misc.Unsafe.invokeCleaner on Java 9 and later and through the buffer's cleaner on Java
+     * 8; if neither is reachable the memory is left for the garbage collector to free.
+     *
+     * @param       buffer      the buffer, which must not be used afterwards
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                /* left for the garbage collector */
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            /* left for the garbage collector */
+        }
+    }
+}
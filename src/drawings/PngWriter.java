@@ -0,0 +1,1076 @@
+package drawings;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes images as PNG files, reading scanlines straight out of the image's pixel array rather than copying the
+ * image first. The deflate level and the scanline filter are chosen when the writer is created, and the compressed
+ * data is streamed to the destination channel in IDAT chunks as it is produced. A writer holds no state between
+ * calls and may be shared between threads.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class PngWriter {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the deflate level used by the default writer */
+    public static final int DEFAULT_LEVEL = 6;
+    /** the PNG file signature */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    /** the largest amount of compressed data put into one IDAT chunk */
+    private static final int CHUNK_SIZE = 1 << 16;
+    /** PNG color type for gray samples */
+    private static final int GRAY = 0;
+    /** PNG color type for red, green and blue samples */
+    private static final int RGB = 2;
+    /** PNG color type for red, green, blue and alpha samples */
+    private static final int RGBA = 6;
+    /** approximate amount of scanline data per band in parallel mode */
+    private static final int BAND_SIZE = 1 << 20;
+    /** the modulus of the Adler-32 checksum */
+    private static final int ADLER_BASE = 65521;
+
+    /** compresses bands for writers not given an executor of their own; created on first use */
+    private static ExecutorService sharedPool = null;
+
+    /**
+     * The per-scanline filters a writer can apply before compression
+     */
+    public enum Filter {
+        /** rows are stored as they are */
+        NONE,
+        /** each byte is stored as its difference from the byte one pixel to the left */
+        SUB,
+        /** each byte is stored as its difference from the byte one row up */
+        UP,
+        /** each row gets whichever of the five PNG filters gives the smallest sum of absolute differences */
+        ADAPTIVE
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** the deflate level, 0 to 9 */
+    private final int level;
+    /** the scanline filter */
+    private final Filter filter;
+    /** how many threads compress an image; 1 for the plain single-stream encoder */
+    private final int threads;
+    /** runs the band compression tasks, or null for the shared pool */
+    private final Executor executor;
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Default constructor; writes with the default deflate level and adaptive filtering
+     */
+    public PngWriter() {
+        this(DEFAULT_LEVEL, Filter.ADAPTIVE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param       level       the deflate level, from 0 (store only) to 9 (smallest output)
+     * @param       filter      the scanline filter to apply
+     * @throws                  IllegalArgumentException if the level is out of range
+     * @throws                  NullPointerException if the filter is null
+     */
+    public PngWriter(int level, Filter filter) {
+        this(level, filter, 1);
+    }
+
+    /**
+     * Constructor for a writer that may compress on several threads. With more than one thread the image is cut
+     * into bands of rows that are filtered and deflated independently and then joined into a single zlib stream,
+     * which costs a little compression (each band starts with an empty dictionary) for encode time that scales
+     * with the number of cores. The bands are compressed on a pool shared by all writers, with one thread per
+     * available processor.
+     *
+     * @param       level       the deflate level, from 0 (store only) to 9 (smallest output)
+     * @param       filter      the scanline filter to apply
+     * @param       threads     the number of threads to compress with, at least 1
+     * @throws                  IllegalArgumentException if the level or thread count is out of range
+     * @throws                  NullPointerException if the filter is null
+     */
+    public PngWriter(int level, Filter filter, int threads) {
+        this(level, filter, threads, null);
+    }
+
+    /**
+     * Constructor for a writer that compresses bands of rows on the caller's executor, as the three-argument
+     * constructor describes. The thread count bounds how many bands are compressed at once; the executor
+     * must be able to run that many tasks side by side for the writer to reach it.
+     *
+     * @param       level       the deflate level, from 0 (store only) to 9 (smallest output)
+     * @param       filter      the scanline filter to apply
+     * @param       threads     the number of bands to compress at once, at least 1
+     * @param       executor    runs the compression tasks, or null for the pool shared by all writers
+     * @throws                  IllegalArgumentException if the level or thread count is out of range
+     * @throws                  NullPointerException if the filter is null
+     */
+    public PngWriter(int level, Filter filter, int threads, Executor executor) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("thread count must be at least 1: " + threads);
+        }
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("deflate level must be between 0 and 9: " + level);
+        }
+        if (filter == null) {
+            throw new NullPointerException("filter");
+        }
+        this.level = level;
+        this.filter = filter;
+        this.threads = threads;
+        this.executor = executor;
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves the deflate level
+     *
+     * @return                  the deflate level, 0 to 9
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Retrieves the scanline filter
+     *
+     * @return                  the filter applied to each row
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Retrieves the number of threads images are compressed with
+     *
+     * @return                  the thread count; 1 means a single deflate stream
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Writes an image as a PNG file, replacing any existing file
+     *
+     * @param       image       the image to write
+     * @param       file        the file to write to
+     * @throws                  IOException if the file cannot be written
+     */
+    public void write(BufferedImage image, File file) throws IOException {
+        write(image, file, 0);
+    }
+
+    /**
+     * Writes an image as a PNG file that records its intended print resolution, replacing any existing file
+     *
+     * @param       image       the image to write
+     * @param       file        the file to write to
+     * @param       dpi         the resolution in dots per inch, or 0 to record none
+     * @throws                  IOException if the file cannot be written
+     */
+    public void write(BufferedImage image, File file, int dpi) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(image, channel, dpi);
+        }
+    }
+
+    /**
+     * Writes an image in PNG format to a channel; the channel is left open
+     *
+     * @param       image       the image to write
+     * @param       channel     where to write the PNG data
+     * @throws                  IOException if writing to the channel fails
+     */
+    public void write(BufferedImage image, WritableByteChannel channel) throws IOException {
+        write(image, channel, 0);
+    }
+
+    /**
+     * Writes an image in PNG format to a channel, recording its intended print resolution; the channel is left
+     * open
+     *
+     * @param       image       the image to write
+     * @param       channel     where to write the PNG data
+     * @param       dpi         the resolution in dots per inch, or 0 to record none
+     * @throws                  IOException if writing to the channel fails
+     */
+    public void write(BufferedImage image, WritableByteChannel channel, int dpi) throws IOException {
+        write(image, null, channel, dpi);
+    }
+
+    /**
+     * Writes an image as it looks over an opaque background color in PNG format to a channel; the channel is left
+     * open. Each row is composited over the background as it is read, so the image is not copied, and every pixel
+     * of the PNG is opaque. The pixels are those of drawing the image over the color with Java2D.
+     *
+     * @param       image       the image to write
+     * @param       background  the opaque color the image is composited over
+     * @param       channel     where to write the PNG data
+     * @throws                  IllegalArgumentException if the background color is not opaque
+     * @throws                  IOException if writing to the channel fails
+     */
+    public void write(BufferedImage image, Color background, WritableByteChannel channel) throws IOException {
+        if (background.getAlpha() != 255) {
+            throw new IllegalArgumentException("background color must be opaque: " + background);
+        }
+        write(image, background, channel, 0);
+    }
+
+    /**
+     * Writes an image in PNG format to a channel, optionally over a background color
+     *
+     * @param       image       the image to write
+     * @param       background  the opaque color to composite the image over, or null to write it as it is
+     * @param       channel     where to write the PNG data
+     * @param       dpi         the resolution in dots per inch, or 0 to record none
+     * @throws                  IOException if writing to the channel fails
+     */
+    private void write(BufferedImage image, Color background, WritableByteChannel channel, int dpi)
+            throws IOException {
+        Scanlines rows = new Scanlines(image, background);
+        int bandRows = Math.max(1, BAND_SIZE / rows.lineLength());
+        if (threads > 1 && rows.height > bandRows) {
+            writeStart(channel, rows.width, rows.height, rows.colorType, dpi);
+            writeBands(image, background, channel, bandRows);
+            writeChunk(channel, "IEND", ByteBuffer.allocate(0));
+            return;
+        }
+        BandWriter out = new BandWriter(channel, rows.width, rows.height, dpi);
+        out.write(image, background);
+        out.finish();
+    }
+
+    /**
+     * Starts a PNG image that is supplied a band of rows at a time, for images too large to hold in memory at once.
+     * Only the rows of the current band and one row above it are kept, and each band is compressed into the
+     * channel as soon as it is written. Bands are compressed as a single stream whatever the thread count of this
+     * writer.
+     *
+     * @param       channel     where to write the PNG data; it is left open
+     * @param       width       the image width, which every band must have
+     * @param       height      the image height, which the bands must add up to
+     * @param       dpi         the resolution in dots per inch, or 0 to record none
+     * @return                  the writer to supply the bands to
+     * @throws                  IllegalArgumentException if the width or height is not positive
+     */
+    public BandWriter open(WritableByteChannel channel, int width, int height, int dpi) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("image size must be positive: " + width + "x" + height);
+        }
+        return new BandWriter(channel, width, height, dpi);
+    }
+
+    /**
+     * Writes the image data as bands of rows compressed in parallel, pigz style. Each band is filtered and
+     * raw-deflated on its own, ending in a SYNC_FLUSH (the last one in a FINISH) so that the bands simply
+     * concatenate into one deflate stream. The zlib header and the Adler-32 trailer, combined from the per-band
+     * checksums, are added around them here. Bands are written in order as they complete, with at most two per
+     * thread held in memory.
+     *
+     * @param       image       the image being written
+     * @param       background  the opaque color to composite the image over, or null
+     * @param       channel     where to write the IDAT chunks
+     * @param       bandRows    the number of rows in a band
+     * @throws                  IOException if writing to the channel fails
+     */
+    private void writeBands(final BufferedImage image, final Color background, WritableByteChannel channel,
+            final int bandRows) throws IOException {
+        final int height = image.getHeight();
+        Executor pool = executor != null ? executor : sharedPool();
+        ArrayDeque<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        long adler = 1;
+
+        // zlib header: deflate with a 32K window, and the level class zlib itself would record
+        chunk.put((byte) 0x78);
+        chunk.put((byte) (level < 2 ? 0x01 : level < 6 ? 0x5e : level == 6 ? 0x9c : 0xda));
+        try {
+            for (int y = 0; y < height; y += bandRows) {
+                final int first = y;
+                final int last = Math.min(height, y + bandRows);
+                FutureTask<Band> band = new FutureTask<Band>(new Callable<Band>() {
+                    public Band call() {
+                        return compressBand(image, background, first, last, last == height);
+                    }
+                });
+                pending.add(band);
+                pool.execute(band);
+                if (pending.size() >= 2 * threads) {
+                    adler = appendBand(awaitBand(pending.remove()), adler, chunk, channel);
+                }
+            }
+            while (!pending.isEmpty()) {
+                adler = appendBand(awaitBand(pending.remove()), adler, chunk, channel);
+            }
+        } finally {
+            // the pool outlives this write: drop whatever a failed write left queued or running
+            for (Future<Band> band : pending) {
+                band.cancel(true);
+            }
+        }
+        append(new byte[] {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler},
+                4, chunk, channel);
+        writeChunk(channel, "IDAT", chunk);
+    }
+
+    /**
+     * Filters and raw-deflates one band of rows
+     *
+     * @param       image       the image being written
+     * @param       background  the opaque color to composite the image over, or null
+     * @param       first       the first row of the band
+     * @param       last        one past the last row of the band
+     * @param       end         whether this is the final band of the image
+     * @return                  the compressed band with the checksum and length of its filtered data
+     */
+    private Band compressBand(BufferedImage image, Color background, int first, int last, boolean end) {
+        Scanlines rows = new Scanlines(image, background);
+        Deflater deflater = new Deflater(level, true);
+        Adler32 checksum = new Adler32();
+        byte[] input = new byte[(last - first) * rows.lineLength()];
+        for (int y = first, pos = 0; y < last; y++, pos += rows.lineLength()) {
+            System.arraycopy(rows.filtered(y), 0, input, pos, rows.lineLength());
+        }
+        checksum.update(input, 0, input.length);
+
+        byte[] out = new byte[input.length / 4 + 64];
+        int length = 0;
+        try {
+            deflater.setInput(input);
+            if (end) {
+                deflater.finish();
+            }
+            while (true) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int n = end ? deflater.deflate(out, length, out.length - length)
+                        : deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                length += n;
+                if (end ? deflater.finished() : length < out.length) {
+                    break;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Band(out, length, checksum.getValue(), input.length);
+    }
+
+    /**
+     * Writes a compressed band into the IDAT stream and folds its checksum into the running one
+     *
+     * @param       band        the band to write
+     * @param       adler       the Adler-32 of all data before the band
+     * @param       chunk       the buffer collecting compressed data
+     * @param       channel     where to write full chunks
+     * @return                  the Adler-32 of all data up to and including the band
+     * @throws                  IOException if writing to the channel fails
+     */
+    private long appendBand(Band band, long adler, ByteBuffer chunk, WritableByteChannel channel)
+            throws IOException {
+        append(band.data, band.length, chunk, channel);
+        return combineAdler(adler, band.adler, band.inputLength);
+    }
+
+    /**
+     * Writes the signature, the IHDR chunk and, if a resolution is given, the pHYs chunk
+     *
+     * @param       channel     where to write
+     * @param       width       the image width
+     * @param       height      the image height
+     * @param       colorType   the PNG color type of the scanlines
+     * @param       dpi         the resolution in dots per inch, or 0 to record none
+     * @throws                  IOException if writing to the channel fails
+     */
+    private void writeStart(WritableByteChannel channel, int width, int height, int colorType, int dpi)
+            throws IOException {
+        writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+        writeHeader(channel, width, height, colorType);
+        if (dpi > 0) {
+            // pHYs: pixels per meter on each axis, unit "meter"
+            int perMeter = (int) Math.round(dpi / 0.0254);
+            ByteBuffer physical = ByteBuffer.allocate(9);
+            physical.putInt(perMeter).putInt(perMeter).put((byte) 1);
+            writeChunk(channel, "pHYs", physical);
+        }
+    }
+
+    /**
+     * Writes the IHDR chunk
+     *
+     * @param       channel     where to write the chunk
+     * @param       width       the image width
+     * @param       height      the image height
+     * @param       colorType   the PNG color type of the scanlines
+     * @throws                  IOException if writing to the channel fails
+     */
+    void writeHeader(WritableByteChannel channel, int width, int height, int colorType) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height);
+        header.put((byte) 8);                   // bit depth
+        header.put((byte) colorType);
+        header.put((byte) 0);                   // compression method: deflate
+        header.put((byte) 0);                   // filter method: adaptive filtering with five types
+        header.put((byte) 0);                   // no interlace
+        writeChunk(channel, "IHDR", header);
+    }
+
+    /**
+     * Runs the deflater once into the chunk buffer, writing the buffer out as an IDAT chunk when it fills
+     *
+     * @param       deflater    the deflater holding input
+     * @param       chunk       the buffer collecting compressed data
+     * @param       channel     where to write full chunks
+     * @throws                  IOException if writing to the channel fails
+     */
+    private void deflate(Deflater deflater, ByteBuffer chunk, WritableByteChannel channel) throws IOException {
+        int n = deflater.deflate(chunk.array(), chunk.position(), chunk.remaining());
+        chunk.position(chunk.position() + n);
+        if (!chunk.hasRemaining()) {
+            writeChunk(channel, "IDAT", chunk);
+        }
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves the pool that compresses bands for writers without an executor of their own, creating it on
+     * first use
+     *
+     * @return                  a pool of daemon threads, one per available processor
+     */
+    private static synchronized ExecutorService sharedPool() {
+        if (sharedPool == null) {
+            sharedPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "PngWriter-band");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Copies bytes into the chunk buffer, writing the buffer out as an IDAT chunk whenever it fills
+     *
+     * @param       data        the bytes to add
+     * @param       length      the number of bytes of data to add
+     * @param       chunk       the buffer collecting compressed data
+     * @param       channel     where to write full chunks
+     * @throws                  IOException if writing to the channel fails
+     */
+    private static void append(byte[] data, int length, ByteBuffer chunk, WritableByteChannel channel)
+            throws IOException {
+        for (int off = 0; off < length; ) {
+            int n = Math.min(length - off, chunk.remaining());
+            chunk.put(data, off, n);
+            off += n;
+            if (!chunk.hasRemaining()) {
+                writeChunk(channel, "IDAT", chunk);
+            }
+        }
+    }
+
+    /**
+     * Waits for a band to be compressed
+     *
+     * @param       band        the pending band
+     * @return                  the compressed band
+     * @throws                  IOException if compression failed or the wait was interrupted
+     */
+    private static Band awaitBand(Future<Band> band) throws IOException {
+        try {
+            return band.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted compressing PNG bands");
+        } catch (ExecutionException e) {
+            throw new IOException("error compressing PNG band", e.getCause());
+        }
+    }
+
+    /**
+     * Computes the Adler-32 of two pieces of data joined together from the checksums of the pieces, as zlib's
+     * adler32_combine does
+     *
+     * @param       adler1      the checksum of the first piece
+     * @param       adler2      the checksum of the second piece
+     * @param       length2     the length of the second piece
+     * @return                  the checksum of the first piece followed by the second
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+        sum1 %= ADLER_BASE;
+        sum2 %= ADLER_BASE;
+        return sum2 << 16 | sum1;
+    }
+
+    /**
+     * Writes one PNG chunk: length, type, data and CRC. The data runs from the start of the buffer to its position,
+     * and the buffer is cleared afterwards.
+     *
+     * @param       channel     where to write the chunk
+     * @param       type        the four-letter chunk type
+     * @param       data        the buffer holding the chunk data
+     * @throws                  IOException if writing to the channel fails
+     */
+    static void writeChunk(WritableByteChannel channel, String type, ByteBuffer data) throws IOException {
+        data.flip();
+        ByteBuffer head = ByteBuffer.allocate(8);
+        head.putInt(data.remaining());
+        for (int i = 0; i < 4; i++) {
+            head.put((byte) type.charAt(i));
+        }
+        head.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(head.array(), 4, 4);
+        crc.update(data.duplicate());
+        ByteBuffer tail = ByteBuffer.allocate(4);
+        tail.putInt((int) crc.getValue());
+        tail.flip();
+
+        writeFully(channel, head);
+        writeFully(channel, data);
+        writeFully(channel, tail);
+        data.clear();
+    }
+
+    /**
+     * Writes everything remaining in a buffer to a channel
+     *
+     * @param       channel     the channel to write to
+     * @param       buffer      the bytes to write
+     * @throws                  IOException if writing to the channel fails
+     */
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Multiplies two 8-bit values as fractions of 255, rounding the way Java2D's compositing loops do, so that
+     * compositing here gives the same pixels as drawing with SrcOver. The product can reach past 2^31, and the
+     * unsigned shift reads it back correctly.
+     *
+     * @param       a           the first value, 0 to 255
+     * @param       b           the second value, 0 to 255
+     * @return                  a * b / 255, rounded
+     */
+    private static int mul8(int a, int b) {
+        return (a * b * 0x10101 + (1 << 23)) >>> 24;
+    }
+
+    /**
+     * The Paeth predictor: whichever of left, up and upper-left is closest to left + up - upper-left
+     *
+     * @param       a           the byte to the left
+     * @param       b           the byte above
+     * @param       c           the byte above and to the left
+     * @return                  the predicted byte
+     */
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * One compressed band of rows, with what is needed to fold it into the zlib trailer
+     */
+    private static class Band {
+        /** the raw deflate data */
+        final byte[] data;
+        /** the number of bytes of data used */
+        final int length;
+        /** the Adler-32 of the band's filtered scanlines */
+        final long adler;
+        /** the length of the band's filtered scanlines */
+        final long inputLength;
+
+        /**
+         * Constructor
+         *
+         * @param       data        the raw deflate data
+         * @param       length      the number of bytes of data used
+         * @param       adler       the Adler-32 of the band's filtered scanlines
+         * @param       inputLength the length of the band's filtered scanlines
+         */
+        Band(byte[] data, int length, long adler, long inputLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.inputLength = inputLength;
+        }
+    }
+
+    /**
+     * Writes one PNG image supplied as bands of rows, top to bottom. The header goes out with the first band, whose
+     * pixel layout decides the PNG color type; every later band must have the same layout and the image's width.
+     * Rows are filtered and compressed as if the bands were one image, so the file is the same as the one a single
+     * write of the whole image produces. An instance belongs to one thread.
+     */
+    public class BandWriter {
+        /** where the PNG data is written */
+        private final WritableByteChannel channel;
+        /** the image width */
+        private final int width;
+        /** the image height */
+        private final int height;
+        /** the resolution to record, or 0 */
+        private final int dpi;
+        /** compresses the scanlines of all bands as one stream */
+        private final Deflater deflater = new Deflater(level);
+        /** the buffer collecting compressed data */
+        private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        /** scanlines gathered into a larger block for the deflater */
+        private byte[] input;
+        /** the number of bytes of input gathered */
+        private int pending;
+        /** the unfiltered last row written, which the next band's first row is filtered against */
+        private byte[] lastRow;
+        /** the PNG color type, or -1 before the first band */
+        private int colorType = -1;
+        /** the number of rows written so far */
+        private int rowsWritten;
+
+        /**
+         * Constructor
+         *
+         * @param       channel     where to write the PNG data
+         * @param       width       the image width
+         * @param       height      the image height
+         * @param       dpi         the resolution in dots per inch, or 0 to record none
+         */
+        BandWriter(WritableByteChannel channel, int width, int height, int dpi) {
+            this.channel = channel;
+            this.width = width;
+            this.height = height;
+            this.dpi = dpi;
+        }
+
+        /**
+         * Retrieves how many rows of the image have been written
+         *
+         * @return                  the total height of the bands written so far
+         */
+        public int getRowsWritten() {
+            return rowsWritten;
+        }
+
+        /**
+         * Filters and compresses the next band of rows. The band may be reused for the next one once this returns.
+         *
+         * @param       band        the rows, as wide as the image
+         * @throws                  IllegalArgumentException if the band is the wrong width, has a different layout
+         *                          from the first band, or runs past the bottom of the image
+         * @throws                  IOException if writing to the channel fails
+         */
+        public void write(BufferedImage band) throws IOException {
+            write(band, null);
+        }
+
+        /**
+         * Filters and compresses the next band of rows, composited over a background color
+         *
+         * @param       band        the rows, as wide as the image
+         * @param       background  the opaque color to composite the rows over, or null to write them as they are
+         * @throws                  IllegalArgumentException if the band is the wrong width, has a different layout
+         *                          from the first band, or runs past the bottom of the image
+         * @throws                  IOException if writing to the channel fails
+         */
+        void write(BufferedImage band, Color background) throws IOException {
+            if (band.getWidth() != width) {
+                throw new IllegalArgumentException("band width " + band.getWidth() + " differs from image width " + width);
+            }
+            if (band.getHeight() > height - rowsWritten) {
+                throw new IllegalArgumentException("band of " + band.getHeight() + " rows runs past row " + height);
+            }
+            Scanlines rows = new Scanlines(band, background);
+            if (colorType < 0) {
+                colorType = rows.colorType;
+                writeStart(channel, width, height, colorType, dpi);
+                input = new byte[Math.max(CHUNK_SIZE, rows.lineLength())];
+                lastRow = new byte[rows.lineLength() - 1];
+            } else if (rows.colorType != colorType) {
+                throw new IllegalArgumentException("band pixel layout differs from that of the first band");
+            } else {
+                rows.setRowAbove(lastRow);
+            }
+
+            // gather scanlines into larger blocks; the deflater works better on those
+            for (int y = 0; y < rows.height; y++) {
+                if (pending + rows.lineLength() > input.length) {
+                    deflater.setInput(input, 0, pending);
+                    while (!deflater.needsInput()) {
+                        deflate(deflater, chunk, channel);
+                    }
+                    pending = 0;
+                }
+                System.arraycopy(rows.filtered(y), 0, input, pending, rows.lineLength());
+                pending += rows.lineLength();
+            }
+            System.arraycopy(rows.current, 0, lastRow, 0, lastRow.length);
+            rowsWritten += rows.height;
+        }
+
+        /**
+         * Compresses what is left and ends the image; nothing may be written after this
+         *
+         * @throws                  IllegalStateException if the bands written do not add up to the image height
+         * @throws                  IOException if writing to the channel fails
+         */
+        public void finish() throws IOException {
+            if (rowsWritten != height) {
+                throw new IllegalStateException("only " + rowsWritten + " of " + height + " rows written");
+            }
+            try {
+                deflater.setInput(input, 0, pending);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(deflater, chunk, channel);
+                }
+                if (chunk.position() > 0) {
+                    writeChunk(channel, "IDAT", chunk);
+                }
+            } finally {
+                deflater.end();
+            }
+            writeChunk(channel, "IEND", ByteBuffer.allocate(0));
+        }
+    }
+
+    /**
+     * Produces the filtered scanlines of an image, reading pixels from the image's own data array when it is one of
+     * the common integer or gray layouts and through getRGB otherwise. Holds per-row buffers, so an instance
+     * belongs to one thread.
+     */
+    class Scanlines {
+        /** the image width in pixels */
+        final int width;
+        /** the image height in pixels */
+        final int height;
+        /** the PNG color type written */
+        final int colorType;
+        /** bytes per pixel in a scanline */
+        final int bpp;
+
+        /** the image being written */
+        private final BufferedImage image;
+        /** the image's int pixels, or null */
+        private final int[] ints;
+        /** the image's byte pixels, or null */
+        private final byte[] bytes;
+        /** index of pixel (0, 0) in the pixel array */
+        private final int offset;
+        /** distance between rows in the pixel array */
+        private final int stride;
+        /** whether int pixels carry premultiplied alpha */
+        private final boolean premultiplied;
+        /** whether pixels are composited over the background as they are read */
+        private final boolean composite;
+        /** the background's red, green and blue */
+        private final int backgroundRed, backgroundGreen, backgroundBlue;
+        /** pixels of a row fetched through getRGB */
+        private final int[] argbRow;
+        /** the unfiltered bytes of the row above the current one */
+        private byte[] previous;
+        /** the unfiltered bytes of the current row */
+        private byte[] current;
+        /** the filter type byte followed by the filtered row, one per filter type */
+        private final byte[][] candidates = new byte[5][];
+        /** the row number current holds, or -1 */
+        private int currentRow = -1;
+        /** the unfiltered last row of the band above when the image continues one, or null */
+        private byte[] above;
+
+        /**
+         * Constructor
+         *
+         * @param       image       the image to produce scanlines of
+         * @param       background  the opaque color to composite the image over, or null to write it as it is
+         */
+        Scanlines(BufferedImage image, Color background) {
+            this.image = image;
+            width = image.getWidth();
+            height = image.getHeight();
+            Raster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            int type = image.getType();
+            boolean intLayout = (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB
+                    || type == BufferedImage.TYPE_INT_ARGB_PRE) && buffer instanceof DataBufferInt;
+            boolean grayLayout = type == BufferedImage.TYPE_BYTE_GRAY && buffer instanceof DataBufferByte;
+            ints = intLayout ? ((DataBufferInt) buffer).getData() : null;
+            bytes = grayLayout ? ((DataBufferByte) buffer).getData() : null;
+            SampleModel model = raster.getSampleModel();
+            if (intLayout || grayLayout) {
+                stride = model instanceof ComponentSampleModel
+                        ? ((ComponentSampleModel) model).getScanlineStride()
+                        : ((SinglePixelPackedSampleModel) model).getScanlineStride();
+                offset = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                        - raster.getSampleModelTranslateX();
+            } else {
+                stride = 0;
+                offset = 0;
+            }
+            premultiplied = type == BufferedImage.TYPE_INT_ARGB_PRE;
+            argbRow = intLayout || grayLayout ? null : new int[width];
+            // an image without alpha looks the same over any background
+            composite = background != null && image.getColorModel().hasAlpha();
+            backgroundRed = composite ? background.getRed() : 0;
+            backgroundGreen = composite ? background.getGreen() : 0;
+            backgroundBlue = composite ? background.getBlue() : 0;
+
+            if (grayLayout) {
+                colorType = GRAY;
+                bpp = 1;
+            } else if (type == BufferedImage.TYPE_INT_RGB || !image.getColorModel().hasAlpha()) {
+                colorType = RGB;
+                bpp = 3;
+            } else {
+                // composited pixels keep the image's four-byte layout with their alpha made opaque:
+                // drawings with large flat areas deflate slightly smaller that way than as three-byte RGB
+                colorType = RGBA;
+                bpp = 4;
+            }
+            previous = new byte[width * bpp];
+            current = new byte[width * bpp];
+        }
+
+        /**
+         * Retrieves the length of a filtered scanline
+         *
+         * @return                  the filter type byte plus the row's bytes
+         */
+        int lineLength() {
+            return current.length + 1;
+        }
+
+        /**
+         * Makes the image a continuation of a band above it, so that its first row is filtered against that band's
+         * last row rather than against nothing
+         *
+         * @param       row         the unfiltered bytes of the row above the image
+         */
+        void setRowAbove(byte[] row) {
+            above = row;
+        }
+
+        /**
+         * Produces one scanline as it is fed to the compressor: the filter type byte followed by the filtered row.
+         * Rows are normally requested in order; the first row requested is filtered against the row above it
+         * just as it would be in a full pass.
+         *
+         * @param       y           the row number
+         * @return                  the filtered scanline; valid until the next call
+         */
+        byte[] filtered(int y) {
+            if (y == 0 && above != null) {
+                System.arraycopy(above, 0, previous, 0, previous.length);
+            } else if (y == 0) {
+                Arrays.fill(previous, (byte) 0);
+            } else if (currentRow == y - 1) {
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            } else {
+                read(y - 1, previous);
+            }
+            read(y, current);
+            currentRow = y;
+
+            switch (filter) {
+                case NONE   : return candidate(0);
+                case SUB    : return candidate(1);
+                case UP     : return candidate(2);
+                default     : return best();
+            }
+        }
+
+        /**
+         * Filters the current row with every filter type and picks the one with the smallest sum of absolute
+         * (signed) differences, the usual PNG heuristic
+         *
+         * @return                  the chosen filtered scanline
+         */
+        private byte[] best() {
+            byte[] best = null;
+            long bestSum = Long.MAX_VALUE;
+            for (int type = 0; type < 5; type++) {
+                byte[] line = candidate(type);
+                long sum = 0;
+                for (int i = 1; i < line.length && sum < bestSum; i++) {
+                    sum += Math.abs(line[i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = line;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Filters the current row with one filter type
+         *
+         * @param       type        the PNG filter type, 0 to 4
+         * @return                  the filter type byte followed by the filtered row
+         */
+        private byte[] candidate(int type) {
+            byte[] line = candidates[type];
+            if (line == null) {
+                line = candidates[type] = new byte[current.length + 1];
+                line[0] = (byte) type;
+            }
+            byte[] row = current;
+            byte[] up = previous;
+            int n = row.length;
+            // the first pixel of a row has nothing to its left, so it is handled
+            // separately and the main loops need no bounds checks
+            int head = Math.min(bpp, n);
+            switch (type) {
+                case 0:
+                    System.arraycopy(row, 0, line, 1, n);
+                    break;
+                case 1:
+                    System.arraycopy(row, 0, line, 1, head);
+                    for (int i = bpp; i < n; i++) {
+                        line[i + 1] = (byte) (row[i] - row[i - bpp]);
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < n; i++) {
+                        line[i + 1] = (byte) (row[i] - up[i]);
+                    }
+                    break;
+                case 3:
+                    for (int i = 0; i < head; i++) {
+                        line[i + 1] = (byte) (row[i] - ((up[i] & 0xff) >> 1));
+                    }
+                    for (int i = bpp; i < n; i++) {
+                        line[i + 1] = (byte) (row[i] - (((row[i - bpp] & 0xff) + (up[i] & 0xff)) >> 1));
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < head; i++) {
+                        line[i + 1] = (byte) (row[i] - up[i]);     // paeth(0, b, 0) is b
+                    }
+                    for (int i = bpp; i < n; i++) {
+                        line[i + 1] = (byte) (row[i] - paeth(row[i - bpp] & 0xff, up[i] & 0xff, up[i - bpp] & 0xff));
+                    }
+                    break;
+            }
+            return line;
+        }
+
+        /**
+         * Reads the unfiltered bytes of a row
+         *
+         * @param       y           the row number
+         * @param       dest        where to put the row's bytes
+         */
+        private void read(int y, byte[] dest) {
+            if (bytes != null) {
+                System.arraycopy(bytes, offset + y * stride, dest, 0, width);
+                return;
+            }
+            int[] src = ints;
+            int start = offset + y * stride;
+            if (src == null) {
+                image.getRGB(0, y, width, 1, argbRow, 0, width);
+                src = argbRow;
+                start = 0;
+            }
+            int d = 0;
+            for (int x = 0; x < width; x++) {
+                int argb = src[start + x];
+                int a = argb >>> 24;
+                int r = argb >> 16 & 0xff;
+                int g = argb >> 8 & 0xff;
+                int b = argb & 0xff;
+                if (composite) {
+                    if (a != 255) {
+                        // SrcOver onto an opaque color: premultiply, then add the background's share
+                        if (!premultiplied) {
+                            r = mul8(a, r);
+                            g = mul8(a, g);
+                            b = mul8(a, b);
+                        }
+                        r += mul8(255 - a, backgroundRed);
+                        g += mul8(255 - a, backgroundGreen);
+                        b += mul8(255 - a, backgroundBlue);
+                    }
+                } else if (premultiplied && a != 0 && a != 255) {
+                    r = Math.min(255, (r * 255 + a / 2) / a);
+                    g = Math.min(255, (g * 255 + a / 2) / a);
+                    b = Math.min(255, (b * 255 + a / 2) / a);
+                }
+                dest[d++] = (byte) r;
+                dest[d++] = (byte) g;
+                dest[d++] = (byte) b;
+                if (bpp == 4) {
+                    dest[d++] = (byte) (composite ? 255 : a);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package drawings;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+/**
+ * Measures how the pixel formats a DrawingPanel can be created with compare in memory and speed: bytes per pixel,
+ * shapes drawn per second, and full-canvas clears, copies and PNG encodes per second. Runs headless:
+ * <pre>
+ *     java -Djava.awt.headless=true -Ddrawingpanel.headless=true drawings.RasterBenchmark [SIZE]
+ * </pre>
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class RasterBenchmark {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the formats compared */
+    private static final int[] TYPES = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE,
+        BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY};
+    /** the names of the formats compared */
+    private static final String[] NAMES = {"INT_ARGB", "INT_ARGB_PRE", "INT_RGB", "BYTE_GRAY"};
+    /** the canvas width and height when none is given */
+    private static final int DEFAULT_SIZE = 2000;
+    /** how long each measurement runs, in nanoseconds */
+    private static final long RUN_NANOS = 1000000000L;
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Runs the benchmark and prints one line per format
+     *
+     * @param       args        optionally, the canvas width and height in pixels
+     */
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        // one untimed pass over every format so that the first one measured is not the one paying for warm-up
+        for (int type : TYPES) {
+            DrawingPanel panel = new DrawingPanel(size / 4, size / 4, type);
+            try {
+                measure(panel, size / 4);
+            } finally {
+                panel.close();
+            }
+        }
+        System.out.printf("%dx%d canvas%n", size, size);
+        System.out.printf("%-13s %7s %12s %10s %10s %10s%n", "format", "B/px", "shapes/s", "clears/s", "copies/s", "pngs/s");
+        for (int i = 0; i < TYPES.length; i++) {
+            DrawingPanel panel = new DrawingPanel(size, size, TYPES[i]);
+            try {
+                System.out.printf("%-13s %s%n", NAMES[i], measure(panel, size));
+            } finally {
+                panel.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Measures one format
+     *
+     * @param       panel       a panel in the format
+     * @param       size        the panel's width and height
+     * @return                  the measurements, formatted to line up with the table heading
+     */
+    private static String measure(DrawingPanel panel, int size) throws IOException {
+        BufferedImage probe = panel.toImage(panel.getImageType());
+        double bytesPerPixel = (double) probe.getRaster().getDataBuffer().getSize()
+                * DataBuffer.getDataTypeSize(probe.getRaster().getDataBuffer().getDataType()) / 8 / ((long) size * size);
+
+        Graphics2D g = panel.getGraphics();
+        Random random = new Random(42);
+        long shapes = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < RUN_NANOS) {
+            for (int k = 0; k < 100; k++, shapes++) {
+                g.setColor(new Color(random.nextInt(), true));
+                int x = random.nextInt(size);
+                int y = random.nextInt(size);
+                g.fillOval(x, y, 1 + random.nextInt(size / 8), 1 + random.nextInt(size / 8));
+            }
+        }
+        double shapesPerSecond = shapes * 1e9 / (System.nanoTime() - start);
+
+        double clearsPerSecond = rate(() -> panel.clear());
+        double copiesPerSecond = rate(() -> panel.toImage(panel.getImageType()));
+        PngWriter writer = new PngWriter(1, PngWriter.Filter.NONE);
+        WritableByteChannel sink = new WritableByteChannel() {
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        double pngsPerSecond = rate(() -> panel.save(sink, writer));
+        return String.format("%7.1f %12.0f %10.1f %10.1f %10.1f",
+                bytesPerPixel, shapesPerSecond, clearsPerSecond, copiesPerSecond, pngsPerSecond);
+    }
+
+    /**
+     * Repeats an operation for about a second
+     *
+     * @param       operation   the operation to time
+     * @return                  how many times per second the operation ran
+     */
+    private static double rate(Operation operation) throws IOException {
+        operation.run();
+        long count = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < RUN_NANOS) {
+            operation.run();
+            count++;
+        }
+        return count * 1e9 / (System.nanoTime() - start);
+    }
+
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * An operation being timed
+     */
+    private interface Operation {
+        /**
+         * Performs the operation once
+         */
+        void run() throws IOException;
+    }
+}
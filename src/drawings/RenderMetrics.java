@@ -0,0 +1,373 @@
+package drawings;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Aggregates render timings and counts per drawing and per shape name, and publishes them as a JMX MBean.
+ * Collection is switched on by starting the JVM with -Ddrawings.metrics=true; otherwise no recorder is
+ * ever handed out and the render path does nothing beyond a null check.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class RenderMetrics implements RenderMetricsMBean {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** system property that switches metrics collection on */
+    public static final String METRICS_PROPERTY = "drawings.metrics";
+    /** whether metrics are collected in this JVM; fixed at class load so disabled checks fold away */
+    public static final boolean ENABLED = Boolean.getBoolean(METRICS_PROPERTY);
+    /** the JMX name under which the metrics are registered */
+    public static final String OBJECT_NAME = "drawings:type=RenderMetrics";
+    /** the timed render phases */
+    public static final String[] PHASES = {"parse", "resolve", "transform", "raster"};
+    /** the counted quantities */
+    public static final String[] COUNTERS = {"renders", "instances", "vertices", "pixels"};
+
+    /** phase index for instruction file parsing */
+    static final int PARSE = 0;
+    /** phase index for shape lookup in the library */
+    static final int RESOLVE = 1;
+    /** phase index for scaling, offsetting and rotating vertices */
+    static final int TRANSFORM = 2;
+    /** phase index for polygon rasterization */
+    static final int RASTER = 3;
+    /** counter index for complete drawing renders */
+    static final int RENDERS = 0;
+    /** counter index for shape instances drawn */
+    static final int INSTANCES = 1;
+    /** counter index for vertices processed */
+    static final int VERTICES = 2;
+    /** counter index for (estimated) pixels touched */
+    static final int PIXELS = 3;
+
+    /** number of power-of-two latency buckets; the last one also takes everything slower */
+    private static final int BUCKETS = 40;
+    /** the single registered instance, or null when metrics are disabled */
+    private static final RenderMetrics INSTANCE = ENABLED ? register(new RenderMetrics()) : null;
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** statistics keyed by drawing name */
+    private final ConcurrentHashMap<String, Stats> drawings = new ConcurrentHashMap<String, Stats>();
+    /** statistics keyed by shape name */
+    private final ConcurrentHashMap<String, Stats> shapes = new ConcurrentHashMap<String, Stats>();
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Constructor; use getInstance rather than creating metrics directly
+     */
+    private RenderMetrics() {
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves the registered metrics
+     *
+     * @return                  the metrics, or null when collection is disabled
+     */
+    public static RenderMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates a recorder for one render or parse of the named drawing
+     *
+     * @param       drawingName the name the drawing is reported under
+     * @return                  a recorder, or null when collection is disabled
+     */
+    static Recorder recorder(String drawingName) {
+        if (!ENABLED) {
+            return null;
+        }
+        return new Recorder(INSTANCE, INSTANCE.stats(INSTANCE.drawings, drawingName));
+    }
+
+    /**
+     * Registers metrics with the platform MBean server; failures leave the metrics usable but unpublished
+     *
+     * @param       metrics     the metrics to register
+     * @return                  the same metrics
+     */
+    private static RenderMetrics register(RenderMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Unable to register render metrics: " + e);
+        }
+        return metrics;
+    }
+
+    /**
+     * Finds the index of a name in a list of names
+     *
+     * @param       names       the names to search
+     * @param       name        the sought name
+     * @return                  the index of the name
+     * @throws                  IllegalArgumentException if the name is not in the list
+     */
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown metric: " + name);
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getDrawingNames() {
+        return drawings.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getShapeNames() {
+        return shapes.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCount(String scope, String name, String counter) {
+        Stats stats = lookup(scope, name);
+        int idx = indexOf(COUNTERS, counter);
+        return stats == null ? 0 : stats.counts[idx].sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getTotalNanos(String scope, String name, String phase) {
+        Stats stats = lookup(scope, name);
+        int idx = indexOf(PHASES, phase);
+        return stats == null ? 0 : stats.nanos[idx].sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getHistogram(String scope, String name, String phase) {
+        Stats stats = lookup(scope, name);
+        int idx = indexOf(PHASES, phase);
+        long[] result = new long[BUCKETS];
+        if (stats != null) {
+            for (int b = 0; b < BUCKETS; b++) {
+                result[b] = stats.histograms[idx].get(b);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getSummary() {
+        StringBuilder result = new StringBuilder();
+        summarize(result, "drawing", drawings);
+        summarize(result, "shape", shapes);
+        return result.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        // zero the statistics in place: recorders of renders in flight hold on to them and keep reporting
+        for (Stats stats : drawings.values()) {
+            stats.reset();
+        }
+        for (Stats stats : shapes.values()) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Appends one summary line per entry of a statistics map
+     *
+     * @param       result      where to append the summary
+     * @param       scope       the scope label for the lines
+     * @param       map         the statistics to summarize
+     */
+    private void summarize(StringBuilder result, String scope, Map<String, Stats> map) {
+        for (Map.Entry<String, Stats> entry : new TreeMap<String, Stats>(map).entrySet()) {
+            Stats stats = entry.getValue();
+            result.append(scope).append(' ').append(entry.getKey());
+            for (int i = 0; i < COUNTERS.length; i++) {
+                result.append(' ').append(COUNTERS[i]).append('=').append(stats.counts[i].sum());
+            }
+            for (int i = 0; i < PHASES.length; i++) {
+                result.append(' ').append(PHASES[i]).append("Ms=").append(stats.nanos[i].sum() / 1000000.0);
+            }
+            result.append('\n');
+        }
+    }
+
+    /**
+     * Finds the statistics for a scope and name
+     *
+     * @param       scope       "drawing" or "shape"
+     * @param       name        the drawing or shape name
+     * @return                  the statistics, or null if nothing was recorded under the name
+     */
+    private Stats lookup(String scope, String name) {
+        switch (scope) {
+            case "drawing"  : return drawings.get(name);
+            case "shape"    : return shapes.get(name);
+            default         : throw new IllegalArgumentException("unknown scope: " + scope);
+        }
+    }
+
+    /**
+     * Finds or creates the statistics for a name
+     *
+     * @param       map         the map holding the statistics
+     * @param       name        the drawing or shape name
+     * @return                  the statistics for the name
+     */
+    private Stats stats(ConcurrentHashMap<String, Stats> map, String name) {
+        Stats stats = map.get(name);
+        if (stats == null) {
+            stats = map.computeIfAbsent(name, k -> new Stats());
+        }
+        return stats;
+    }
+
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * Counters, phase totals and latency histograms for one drawing or shape
+     */
+    private static class Stats {
+        /** counters, indexed like COUNTERS */
+        final LongAdder[] counts = new LongAdder[COUNTERS.length];
+        /** cumulative nanoseconds, indexed like PHASES */
+        final LongAdder[] nanos = new LongAdder[PHASES.length];
+        /** latency histograms, indexed like PHASES */
+        final AtomicLongArray[] histograms = new AtomicLongArray[PHASES.length];
+
+        /**
+         * Constructor; creates zeroed statistics
+         */
+        Stats() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = new LongAdder();
+                histograms[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        /**
+         * Zeroes every counter, total and histogram bucket
+         */
+        void reset() {
+            for (LongAdder count : counts) {
+                count.reset();
+            }
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i].reset();
+                for (int b = 0; b < BUCKETS; b++) {
+                    histograms[i].set(b, 0);
+                }
+            }
+        }
+
+        /**
+         * Records one timed sample of a phase
+         *
+         * @param       phase       the phase index
+         * @param       elapsed     the sample's duration in nanoseconds
+         */
+        void time(int phase, long elapsed) {
+            nanos[phase].add(elapsed);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, elapsed)));
+            histograms[phase].incrementAndGet(bucket);
+        }
+    }
+
+    /**
+     * Records the samples of one render, attributing them to the drawing and to the shape currently being drawn.
+     * A recorder belongs to a single render and is not shared between threads.
+     */
+    static class Recorder {
+        /** the metrics the recorder reports into */
+        private final RenderMetrics metrics;
+        /** statistics for the drawing being rendered */
+        private final Stats drawing;
+        /** statistics for the shape being drawn, if any */
+        private Stats shape;
+
+        /**
+         * Constructor
+         *
+         * @param       metrics     the metrics to report into
+         * @param       drawing     statistics for the drawing being rendered
+         */
+        private Recorder(RenderMetrics metrics, Stats drawing) {
+            this.metrics = metrics;
+            this.drawing = drawing;
+        }
+
+        /**
+         * Attributes subsequent samples to the named shape as well as to the drawing
+         *
+         * @param       shapeName   the shape being drawn
+         */
+        void shape(String shapeName) {
+            shape = metrics.stats(metrics.shapes, shapeName);
+        }
+
+        /**
+         * Records the time elapsed in a phase since the given start
+         *
+         * @param       phase       the phase index
+         * @param       start       the System.nanoTime() at which the phase began
+         */
+        void time(int phase, long start) {
+            long elapsed = System.nanoTime() - start;
+            drawing.time(phase, elapsed);
+            if (shape != null) {
+                shape.time(phase, elapsed);
+            }
+        }
+
+        /**
+         * Adds to a counter
+         *
+         * @param       counter     the counter index
+         * @param       amount      the amount to add
+         */
+        void count(int counter, long amount) {
+            drawing.counts[counter].add(amount);
+            if (shape != null) {
+                shape.counts[counter].add(amount);
+            }
+        }
+    }
+}
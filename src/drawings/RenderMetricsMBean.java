@@ -0,0 +1,66 @@
+package drawings;
+
+/**
+ * Management interface through which RenderMetrics is published over JMX
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public interface RenderMetricsMBean {
+
+    /**
+     * Retrieves the names of all drawings rendered so far
+     *
+     * @return                  drawing names, in no particular order
+     */
+    String[] getDrawingNames();
+
+    /**
+     * Retrieves the names of all shapes drawn so far
+     *
+     * @return                  shape names, in no particular order
+     */
+    String[] getShapeNames();
+
+    /**
+     * Retrieves a counter for a drawing or shape
+     *
+     * @param       scope       "drawing" or "shape"
+     * @param       name        the drawing or shape name
+     * @param       counter     one of RenderMetrics.COUNTERS
+     * @return                  the counter value, or 0 if nothing was recorded
+     */
+    long getCount(String scope, String name, String counter);
+
+    /**
+     * Retrieves the total time spent in a render phase for a drawing or shape
+     *
+     * @param       scope       "drawing" or "shape"
+     * @param       name        the drawing or shape name
+     * @param       phase       one of RenderMetrics.PHASES
+     * @return                  total nanoseconds spent in the phase
+     */
+    long getTotalNanos(String scope, String name, String phase);
+
+    /**
+     * Retrieves the latency histogram of a render phase for a drawing or shape
+     *
+     * @param       scope       "drawing" or "shape"
+     * @param       name        the drawing or shape name
+     * @param       phase       one of RenderMetrics.PHASES
+     * @return                  sample counts; bucket i holds samples of less than 2^i nanoseconds
+     */
+    long[] getHistogram(String scope, String name, String phase);
+
+    /**
+     * Retrieves a human-readable summary of everything recorded
+     *
+     * @return                  one line per drawing and per shape
+     */
+    String getSummary();
+
+    /**
+     * Discards everything recorded so far; the names seen so far stay listed, with zeroed statistics
+     */
+    void reset();
+}
@@ -1,19 +1,49 @@
 package drawings;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 /**
- * Represents a single shape, represented as a polygon built on a collection of points
+ * Represents a single shape, represented as a polygon built on a collection of points. A shape published in a
+ * shape library can no longer be changed, so that renders drawing it see the same points throughout; copy it to
+ * make a changed version.
  * 
  * @author             Viktoryia Simakova
  * @version            2020-07-12
  */
 public class Shape implements Serializable {
 
+    /** the serialized form's version, that of the original point-list form, which readObject still accepts */
+    private static final long serialVersionUID = -8560710018041365414L;
+    /**
+     * the serialized fields: the name and the packed coordinates, plus the list of points shapes were saved
+     * with before the coordinates were packed, which is only ever read
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("name", String.class),
+        new ObjectStreamField("xs", double[].class),
+        new ObjectStreamField("ys", double[].class),
+        new ObjectStreamField("points", ArrayList.class)
+    };
+    /** the initial capacity of the coordinate arrays */
+    private static final int INITIAL_CAPACITY = 8;
+
     /** the name of the shape, e.g., "circle" */
     private String name;
-    /** the points that make up the shape */
-    private ArrayList<Point> points;
+    /** the x coordinates of the points that make up the shape, packed in order */
+    private double[] xs;
+    /** the y coordinates of the points that make up the shape, packed in order */
+    private double[] ys;
+    /** the number of points in the shape; only the first pointCount entries of xs and ys are used */
+    private int pointCount;
+    /** whether the shape has been published in a shape library, after which its points cannot change */
+    private boolean frozen;
 
     /**
      * Constructor
@@ -25,7 +55,21 @@ public class Shape implements Serializable {
             throw new IllegalArgumentException("Shape names must not be null or empty");
         }
         this.name = name;
-        points = new ArrayList<Point>();
+        xs = new double[INITIAL_CAPACITY];
+        ys = new double[INITIAL_CAPACITY];
+        pointCount = 0;
+    }
+
+    /**
+     * Copy constructor; the copy can be changed even if the original belongs to a shape library
+     *
+     * @param       original    the shape to copy
+     */
+    public Shape(Shape original) {
+        this.name = original.name;
+        xs = Arrays.copyOf(original.xs, Math.max(INITIAL_CAPACITY, original.pointCount));
+        ys = Arrays.copyOf(original.ys, Math.max(INITIAL_CAPACITY, original.pointCount));
+        pointCount = original.pointCount;
     }
 
     /**
@@ -37,7 +81,35 @@ public class Shape implements Serializable {
         if (point == null) {
             throw new IllegalArgumentException("point cannot not be null");
         }
-        points.add(point);
+        addPoint(point.getX(), point.getY());
+    }
+
+    /**
+     * Adds a new point to this shape, given its coordinates
+     *
+     * @param       x           the x coordinate of the point
+     * @param       y           the y coordinate of the point
+     * @throws                  IllegalStateException if the shape belongs to a shape library
+     */
+    public void addPoint(double x, double y) {
+        if (frozen) {
+            throw new IllegalStateException("shape " + name + " belongs to a shape library; change a copy of it");
+        }
+        if (pointCount == xs.length) {
+            int newCapacity = Math.max(INITIAL_CAPACITY, xs.length * 2);
+            xs = Arrays.copyOf(xs, newCapacity);
+            ys = Arrays.copyOf(ys, newCapacity);
+        }
+        xs[pointCount] = x;
+        ys[pointCount] = y;
+        pointCount++;
+    }
+
+    /**
+     * Fixes the shape's points for good, as it is published in a shape library
+     */
+    void freeze() {
+        frozen = true;
     }
 
     /**
@@ -46,17 +118,66 @@ public class Shape implements Serializable {
      * @return      the count of points in this shape
      */
     public int getPointCount() {
-        return points.size();
+        return pointCount;
     }
 
     /**
-     * Retrieves a specific point by index
+     * Retrieves a specific point by index; the returned Point is a copy, so changing it does not change the shape
      *
      * @param       idx         the index of the point
      * @return                  the point at the specified index
      */
     public Point getPoint(int idx) {
-        return points.get(idx);
+        checkIndex(idx);
+        return new Point(xs[idx], ys[idx]);
+    }
+
+    /**
+     * Retrieves the x coordinate of a specific point by index
+     *
+     * @param       idx         the index of the point
+     * @return                  the x coordinate of the point at the specified index
+     */
+    public double getX(int idx) {
+        checkIndex(idx);
+        return xs[idx];
+    }
+
+    /**
+     * Retrieves the y coordinate of a specific point by index
+     *
+     * @param       idx         the index of the point
+     * @return                  the y coordinate of the point at the specified index
+     */
+    public double getY(int idx) {
+        checkIndex(idx);
+        return ys[idx];
+    }
+
+    /**
+     * Copies the coordinates of all points into the given arrays, which must hold at least getPointCount() values
+     *
+     * @param       destXs      receives the x coordinates, in point order
+     * @param       destYs      receives the y coordinates, in point order
+     */
+    public void getCoordinates(double[] destXs, double[] destYs) {
+        System.arraycopy(xs, 0, destXs, 0, pointCount);
+        System.arraycopy(ys, 0, destYs, 0, pointCount);
+    }
+
+    /**
+     * Scales all points by the given factor, truncating to whole pixels, and stores them in the given arrays,
+     * which must hold at least getPointCount() values
+     *
+     * @param       scale       the factor to multiply every coordinate by
+     * @param       destXs      receives the scaled x coordinates, in point order
+     * @param       destYs      receives the scaled y coordinates, in point order
+     */
+    public void scaleInto(double scale, int[] destXs, int[] destYs) {
+        for (int idx = 0; idx < pointCount; idx++) {
+            destXs[idx] = (int)(xs[idx] * scale);
+            destYs[idx] = (int)(ys[idx] * scale);
+        }
     }
 
     /**
@@ -74,10 +195,81 @@ public class Shape implements Serializable {
      * @return                  string representation of the shape
      */
     public String toString() {
-        String result = "Shape name : " + name + "\n" + "points:\n";
-        for (int idx = 0; idx < points.size(); idx++){
-            result += getPoint(idx) + "\n";
+        StringBuilder result = new StringBuilder();
+        try {
+            writeTo(result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes the string representation of the shape and its points to the given output, point by point
+     *
+     * @param       out         where to write; a Writer or a StringBuilder, for example
+     * @throws                  IOException if the output cannot be written
+     */
+    public void writeTo(Appendable out) throws IOException {
+        out.append("Shape name : ").append(name).append("\n").append("points:\n");
+        for (int idx = 0; idx < pointCount; idx++){
+            out.append('(').append(String.valueOf(xs[idx])).append(", ").append(String.valueOf(ys[idx])).append(")\n");
+        }
+    }
+
+    /**
+     * Writes the shape's name and its coordinates, trimmed to the points in use
+     *
+     * @param       out         the stream to write to
+     * @throws                  IOException if the stream cannot be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", name);
+        fields.put("xs", Arrays.copyOf(xs, pointCount));
+        fields.put("ys", Arrays.copyOf(ys, pointCount));
+        out.writeFields();
+    }
+
+    /**
+     * Reads a shape in either serialized form: packed coordinates, or the list of points shapes were saved with
+     * before, which is converted to packed coordinates
+     *
+     * @param       in          the stream to read from
+     * @throws                  IOException if the stream cannot be read or holds an invalid shape
+     * @throws                  ClassNotFoundException if a class in the stream cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        name = (String) fields.get("name", null);
+        ArrayList<Point> points = (ArrayList<Point>) fields.get("points", null);
+        if (points != null) {
+            int count = points.size();
+            xs = new double[count];
+            ys = new double[count];
+            for (int idx = 0; idx < count; idx++) {
+                xs[idx] = points.get(idx).getX();
+                ys[idx] = points.get(idx).getY();
+            }
+        } else {
+            xs = (double[]) fields.get("xs", null);
+            ys = (double[]) fields.get("ys", null);
+        }
+        if (name == null || name.isEmpty() || xs == null || ys == null || xs.length != ys.length) {
+            throw new InvalidObjectException("malformed shape: " + name);
+        }
+        pointCount = xs.length;
+    }
+
+    /**
+     * Throws an IndexOutOfBoundsException if the given index is not the index of a point in this shape
+     *
+     * @param       idx         the index to check
+     */
+    private void checkIndex(int idx) {
+        if (idx < 0 || idx >= pointCount) {
+            throw new IndexOutOfBoundsException("index: " + idx);
         }
-        return result;
     }
 }
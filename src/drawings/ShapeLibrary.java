@@ -5,25 +5,44 @@ import java.io.FileNotFoundException;
 import java.io.FileInputStream;
 import java.io.ObjectInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.ClassNotFoundException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Maintains a collection of shapes read in from the shapes folder, serving them up when requested
+ * Maintains a collection of shapes read in from the shapes folder, serving them up when requested. The collection
+ * is published as immutable snapshots: lookups read whichever snapshot is current without locking or waiting, and
+ * adding or reloading shapes builds a new snapshot and swaps it in atomically. A render that holds on to the
+ * snapshot it started with sees the same shapes throughout, whatever changes meanwhile. The shapes themselves are
+ * frozen as they enter the library, so no caller can change one under a render either.
  * 
  * @author             Viktoryia Simakova
  * @version            2020-07-12
  */
 public class ShapeLibrary {
 
-    /** collection of shapes maintained by the library */
-    private ArrayList<Shape> shapes;
+    /** the current snapshot of the collection */
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(new Snapshot(new Shape[0], 0));
 
     /**
      * Creates collection and populates it from folder
      */
     public ShapeLibrary() throws FileNotFoundException, IOException, ClassNotFoundException {
-        shapes = new ArrayList<Shape>();
-        loadShapes();
+        Utility.createShapeFiles();
+        reload();
+    }
+
+    /**
+     * Retrieves the current snapshot of the collection, which never changes; hold on to it to see one consistent
+     * version of the shapes across several lookups
+     * 
+     * @return      the current snapshot
+     */
+    public Snapshot snapshot() {
+        return current.get();
     }
 
     /**
@@ -32,7 +51,7 @@ public class ShapeLibrary {
      * @return      shape count
      */
     public int getShapeCount() {
-        return shapes.size();
+        return current.get().getShapeCount();
     }
 
     /**
@@ -42,29 +61,21 @@ public class ShapeLibrary {
      * @return                  specified shape
      */
     public Shape getShape(int index) {
-        return shapes.get(index);
+        return current.get().getShape(index);
     }
 
     /**
      * Retrieves a specified shape, by name
      * 
      * @param       shapeName   name of the sought shape
-     * @return                  the requested shape, or null if there is no such shape
+     * @return                  the requested shape, or the first shape if there is no such shape
      */
     public Shape getShapeByName(String shapeName) {
-        boolean flag = true;
-        int idx = 0;
-        for (int i = 0; i < shapes.size() && flag; i++){
-            if (shapes.get(i).getName().equals(shapeName)) {
-                idx = i;
-                flag = false;
-            }
-        }
-        return shapes.get(idx);
+        return current.get().getShapeByName(shapeName);
     }
 
     /**
-     * Adds a new shape to the collection
+     * Adds a copy of a shape to the collection; the shape passed in stays free to change
      * 
      * @param       shape       the new shape to add; must not be null
      */
@@ -72,16 +83,55 @@ public class ShapeLibrary {
         if (shape == null) {
             throw new IllegalArgumentException("shape cannot be null");
         }
-        shapes.add(shape);
+        shape = new Shape(shape);
+        Snapshot before;
+        Snapshot after;
+        do {
+            before = current.get();
+            Shape[] shapes = Arrays.copyOf(before.shapes, before.shapes.length + 1);
+            shapes[before.shapes.length] = shape;
+            after = new Snapshot(shapes, before.version + 1);
+        } while (!current.compareAndSet(before, after));
+    }
+
+    /**
+     * Reads a shape file again, replacing the shape of the same name in the collection, or adding the shape if
+     * the collection has none of that name
+     * 
+     * @param       file        the shape file
+     * @return                  the name of the shape read, or null if the file can't be read as a shape
+     */
+    public String reloadShape(File file) {
+        Shape shape = loadShape(file.toString());
+        if (shape == null) {
+            return null;
+        }
+        Snapshot before;
+        Snapshot after;
+        do {
+            before = current.get();
+            Shape[] shapes = before.shapes;
+            int idx = before.indexOf(shape.getName());
+            if (idx < 0) {
+                shapes = Arrays.copyOf(shapes, shapes.length + 1);
+                shapes[shapes.length - 1] = shape;
+            } else {
+                shapes = shapes.clone();
+                shapes[idx] = shape;
+            }
+            after = new Snapshot(shapes, before.version + 1);
+        } while (!current.compareAndSet(before, after));
+        return shape.getName();
     }
 
     /**
-     * Loads the shapes from the shapes folder, deserializing them and storing them in the list
+     * Reads the whole shapes folder again and replaces the collection with what it holds, as one new snapshot;
+     * files that can't be read as shapes are left out
      * 
      * @return                  count of shapes loaded
      */
-    private int loadShapes() throws FileNotFoundException, IOException, ClassNotFoundException {
-        Utility.createShapeFiles();
+    public int reload() {
+        ArrayList<Shape> loaded = new ArrayList<Shape>();
         File folderToScan = new File("shapes");
         File[] folderContent = folderToScan.listFiles();
 
@@ -90,11 +140,22 @@ public class ShapeLibrary {
         } else {
             for (int idx = 0; idx < folderContent.length; idx++) {
                 if(!(folderContent[idx].getName().equals("README.txt"))) {
-                    shapes.add(loadShape("" + folderContent[idx]));
+                    Shape shape = loadShape("" + folderContent[idx]);
+                    if (shape != null) {
+                        loaded.add(shape);
+                    }
                 }
             }
         }
-        return shapes.size();
+        Shape[] shapes = new Shape[loaded.size()];
+        for (int i = 0; i < shapes.length; i++) {
+            shapes[i] = loaded.get(i);
+        }
+        Snapshot before;
+        do {
+            before = current.get();
+        } while (!current.compareAndSet(before, new Snapshot(shapes, before.version + 1)));
+        return shapes.length;
     }
 
     /**
@@ -128,10 +189,117 @@ public class ShapeLibrary {
      * @return                          the state of this object
      */
     public String toString() {
-        String result = "";
-        for (int i = 0; i < shapes.size(); i++) {
-            result += shapes.get(i).toString() + "\n";
+        StringBuilder result = new StringBuilder();
+        try {
+            writeTo(result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes the state of this object to the given output, shape by shape
+     * 
+     * @param          out              where to write; a Writer or a StringBuilder, for example
+     * @throws                          IOException if the output cannot be written
+     */
+    public void writeTo(Appendable out) throws IOException {
+        Snapshot snapshot = current.get();
+        for (int i = 0; i < snapshot.getShapeCount(); i++) {
+            snapshot.getShape(i).writeTo(out);
+            out.append("\n");
+        }
+    }
+
+    /**
+     * One version of the collection. A snapshot never changes once made, and neither do the shapes in it, so it may
+     * be read by any number of threads at once without locking.
+     */
+    public static final class Snapshot {
+        /** the shapes, in the order they were loaded or added */
+        private final Shape[] shapes;
+        /** the first shape of each name, for lookups by name */
+        private final Map<String, Shape> byName;
+        /** the version number, one more than that of the snapshot this one replaced */
+        private final long version;
+
+        /**
+         * Constructor
+         * 
+         * @param       shapes      the shapes, which the snapshot takes ownership of and freezes
+         * @param       version     the version number
+         */
+        private Snapshot(Shape[] shapes, long version) {
+            this.shapes = shapes;
+            this.version = version;
+            Map<String, Shape> names = new HashMap<String, Shape>();
+            for (Shape shape : shapes) {
+                shape.freeze();
+                if (!names.containsKey(shape.getName())) {
+                    names.put(shape.getName(), shape);
+                }
+            }
+            this.byName = names;
+        }
+
+        /**
+         * Retrieves the version number, which goes up by one with every change to the library
+         * 
+         * @return      the version number
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Retrieves a count of shapes in the snapshot
+         * 
+         * @return      shape count
+         */
+        public int getShapeCount() {
+            return shapes.length;
+        }
+
+        /**
+         * Retrieves a specific shape, by index
+         * 
+         * @param       index       position of the shape in the snapshot
+         * @return                  specified shape
+         * @throws                  IndexOutOfBoundsException if there is no shape at the index
+         */
+        public Shape getShape(int index) {
+            if (index < 0 || index >= shapes.length) {
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + shapes.length);
+            }
+            return shapes[index];
+        }
+
+        /**
+         * Retrieves a specified shape, by name
+         * 
+         * @param       shapeName   name of the sought shape
+         * @return                  the requested shape, or the first shape if there is no such shape
+         * @throws                  IndexOutOfBoundsException if there is no such shape and the snapshot is empty
+         */
+        public Shape getShapeByName(String shapeName) {
+            Shape shape = byName.get(shapeName);
+            return shape != null ? shape : getShape(0);
+        }
+
+        /**
+         * Finds the position of the first shape of a name
+         * 
+         * @param       shapeName   name of the sought shape
+         * @return                  the shape's index, or -1 if there is no such shape
+         */
+        private int indexOf(String shapeName) {
+            for (int i = 0; i < shapes.length; i++) {
+                if (shapes[i].getName().equals(shapeName)) {
+                    return i;
+                }
+            }
+            return -1;
         }
-        return result;
     }
 }
@@ -0,0 +1,243 @@
+package drawings;
+
+import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes a drawing as an SVG document, element by element, straight to an output. Nothing is rasterized and nothing
+ * but the names of the outlines already defined is kept, so the cost is proportional to the number of elements
+ * written and the size of the output does not depend on the canvas size. An outline drawn more than once is defined
+ * once, in a {@code <defs>} block written just before its first use, and each drawing of it is a {@code <use>}
+ * reference with its own transform and color.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class SvgWriter {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the id of the canvas gradient */
+    private static final String GRADIENT_ID = "background";
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** where the document is written */
+    private final Appendable out;
+    /** the ids of the outlines defined so far, by key */
+    private final Map<String, String> outlineIds = new HashMap<String, String>();
+    /** reusable buffer for formatting numbers and points */
+    private final StringBuilder buffer = new StringBuilder();
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Constructor; writes the start of the document
+     *
+     * @param       out         where to write the document
+     * @param       width       the canvas width
+     * @param       height      the canvas height
+     * @throws                  IOException if the output cannot be written
+     */
+    public SvgWriter(Appendable out, int width, int height) throws IOException {
+        this.out = out;
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+        out.append(" width=\"").append(Integer.toString(width)).append("\" height=\"").append(Integer.toString(height));
+        out.append("\" viewBox=\"0 0 ").append(Integer.toString(width)).append(' ').append(Integer.toString(height));
+        out.append("\">\n");
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Fills the whole canvas with a color
+     *
+     * @param       color       the background color
+     * @throws                  IOException if the output cannot be written
+     */
+    public void background(Color color) throws IOException {
+        out.append("<rect width=\"100%\" height=\"100%\"");
+        paint(color, true);
+        out.append("/>\n");
+    }
+
+    /**
+     * Fills the whole canvas with a linear gradient running between two points
+     *
+     * @param       start       the color at the start point
+     * @param       end         the color at the end point
+     * @param       x1          the x of the start point
+     * @param       y1          the y of the start point
+     * @param       x2          the x of the end point
+     * @param       y2          the y of the end point
+     * @throws                  IOException if the output cannot be written
+     */
+    public void gradient(Color start, Color end, double x1, double y1, double x2, double y2) throws IOException {
+        out.append("<defs><linearGradient id=\"").append(GRADIENT_ID).append("\" gradientUnits=\"userSpaceOnUse\"");
+        out.append(" x1=\"").append(number(x1)).append("\" y1=\"").append(number(y1));
+        out.append("\" x2=\"").append(number(x2)).append("\" y2=\"").append(number(y2)).append("\">");
+        out.append("<stop offset=\"0\" stop-color=\"").append(hex(start)).append("\"/>");
+        out.append("<stop offset=\"1\" stop-color=\"").append(hex(end)).append("\"/>");
+        out.append("</linearGradient></defs>\n");
+        out.append("<rect width=\"100%\" height=\"100%\" fill=\"url(#").append(GRADIENT_ID).append(")\"/>\n");
+    }
+
+    /**
+     * Writes a polygon with the given corners
+     *
+     * @param       xs          the x-coordinates of the corners
+     * @param       ys          the y-coordinates of the corners
+     * @param       color       the polygon's color
+     * @param       filled      true to fill the polygon, false to draw its outline
+     * @throws                  IOException if the output cannot be written
+     */
+    public void polygon(int[] xs, int[] ys, Color color, boolean filled) throws IOException {
+        out.append("<polygon points=\"").append(points(xs, ys)).append('"');
+        paint(color, filled);
+        out.append("/>\n");
+    }
+
+    /**
+     * Determines whether an outline has been defined
+     *
+     * @param       key         the key the outline was defined under
+     * @return                  true if define has been called with the key
+     */
+    public boolean isDefined(String key) {
+        return outlineIds.containsKey(key);
+    }
+
+    /**
+     * Defines an outline for later use
+     *
+     * @param       key         the key to define the outline under, such as its shape name and scale
+     * @param       xs          the x-coordinates of the outline's corners
+     * @param       ys          the y-coordinates of the outline's corners
+     * @throws                  IOException if the output cannot be written
+     */
+    public void define(String key, int[] xs, int[] ys) throws IOException {
+        String id = "outline" + outlineIds.size();
+        outlineIds.put(key, id);
+        out.append("<defs><polygon id=\"").append(id).append("\" points=\"").append(points(xs, ys));
+        out.append("\"/></defs>\n");
+    }
+
+    /**
+     * Draws a defined outline
+     *
+     * @param       key         the key the outline was defined under
+     * @param       transform   where to draw the outline, relative to the coordinates it was defined with
+     * @param       color       the color to draw in
+     * @param       filled      true to fill the outline, false to draw it as a line
+     * @throws                  IllegalArgumentException if nothing has been defined under the key
+     * @throws                  IOException if the output cannot be written
+     */
+    public void use(String key, AffineTransform transform, Color color, boolean filled) throws IOException {
+        String id = outlineIds.get(key);
+        if (id == null) {
+            throw new IllegalArgumentException("outline not defined: " + key);
+        }
+        out.append("<use xlink:href=\"#").append(id).append('"');
+        if (!transform.isIdentity()) {
+            out.append(" transform=\"matrix(").append(number(transform.getScaleX()));
+            out.append(' ').append(number(transform.getShearY()));
+            out.append(' ').append(number(transform.getShearX()));
+            out.append(' ').append(number(transform.getScaleY()));
+            out.append(' ').append(number(transform.getTranslateX()));
+            out.append(' ').append(number(transform.getTranslateY())).append(")\"");
+        }
+        paint(color, filled);
+        out.append("/>\n");
+    }
+
+    /**
+     * Writes the end of the document; nothing may be written after this
+     *
+     * @throws                  IOException if the output cannot be written
+     */
+    public void finish() throws IOException {
+        out.append("</svg>\n");
+    }
+
+    /**
+     * Writes fill and stroke attributes for a color
+     *
+     * @param       color       the color
+     * @param       filled      true for a fill, false for a one-pixel line
+     * @throws                  IOException if the output cannot be written
+     */
+    private void paint(Color color, boolean filled) throws IOException {
+        if (filled) {
+            out.append(" fill=\"").append(hex(color)).append('"');
+            if (color.getAlpha() < 255) {
+                out.append(" fill-opacity=\"").append(number(color.getAlpha() / 255.0)).append('"');
+            }
+        } else {
+            out.append(" fill=\"none\" stroke=\"").append(hex(color)).append('"');
+            if (color.getAlpha() < 255) {
+                out.append(" stroke-opacity=\"").append(number(color.getAlpha() / 255.0)).append('"');
+            }
+        }
+    }
+
+    /**
+     * Formats a list of points
+     *
+     * @param       xs          the x-coordinates
+     * @param       ys          the y-coordinates
+     * @return                  the points as "x,y x,y ..."
+     */
+    private CharSequence points(int[] xs, int[] ys) {
+        buffer.setLength(0);
+        for (int k = 0; k < xs.length; k++) {
+            if (k > 0) {
+                buffer.append(' ');
+            }
+            buffer.append(xs[k]).append(',').append(ys[k]);
+        }
+        return buffer;
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Formats a color as an SVG hex color
+     *
+     * @param       color       the color
+     * @return                  the color as "#rrggbb"
+     */
+    private static String hex(Color color) {
+        return String.format("#%06x", color.getRGB() & 0xffffff);
+    }
+
+    /**
+     * Formats a number compactly, with at most four decimals and no trailing zeros
+     *
+     * @param       value       the number
+     * @return                  the formatted number
+     */
+    private static String number(double value) {
+        long rounded = Math.round(value * 10000);
+        if (rounded % 10000 == 0) {
+            return Long.toString(rounded / 10000);
+        }
+        String result = String.format(Locale.ROOT, "%.4f", rounded / 10000.0);
+        int end = result.length();
+        while (result.charAt(end - 1) == '0') {
+            end--;
+        }
+        return result.substring(0, end);
+    }
+}
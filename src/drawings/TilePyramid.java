@@ -0,0 +1,435 @@
+package drawings;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Writes a drawing as a Deep Zoom (DZI) tile pyramid for zoomable viewers such as OpenSeadragon: a descriptor
+ * NAME.dzi and, for every level, a folder NAME_files/LEVEL of square PNG tiles named COLUMN_ROW.png. Level 0 is a
+ * single pixel and each level doubles the size of the one below it, up to the drawing at full size on the top
+ * level. Every tile is rendered from the drawing's instructions at its level's scale, so no level is a resampled
+ * copy of another, and only the shapes reaching a tile are drawn into it. The tiles of a level are rendered in
+ * parallel.
+ * <p>
+ * A tile showing nothing but the solid background is not rendered: its PNG is encoded once per tile size and
+ * written as is. Each level folder also keeps a fingerprint of what decided every tile's pixels, so writing the
+ * pyramid again after the drawing changes only renders the tiles whose fingerprints changed, and the tiles of
+ * levels outside the range asked for are left alone. Run it from the directory holding the shapes folder:
+ * <pre>
+ *     java drawings.TilePyramid [--scale S] [--tile N] [--levels FIRST-LAST] [--seed N] INSTRUCTIONS OUTPUT_DIR
+ * </pre>
+ * Random placements are seeded with 0 unless another seed is given, so that running it again reproduces them.
+ *
+ * @author             Viktoryia Simakova
+ * @version            2026-10-19
+ */
+public class TilePyramid {
+    //**********************************************************************************************
+    //          CONSTANTS
+    //**********************************************************************************************
+    /** the tile width and height when none is given */
+    public static final int DEFAULT_TILE_SIZE = 256;
+    /** the file in each level folder holding the tile fingerprints */
+    public static final String KEY_FILE = "tiles.keys";
+    /** the file name suffix of drawing instruction files */
+    private static final String SUFFIX = ".txt";
+
+    //**********************************************************************************************
+    //          INSTANCE DATA
+    //**********************************************************************************************
+    /** the drawing the pyramid is made of */
+    private final Drawing drawing;
+    /** the size of the top level relative to the drawing's canvas size */
+    private final double scale;
+    /** the tile width and height */
+    private final int tileSize;
+    /** the width of the top level */
+    private final int width;
+    /** the height of the top level */
+    private final int height;
+    /** the number of the top level */
+    private final int maxLevel;
+    /** writes the tiles */
+    private final PngWriter pngWriter = new PngWriter();
+
+    //**********************************************************************************************
+    //          CONSTRUCTORS
+    //**********************************************************************************************
+
+    /**
+     * Constructor
+     *
+     * @param       drawing     the drawing to make a pyramid of
+     * @param       scale       the size of the top level relative to the drawing's canvas size
+     * @param       tileSize    the tile width and height
+     * @throws                  IllegalArgumentException if the scale or tile size is not positive
+     */
+    public TilePyramid(Drawing drawing, double scale, int tileSize) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be positive: " + scale);
+        }
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tile size must be positive: " + tileSize);
+        }
+        this.drawing = drawing;
+        this.scale = scale;
+        this.tileSize = tileSize;
+        width = (int) Math.ceil(drawing.getCanvasWidth() * scale);
+        height = (int) Math.ceil(drawing.getCanvasHeight() * scale);
+        // the smallest level count that halves the larger side down to a single pixel
+        maxLevel = 32 - Integer.numberOfLeadingZeros(Math.max(width, height) - 1);
+    }
+
+    //**********************************************************************************************
+    //          STATIC METHODS
+    //**********************************************************************************************
+
+    /**
+     * Writes the pyramid of one drawing
+     *
+     * @param       args        the options, instruction file and output directory described in the class comment
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        double scale = 1;
+        int tileSize = DEFAULT_TILE_SIZE;
+        int firstLevel = 0;
+        int lastLevel = Integer.MAX_VALUE;
+        long seed = 0;
+        String[] files = new String[2];
+        int fileCount = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--scale") && i + 1 < args.length) {
+                scale = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--tile") && i + 1 < args.length) {
+                tileSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--levels") && i + 1 < args.length) {
+                String[] range = args[++i].split("-");
+                firstLevel = Integer.parseInt(range[0]);
+                lastLevel = Integer.parseInt(range[range.length - 1]);
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (!args[i].startsWith("--") && fileCount < files.length) {
+                files[fileCount++] = args[i];
+            } else {
+                fileCount = -1;
+                break;
+            }
+        }
+        if (fileCount != 2) {
+            System.err.println("Usage: java drawings.TilePyramid [--scale S] [--tile N] [--levels FIRST-LAST] [--seed N] "
+                    + "INSTRUCTIONS OUTPUT_DIR");
+            System.exit(2);
+        }
+        File instructions = new File(files[0]);
+        String name = instructions.getName();
+        if (name.endsWith(SUFFIX)) {
+            name = name.substring(0, name.length() - SUFFIX.length());
+        }
+        Drawing drawing = new Drawing(new ShapeLibrary(), instructions);
+        drawing.setSeed(seed);
+        TilePyramid pyramid = new TilePyramid(drawing, scale, tileSize);
+        long start = System.nanoTime();
+        Result result = pyramid.write(new File(files[1]), name, firstLevel, Math.min(lastLevel, pyramid.getMaxLevel()));
+        System.out.printf("%s: %dx%d, %d levels, %s, %.2f s%n", name, pyramid.getWidth(), pyramid.getHeight(),
+                pyramid.getMaxLevel() + 1, result, (System.nanoTime() - start) / 1e9);
+    }
+
+    //**********************************************************************************************
+    //          INSTANCE METHODS
+    //**********************************************************************************************
+
+    /**
+     * Retrieves the width of the top level
+     *
+     * @return                  the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Retrieves the height of the top level
+     *
+     * @return                  the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Retrieves the number of the top level, the one showing the drawing at full size
+     *
+     * @return                  the top level; level 0 is a single pixel
+     */
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * Writes every level of the pyramid, rendering only tiles that changed since the pyramid was last written
+     *
+     * @param       directory   the directory to write the descriptor and tile folders into
+     * @param       name        the name of the descriptor, without the .dzi suffix
+     * @return                  what was done to the tiles
+     * @throws                  IOException if a file cannot be read or written
+     */
+    public Result write(File directory, String name) throws IOException {
+        return write(directory, name, 0, maxLevel);
+    }
+
+    /**
+     * Writes a range of levels of the pyramid, rendering only tiles that changed since those levels were last
+     * written; the descriptor is always rewritten and the other levels are left as they are
+     *
+     * @param       directory   the directory to write the descriptor and tile folders into
+     * @param       name        the name of the descriptor, without the .dzi suffix
+     * @param       firstLevel  the lowest level to write
+     * @param       lastLevel   the highest level to write
+     * @return                  what was done to the tiles
+     * @throws                  IllegalArgumentException if the range is empty or runs outside 0 to getMaxLevel
+     * @throws                  IOException if a file cannot be read or written
+     */
+    public Result write(File directory, String name, int firstLevel, int lastLevel) throws IOException {
+        if (firstLevel < 0 || lastLevel > maxLevel || firstLevel > lastLevel) {
+            throw new IllegalArgumentException("levels " + firstLevel + " to " + lastLevel + " are not within 0 to "
+                    + maxLevel);
+        }
+        File tiles = new File(directory, name + "_files");
+        if (!tiles.isDirectory() && !tiles.mkdirs()) {
+            throw new IOException("Unable to create " + tiles);
+        }
+        try (Writer out = Files.newBufferedWriter(new File(directory, name + ".dzi").toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" TileSize=\"" + tileSize
+                    + "\" Overlap=\"0\" Format=\"png\">\n");
+            out.write("  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n");
+            out.write("</Image>\n");
+        }
+
+        ArrayList<Drawing.Figure> placed = drawing.placeFigures();
+        Result result = new Result();
+        for (int level = lastLevel; level >= firstLevel; level--) {
+            writeLevel(new File(tiles, Integer.toString(level)), level, placed, result);
+        }
+        return result;
+    }
+
+    /**
+     * Writes one level: forgets the fingerprints of the tiles that changed, renders those tiles in parallel, and
+     * then records the new fingerprints
+     *
+     * @param       folder      the level's folder
+     * @param       level       the level number
+     * @param       placed      the drawing's placed figures
+     * @param       result      where to count what was done to the tiles
+     * @throws                  IOException if a file cannot be read or written
+     */
+    private void writeLevel(final File folder, int level, ArrayList<Drawing.Figure> placed, final Result result)
+            throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+        int shift = maxLevel - level;
+        int levelWidth = (int) ((width + (1L << shift) - 1) >> shift);
+        int levelHeight = (int) ((height + (1L << shift) - 1) >> shift);
+        final Drawing.Layout layout = drawing.new Layout(placed, scale / (1L << shift), levelWidth, levelHeight,
+                tileSize, tileSize);
+
+        File keyFile = new File(folder, KEY_FILE);
+        final Properties oldKeys = new Properties();
+        if (keyFile.isFile()) {
+            try (InputStream in = Files.newInputStream(keyFile.toPath())) {
+                oldKeys.load(in);
+            }
+        }
+        final int columns = layout.getColumns();
+        final String[] newKeys = new String[columns * layout.getRows()];
+        IntStream.range(0, newKeys.length).parallel().forEach(
+                t -> newKeys[t] = Long.toHexString(layout.key(t % columns, t / columns)));
+
+        // the fingerprints of the tiles about to be rewritten come out of the stored file first, so a run that
+        // stops partway never leaves a fingerprint vouching for a tile it had started to change
+        final boolean[] stale = new boolean[newKeys.length];
+        Properties kept = new Properties();
+        kept.putAll(oldKeys);
+        for (int t = 0; t < newKeys.length; t++) {
+            String tile = (t % columns) + "_" + (t / columns);
+            stale[t] = !newKeys[t].equals(oldKeys.getProperty(tile)) || !new File(folder, tile + ".png").isFile();
+            if (stale[t]) {
+                kept.remove(tile);
+            } else {
+                result.unchanged.incrementAndGet();
+            }
+        }
+        if (kept.size() < oldKeys.size()) {
+            storeKeys(keyFile, kept);
+        }
+
+        final Map<Long, byte[]> blankTiles = new ConcurrentHashMap<Long, byte[]>();
+        final ThreadLocal<BufferedImage> scratch = ThreadLocal.withInitial(
+                () -> new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB));
+        try {
+            IntStream.range(0, newKeys.length).filter(t -> stale[t]).parallel().forEach(t -> {
+                int column = t % columns;
+                int row = t / columns;
+                File file = new File(folder, column + "_" + row + ".png");
+                try {
+                    int w = layout.getCellWidth(column);
+                    int h = layout.getCellHeight(row);
+                    if (layout.isBlank(column, row)) {
+                        // every blank tile of a size is the same, so it is rendered and encoded only once
+                        byte[] png = blankTiles.computeIfAbsent((long) w << 32 | h, size -> {
+                            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+                            layout.paint(image, column, row);
+                            return encode(image);
+                        });
+                        Files.write(file.toPath(), png);
+                        result.blank.incrementAndGet();
+                    } else {
+                        BufferedImage image = scratch.get();
+                        if (w != tileSize || h != tileSize) {
+                            image = image.getSubimage(0, 0, w, h);
+                        }
+                        layout.paint(image, column, row);
+                        pngWriter.write(image, file);
+                        result.rendered.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Properties keys = new Properties();
+        for (int t = 0; t < newKeys.length; t++) {
+            keys.setProperty((t % columns) + "_" + (t / columns), newKeys[t]);
+        }
+        // tiles the level no longer has, after the drawing's size changed
+        for (String tile : oldKeys.stringPropertyNames()) {
+            if (!keys.containsKey(tile) && new File(folder, tile + ".png").delete()) {
+                result.removed.incrementAndGet();
+            }
+        }
+        storeKeys(keyFile, keys);
+    }
+
+    /**
+     * Replaces a level's fingerprint file, writing a temporary file beside it and renaming that over it, so the
+     * file is never found half written
+     *
+     * @param       keyFile     the fingerprint file
+     * @param       keys        the fingerprints, by tile name
+     * @throws                  IOException if the file cannot be written
+     */
+    private static void storeKeys(File keyFile, Properties keys) throws IOException {
+        File temp = new File(keyFile.getParentFile(), keyFile.getName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            keys.store(out, "tile fingerprints; a tile is rendered again when its fingerprint changes");
+        }
+        try {
+            Files.move(temp.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Encodes an image as PNG in memory
+     *
+     * @param       image       the image
+     * @return                  the PNG data
+     */
+    private byte[] encode(BufferedImage image) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            pngWriter.write(image, Channels.newChannel(out));
+        } catch (IOException e) {
+            // writing to memory does no I/O
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    //**********************************************************************************************
+    //          NESTED CLASSES
+    //**********************************************************************************************
+
+    /**
+     * What writing a pyramid did to its tiles
+     */
+    public static final class Result {
+        /** tiles rendered from the instructions */
+        private final AtomicInteger rendered = new AtomicInteger();
+        /** tiles written from the shared blank tile */
+        private final AtomicInteger blank = new AtomicInteger();
+        /** tiles left as they were because nothing reaching them changed */
+        private final AtomicInteger unchanged = new AtomicInteger();
+        /** tiles deleted because their level no longer has them */
+        private final AtomicInteger removed = new AtomicInteger();
+
+        /**
+         * Retrieves the number of tiles rendered from the instructions
+         *
+         * @return                  the count
+         */
+        public int getRendered() {
+            return rendered.get();
+        }
+
+        /**
+         * Retrieves the number of tiles showing only the background, which were written without rendering
+         *
+         * @return                  the count
+         */
+        public int getBlank() {
+            return blank.get();
+        }
+
+        /**
+         * Retrieves the number of tiles left as they were
+         *
+         * @return                  the count
+         */
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        /**
+         * Retrieves the number of tiles deleted because their level no longer has them
+         *
+         * @return                  the count
+         */
+        public int getRemoved() {
+            return removed.get();
+        }
+
+        /**
+         * Retrieves state of this object
+         *
+         * @return                  the counts
+         */
+        public String toString() {
+            return getRendered() + " rendered, " + getBlank() + " blank, " + getUnchanged() + " unchanged, "
+                    + getRemoved() + " removed";
+        }
+    }
+}